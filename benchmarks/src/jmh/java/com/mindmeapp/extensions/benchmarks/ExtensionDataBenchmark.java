@@ -0,0 +1,208 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions.benchmarks;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.widget.RemoteViews;
+
+import com.mindmeapp.extensions.ExtensionData;
+
+/**
+ * Throughput of the {@link ExtensionData} codecs for realistic payloads. Run with
+ * <code>-prof gc</code> to also get the allocation rate per operation.
+ *
+ * <p>
+ * Payloads:
+ * <ul>
+ * <li><code>minimal</code>: what most extensions publish, a visible icon and a short status.</li>
+ * <li><code>maxLength</code>: every field set, with status fields at their maximum length.</li>
+ * <li><code>remoteViews</code>: <code>maxLength</code> plus a small {@link RemoteViews} layout.</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ExtensionDataBenchmark {
+
+    @Param({"minimal", "maxLength", "remoteViews"})
+    public String payload;
+
+    private ExtensionData mData;
+    private ExtensionData mTarget;
+    private Parcel mParcel;
+    private Parcel mEncoded;
+    private Bundle mBundle;
+    private JSONObject mJson;
+    private String mJsonString;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JSONException, IOException {
+        mData = createPayload(payload);
+        mTarget = new ExtensionData();
+        mParcel = Parcel.obtain();
+        mEncoded = Parcel.obtain();
+        mData.writeToParcel(mEncoded, 0);
+        mBundle = mData.toBundle();
+        mJson = mData.serialize();
+
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        mData.writeJson(writer);
+        writer.close();
+        mJsonString = out.toString();
+    }
+
+    static ExtensionData createPayload(String payload) {
+        ExtensionData data = new ExtensionData()
+                .visible(true)
+                .icon(android.R.drawable.ic_dialog_info)
+                .statusToDisplay("Sunny, 21°C");
+        if ("minimal".equals(payload)) {
+            return data;
+        }
+
+        data.statusToDisplay(repeat('d', ExtensionData.MAX_STATUS_TO_DISPLAY_LENGTH))
+                .statusToSpeak(repeat('s', ExtensionData.MAX_STATUS_TO_SPEAK_LENGTH))
+                .languageToSpeak(Locale.US)
+                .contentDescription(repeat('c', ExtensionData.MAX_CONTENT_DESCRIPTION_LENGTH))
+                .iconUri(Uri.parse("content://com.example.extension.mindme.images/images/icon"))
+                .background(android.R.drawable.screen_background_dark)
+                .backgroundUri(Uri.parse(
+                        "content://com.example.extension.mindme.images/images/background"));
+        if ("maxLength".equals(payload)) {
+            return data;
+        }
+
+        RemoteViews views = new RemoteViews("com.example.extension",
+                android.R.layout.simple_list_item_2);
+        views.setTextViewText(android.R.id.text1, "Today");
+        views.setTextViewText(android.R.id.text2, repeat('v', 120));
+        return data.viewsToDisplay(views);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    @Benchmark
+    public int writeToParcel() {
+        mParcel.setDataPosition(0);
+        mParcel.setDataSize(0);
+        mData.writeToParcel(mParcel, 0);
+        return mParcel.dataSize();
+    }
+
+    @Benchmark
+    public ExtensionData parcelRoundTrip() {
+        mParcel.setDataPosition(0);
+        mParcel.setDataSize(0);
+        mData.writeToParcel(mParcel, 0);
+        mParcel.setDataPosition(0);
+        return ExtensionData.CREATOR.createFromParcel(mParcel);
+    }
+
+    @Benchmark
+    public ExtensionData parcelRoundTripInPlace() {
+        mParcel.setDataPosition(0);
+        mParcel.setDataSize(0);
+        mData.writeToParcel(mParcel, 0);
+        mParcel.setDataPosition(0);
+        mTarget.readFromParcel(mParcel);
+        return mTarget;
+    }
+
+    /**
+     * Decodes a parcel and only reads the text to speak, like a voice-only host. Heavy sections
+     * such as the views stay encoded.
+     */
+    @Benchmark
+    public String readFromParcelStatusOnly() {
+        mEncoded.setDataPosition(0);
+        mTarget.readFromParcel(mEncoded);
+        return mTarget.statusToSpeak();
+    }
+
+    @Benchmark
+    public Bundle toBundle() {
+        return mData.toBundle();
+    }
+
+    @Benchmark
+    public ExtensionData fromBundle() {
+        mTarget.fromBundle(mBundle);
+        return mTarget;
+    }
+
+    @Benchmark
+    public JSONObject serialize() throws JSONException {
+        return mData.serialize();
+    }
+
+    @Benchmark
+    public ExtensionData deserialize() throws JSONException {
+        mTarget.deserialize(mJson);
+        return mTarget;
+    }
+
+    @Benchmark
+    public String writeJson() throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        mData.writeJson(writer);
+        writer.close();
+        return out.toString();
+    }
+
+    @Benchmark
+    public ExtensionData readJson() throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(mJsonString));
+        mTarget.readJson(reader);
+        return mTarget;
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a <code>&lt;ClassName&gt;Codec</code> implementing
+ * <code>com.mindmeapp.extensions.ExtensionPayloadCodec</code> for every class annotated with
+ * <code>com.mindmeapp.extensions.ExtensionPayload</code>. The generated code reads and writes the
+ * fields directly, so encoding a payload costs the same as a hand-written codec.
+ *
+ * <p>
+ * Fields are encoded in declaration order. Readers of the Parcel form ignore trailing fields they
+ * don't know and read fields missing from older payloads as 0 or null, so new fields must be
+ * added last. The Bundle and JSON forms, keyed by field name, stay readable both ways.
+ */
+public class ExtensionPayloadProcessor extends AbstractProcessor {
+    private static final String ANNOTATION = "com.mindmeapp.extensions.ExtensionPayload";
+    private static final String CODEC_INTERFACE = "com.mindmeapp.extensions.ExtensionPayloadCodec";
+    private static final String REGISTRY = "com.mindmeapp.extensions.ExtensionData";
+
+    /**
+     * Supported field types, with the matching Parcel, Bundle and JSON accessors.
+     */
+    private enum FieldType {
+        BOOLEAN("boolean", "Boolean", "nextBoolean"),
+        INT("int", "Int", "nextInt"),
+        LONG("long", "Long", "nextLong"),
+        FLOAT("float", "Float", "nextDouble"),
+        DOUBLE("double", "Double", "nextDouble"),
+        STRING("java.lang.String", "String", "nextString");
+
+        final String mTypeName;
+        final String mAccessorSuffix;
+        final String mJsonReadMethod;
+
+        FieldType(String typeName, String accessorSuffix, String jsonReadMethod) {
+            mTypeName = typeName;
+            mAccessorSuffix = accessorSuffix;
+            mJsonReadMethod = jsonReadMethod;
+        }
+
+        static FieldType of(TypeMirror type) {
+            for (FieldType fieldType : values()) {
+                if (fieldType.mTypeName.equals(type.toString())) {
+                    return fieldType;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Field {
+        final String mName;
+        final FieldType mType;
+
+        Field(String name, FieldType type) {
+            mName = name;
+            mType = type;
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(ANNOTATION);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ANNOTATION);
+        if (annotation == null) {
+            return false;
+        }
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "@ExtensionPayload only applies to classes.");
+                continue;
+            }
+
+            TypeElement type = (TypeElement) element;
+            if (type.getNestingKind().isNested()
+                    && (!type.getModifiers().contains(Modifier.STATIC)
+                            || type.getModifiers().contains(Modifier.PRIVATE))) {
+                // The codec is a top-level class and can't create instances of these
+                error(type, "Nested payload classes must be static and not private.");
+                continue;
+            }
+            List<Field> fields = collectFields(type);
+            if (fields == null || !hasNoArgConstructor(type)) {
+                continue;
+            }
+
+            try {
+                writeCodec(type, fields);
+            } catch (IOException e) {
+                error(type, "Couldn't write codec: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the encoded fields of the given class, or null after reporting errors.
+     */
+    private List<Field> collectFields(TypeElement type) {
+        List<Field> fields = new ArrayList<Field>();
+        boolean valid = true;
+        for (Element member : type.getEnclosedElements()) {
+            if (member.getKind() != ElementKind.FIELD) {
+                continue;
+            }
+
+            Set<Modifier> modifiers = member.getModifiers();
+            if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+                continue;
+            }
+
+            VariableElement field = (VariableElement) member;
+            FieldType fieldType = FieldType.of(field.asType());
+            if (modifiers.contains(Modifier.PRIVATE)) {
+                error(field, "Payload fields must not be private.");
+                valid = false;
+            } else if (modifiers.contains(Modifier.FINAL)) {
+                error(field, "Payload fields must not be final.");
+                valid = false;
+            } else if (fieldType == null) {
+                error(field, "Unsupported payload field type " + field.asType()
+                        + ", use boolean, int, long, float, double or String.");
+                valid = false;
+            } else {
+                fields.add(new Field(field.getSimpleName().toString(), fieldType));
+            }
+        }
+        return valid ? fields : null;
+    }
+
+    private boolean hasNoArgConstructor(TypeElement type) {
+        for (Element member : type.getEnclosedElements()) {
+            if (member.getKind() == ElementKind.CONSTRUCTOR
+                    && ((ExecutableElement) member).getParameters().isEmpty()
+                    && !member.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        error(type, "Payload classes need a non-private no-argument constructor.");
+        return false;
+    }
+
+    private void writeCodec(TypeElement type, List<Field> fields) throws IOException {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        String className = type.getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        // Nested classes get a flat codec name: Outer.Inner -> Outer_InnerCodec
+        String simpleName = (packageName.isEmpty()
+                ? className : className.substring(packageName.length() + 1)).replace('.', '_');
+        String codecName = simpleName + "Codec";
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                packageName.isEmpty() ? codecName : packageName + "." + codecName, type);
+        PrintWriter out = new PrintWriter(file.openWriter());
+        try {
+            if (!packageName.isEmpty()) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+            out.println("import java.io.IOException;");
+            out.println();
+            out.println("import android.os.Bundle;");
+            out.println("import android.os.Parcel;");
+            out.println("import android.util.JsonReader;");
+            out.println("import android.util.JsonToken;");
+            out.println("import android.util.JsonWriter;");
+            out.println();
+            out.println("/**");
+            out.println(" * Codec for {@link " + className + "}, generated by "
+                    + getClass().getSimpleName() + ". Do not edit.");
+            out.println(" */");
+            out.println("public final class " + codecName + " implements " + CODEC_INTERFACE
+                    + "<" + className + "> {");
+            out.println("    public static final " + codecName + " INSTANCE = new " + codecName
+                    + "();");
+            out.println();
+            out.println("    static {");
+            out.println("        " + REGISTRY + ".registerPayloadCodec(INSTANCE);");
+            out.println("    }");
+            out.println();
+            out.println("    private " + codecName + "() {");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public String id() {");
+            out.println("        return \"" + binaryName + "\";");
+            out.println("    }");
+
+            writeParcelMethods(out, className, fields);
+            writeBundleMethods(out, className, fields);
+            writeJsonMethods(out, className, fields);
+            writeEqualsMethods(out, className, fields);
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeParcelMethods(PrintWriter out, String className, List<Field> fields) {
+        out.println();
+        out.println("    @Override");
+        out.println("    public void writeToParcel(" + className + " value, Parcel out) {");
+        for (Field field : fields) {
+            if (field.mType == FieldType.BOOLEAN) {
+                out.println("        out.writeInt(value." + field.mName + " ? 1 : 0);");
+            } else {
+                out.println("        out.write" + field.mType.mAccessorSuffix + "(value."
+                        + field.mName + ");");
+            }
+        }
+        out.println("    }");
+
+        out.println();
+        out.println("    @Override");
+        out.println("    public " + className + " createFromParcel(Parcel in) {");
+        out.println("        " + className + " value = new " + className + "();");
+        for (Field field : fields) {
+            if (field.mType == FieldType.BOOLEAN) {
+                out.println("        value." + field.mName + " = in.readInt() != 0;");
+            } else {
+                out.println("        value." + field.mName + " = in.read"
+                        + field.mType.mAccessorSuffix + "();");
+            }
+        }
+        out.println("        return value;");
+        out.println("    }");
+    }
+
+    private static void writeBundleMethods(PrintWriter out, String className, List<Field> fields) {
+        out.println();
+        out.println("    @Override");
+        out.println("    public Bundle toBundle(" + className + " value) {");
+        out.println("        Bundle bundle = new Bundle(" + fields.size() + ");");
+        for (Field field : fields) {
+            out.println("        bundle.put" + field.mType.mAccessorSuffix + "(\"" + field.mName
+                    + "\", value." + field.mName + ");");
+        }
+        out.println("        return bundle;");
+        out.println("    }");
+
+        out.println();
+        out.println("    @Override");
+        out.println("    public " + className + " fromBundle(Bundle bundle) {");
+        out.println("        " + className + " value = new " + className + "();");
+        for (Field field : fields) {
+            out.println("        value." + field.mName + " = bundle.get"
+                    + field.mType.mAccessorSuffix + "(\"" + field.mName + "\", value."
+                    + field.mName + ");");
+        }
+        out.println("        return value;");
+        out.println("    }");
+    }
+
+    private static void writeJsonMethods(PrintWriter out, String className, List<Field> fields) {
+        out.println();
+        out.println("    @Override");
+        out.println("    public void writeJson(" + className + " value, JsonWriter writer)"
+                + " throws IOException {");
+        out.println("        writer.beginObject();");
+        for (Field field : fields) {
+            String write = "writer.name(\"" + field.mName + "\").value(value." + field.mName
+                    + ");";
+            if (field.mType == FieldType.STRING) {
+                out.println("        if (value." + field.mName + " != null) {");
+                out.println("            " + write);
+                out.println("        }");
+            } else {
+                out.println("        " + write);
+            }
+        }
+        out.println("        writer.endObject();");
+        out.println("    }");
+
+        out.println();
+        out.println("    @Override");
+        out.println("    public " + className + " readJson(JsonReader reader) throws IOException {");
+        out.println("        " + className + " value = new " + className + "();");
+        out.println("        reader.beginObject();");
+        out.println("        while (reader.hasNext()) {");
+        out.println("            String name = reader.nextName();");
+        out.println("            if (reader.peek() == JsonToken.NULL) {");
+        out.println("                reader.nextNull();");
+        for (Field field : fields) {
+            String cast = field.mType == FieldType.FLOAT ? "(float) " : "";
+            out.println("            } else if (\"" + field.mName + "\".equals(name)) {");
+            out.println("                value." + field.mName + " = " + cast + "reader."
+                    + field.mType.mJsonReadMethod + "();");
+        }
+        out.println("            } else {");
+        out.println("                reader.skipValue();");
+        out.println("            }");
+        out.println("        }");
+        out.println("        reader.endObject();");
+        out.println("        return value;");
+        out.println("    }");
+    }
+
+    private static void writeEqualsMethods(PrintWriter out, String className, List<Field> fields) {
+        out.println();
+        out.println("    @Override");
+        out.println("    public boolean equals(" + className + " x, " + className + " y) {");
+        out.println("        if (x == y) {");
+        out.println("            return true;");
+        out.println("        }");
+        out.println("        if (x == null || y == null) {");
+        out.println("            return false;");
+        out.println("        }");
+        if (fields.isEmpty()) {
+            out.println("        return true;");
+        } else {
+            for (int i = 0; i < fields.size(); i++) {
+                Field field = fields.get(i);
+                String x = "x." + field.mName;
+                String y = "y." + field.mName;
+                String comparison;
+                switch (field.mType) {
+                    case FLOAT:
+                        comparison = "Float.compare(" + x + ", " + y + ") == 0";
+                        break;
+                    case DOUBLE:
+                        comparison = "Double.compare(" + x + ", " + y + ") == 0";
+                        break;
+                    case STRING:
+                        comparison = "(" + x + " == null ? " + y + " == null : " + x
+                                + ".equals(" + y + "))";
+                        break;
+                    default:
+                        comparison = x + " == " + y;
+                        break;
+                }
+                out.println((i == 0 ? "        return " : "                && ") + comparison
+                        + (i == fields.size() - 1 ? ";" : ""));
+            }
+        }
+        out.println("    }");
+
+        out.println();
+        out.println("    @Override");
+        out.println("    public int hashCode(" + className + " value) {");
+        out.println("        int hash = 17;");
+        for (Field field : fields) {
+            String v = "value." + field.mName;
+            String hash;
+            switch (field.mType) {
+                case BOOLEAN:
+                    hash = "(" + v + " ? 1 : 0)";
+                    break;
+                case LONG:
+                    hash = "(int) (" + v + " ^ (" + v + " >>> 32))";
+                    break;
+                case FLOAT:
+                    hash = "Float.floatToIntBits(" + v + ")";
+                    break;
+                case DOUBLE:
+                    hash = "(int) (Double.doubleToLongBits(" + v
+                            + ") ^ (Double.doubleToLongBits(" + v + ") >>> 32))";
+                    break;
+                case STRING:
+                    hash = "(" + v + " == null ? 0 : " + v + ".hashCode())";
+                    break;
+                default:
+                    hash = v;
+                    break;
+            }
+            out.println("        hash = 31 * hash + " + hash + ";");
+        }
+        out.println("        return hash;");
+        out.println("    }");
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
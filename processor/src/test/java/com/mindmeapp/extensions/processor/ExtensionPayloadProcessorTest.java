@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link ExtensionPayloadProcessor}. Sources are only processed, not compiled, so the
+ * Android classes the generated codecs use are not needed; the codecs themselves are exercised by
+ * the tests of the API.
+ */
+public class ExtensionPayloadProcessorTest {
+    private static final String ANNOTATION = "package com.mindmeapp.extensions;\n"
+            + "public @interface ExtensionPayload {}\n";
+
+    /**
+     * Empty stand-ins for the types generated codecs refer to, which javac resolves even when it
+     * only processes sources.
+     */
+    private static final String[][] STUBS = {
+        {"android.os.Bundle", "package android.os; public class Bundle {}"},
+        {"android.os.Parcel", "package android.os; public class Parcel {}"},
+        {"android.util.JsonReader", "package android.util; public class JsonReader {}"},
+        {"android.util.JsonToken", "package android.util; public enum JsonToken {}"},
+        {"android.util.JsonWriter", "package android.util; public class JsonWriter {}"},
+        {"com.mindmeapp.extensions.ExtensionData",
+                "package com.mindmeapp.extensions; public class ExtensionData {}"},
+        {"com.mindmeapp.extensions.ExtensionPayloadCodec",
+                "package com.mindmeapp.extensions; public interface ExtensionPayloadCodec<T> {}"},
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final DiagnosticCollector<JavaFileObject> mDiagnostics
+            = new DiagnosticCollector<JavaFileObject>();
+
+    @Test
+    public void codecIsGeneratedNextToTheClass() throws IOException {
+        assertProcessed(process("com.example.Forecast", "package com.example;\n"
+                + "@com.mindmeapp.extensions.ExtensionPayload\n"
+                + "public class Forecast {\n"
+                + "    static int sCount;\n"
+                + "    transient String mCache;\n"
+                + "    int temperature;\n"
+                + "    boolean alert;\n"
+                + "    String summary;\n"
+                + "}\n"));
+
+        String codec = readGenerated("com/example/ForecastCodec.java");
+        assertTrue(codec.contains("public final class ForecastCodec implements "
+                + "com.mindmeapp.extensions.ExtensionPayloadCodec<com.example.Forecast>"));
+        assertTrue(codec.contains("return \"com.example.Forecast\";"));
+        assertTrue(codec.contains("com.mindmeapp.extensions.ExtensionData"
+                + ".registerPayloadCodec(INSTANCE);"));
+        // Encoded in declaration order, static and transient fields left out
+        assertInOrder(codec, "out.writeInt(value.temperature);",
+                "out.writeInt(value.alert ? 1 : 0);", "out.writeString(value.summary);");
+        assertFalse(codec.contains("sCount"));
+        assertFalse(codec.contains("mCache"));
+    }
+
+    @Test
+    public void nestedClassesGetAFlatCodecName() throws IOException {
+        assertProcessed(process("com.example.Weather", "package com.example;\n"
+                + "public class Weather {\n"
+                + "    @com.mindmeapp.extensions.ExtensionPayload\n"
+                + "    static class Forecast {\n"
+                + "        double precipitation;\n"
+                + "    }\n"
+                + "}\n"));
+
+        String codec = readGenerated("com/example/Weather_ForecastCodec.java");
+        assertTrue(codec.contains("ExtensionPayloadCodec<com.example.Weather.Forecast>"));
+        assertTrue(codec.contains("return \"com.example.Weather$Forecast\";"));
+    }
+
+    @Test
+    public void innerClassesAreRejected() {
+        assertError("Nested payload classes must be static and not private.",
+                "public class Weather {\n"
+                + "    @com.mindmeapp.extensions.ExtensionPayload\n"
+                + "    class Forecast {\n"
+                + "    }\n"
+                + "}\n");
+    }
+
+    @Test
+    public void privateNestedClassesAreRejected() {
+        assertError("Nested payload classes must be static and not private.",
+                "public class Weather {\n"
+                + "    @com.mindmeapp.extensions.ExtensionPayload\n"
+                + "    private static class Forecast {\n"
+                + "    }\n"
+                + "}\n");
+    }
+
+    @Test
+    public void privateFieldsAreRejected() {
+        assertError("Payload fields must not be private.",
+                "@com.mindmeapp.extensions.ExtensionPayload\n"
+                + "public class Weather {\n"
+                + "    private int temperature;\n"
+                + "}\n");
+    }
+
+    @Test
+    public void finalFieldsAreRejected() {
+        assertError("Payload fields must not be final.",
+                "@com.mindmeapp.extensions.ExtensionPayload\n"
+                + "public class Weather {\n"
+                + "    final int temperature = 0;\n"
+                + "}\n");
+    }
+
+    @Test
+    public void unsupportedFieldTypesAreRejected() {
+        assertError("Unsupported payload field type java.util.Date, use boolean, int, long, "
+                + "float, double or String.",
+                "@com.mindmeapp.extensions.ExtensionPayload\n"
+                + "public class Weather {\n"
+                + "    java.util.Date time;\n"
+                + "}\n");
+    }
+
+    @Test
+    public void classesWithoutNoArgConstructorAreRejected() {
+        assertError("Payload classes need a non-private no-argument constructor.",
+                "@com.mindmeapp.extensions.ExtensionPayload\n"
+                + "public class Weather {\n"
+                + "    int temperature;\n"
+                + "    Weather(int temperature) {\n"
+                + "        this.temperature = temperature;\n"
+                + "    }\n"
+                + "}\n");
+    }
+
+    @Test
+    public void onlyClassesCanBePayloads() {
+        assertError("@ExtensionPayload only applies to classes.",
+                "@com.mindmeapp.extensions.ExtensionPayload\n"
+                + "public interface Weather {\n"
+                + "}\n");
+    }
+
+    private void assertProcessed(boolean success) {
+        assertTrue(mDiagnostics.getDiagnostics().toString(), success);
+    }
+
+    /**
+     * Processes the given source of <code>Weather</code>, in the unnamed package, and checks that
+     * the given error, and only it, was reported and that no codec was generated.
+     */
+    private void assertError(String message, String source) {
+        assertFalse(process("Weather", source));
+
+        List<String> errors = new ArrayList<String>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : mDiagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic.getMessage(null));
+            }
+        }
+        assertEquals(Arrays.asList(message), errors);
+        assertEquals(0, new File(mFolder.getRoot(), "generated").list().length);
+    }
+
+    /**
+     * Runs the processor on the given class, the annotation and the stubs, and returns whether it
+     * succeeded.
+     */
+    private boolean process(String className, String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        File generated = new File(mFolder.getRoot(), "generated");
+        generated.mkdirs();
+        List<String> options = Arrays.asList("-proc:only",
+                "-s", generated.getPath(), "-d", mFolder.getRoot().getPath());
+        List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+        sources.add(new Source("com.mindmeapp.extensions.ExtensionPayload", ANNOTATION));
+        for (String[] stub : STUBS) {
+            sources.add(new Source(stub[0], stub[1]));
+        }
+        sources.add(new Source(className, source));
+
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, mDiagnostics,
+                options, null, sources);
+        task.setProcessors(Arrays.asList(new ExtensionPayloadProcessor()));
+        return task.call();
+    }
+
+    private String readGenerated(String path) throws IOException {
+        File file = new File(new File(mFolder.getRoot(), "generated"), path);
+        return new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+    }
+
+    private static void assertInOrder(String text, String... parts) {
+        int from = 0;
+        for (String part : parts) {
+            int index = text.indexOf(part, from);
+            assertTrue("Missing or out of order: " + part, index >= 0);
+            from = index + part.length();
+        }
+    }
+
+    private static final class Source extends SimpleJavaFileObject {
+        private final String mContent;
+
+        Source(String className, String content) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension),
+                    Kind.SOURCE);
+            mContent = content;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return mContent;
+        }
+    }
+}
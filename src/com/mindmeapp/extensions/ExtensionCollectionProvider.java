@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.BaseColumns;
+
+/**
+ * A {@link ContentProvider} serving collections of items, such as the messages of an inbox or the
+ * events of an agenda, one page at a time. Publishing hundreds of items in an
+ * {@link ExtensionData} doesn't scale, so the data only carries the collection URI, set with
+ * {@link ExtensionData#collectionUri(Uri)}, and a version stamp, set with
+ * {@link ExtensionData#collectionVersion(long)}. The main app then queries only the rows it
+ * shows, and only when the version changed.
+ *
+ * <p>
+ * Subclasses implement {@link #getItemCount(Uri)} and {@link #queryItems(Uri, String[], int, int)}
+ * and should return the standard columns below where they apply, so the main app can render
+ * items without knowing the extension. Each collection is identified by a name, see
+ * {@link #buildCollectionUri(Context, String)}.
+ *
+ * <p>
+ * The main app requests a page with {@link #pageUri(Uri, int, int)}. The returned cursor reports
+ * in {@link Cursor#getExtras()} the total number of items and the version the page was read
+ * from, so a change in the middle of paging can be detected.
+ *
+ * <p>
+ * To use it, declare your subclass in your manifest with an authority made of your package name
+ * followed by {@link #AUTHORITY_SUFFIX}:
+ *
+ * <pre class="prettyprint">
+ * &lt;provider android:name="com.example.myextension.InboxProvider"
+ *     android:authorities="com.example.myextension.mindme.collections"
+ *     android:exported="true"
+ *     android:readPermission="com.mindmeapp.extensions.permission.READ_EXTENSION_DATA" /&gt;
+ * </pre>
+ */
+public abstract class ExtensionCollectionProvider extends ContentProvider {
+    /**
+     * Appended to the package name of the extension to form the authority of this provider.
+     */
+    public static final String AUTHORITY_SUFFIX = ".mindme.collections";
+
+    /**
+     * Query parameters of {@link #pageUri(Uri, int, int)}.
+     */
+    public static final String PARAM_OFFSET = "offset";
+    public static final String PARAM_LIMIT = "limit";
+
+    /**
+     * Page size used when the main app doesn't ask for one.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    /**
+     * Largest page served at once, keeping each cursor window small.
+     */
+    public static final int MAX_PAGE_SIZE = 200;
+
+    /**
+     * Standard columns of collection items. Only {@link #COLUMN_ID} is required.
+     */
+    public static final String COLUMN_ID = BaseColumns._ID;
+    public static final String COLUMN_TITLE = "title";
+    public static final String COLUMN_TEXT = "text";
+    public static final String COLUMN_ICON_URI = "icon_uri";
+    public static final String COLUMN_TIME_MILLIS = "time_millis";
+
+    /**
+     * Keys of the {@link Cursor#getExtras()} of a page.
+     */
+    public static final String EXTRA_TOTAL_COUNT = "com.mindmeapp.extensions.extra.TOTAL_COUNT";
+    public static final String EXTRA_VERSION = "com.mindmeapp.extensions.extra.VERSION";
+    public static final String EXTRA_OFFSET = "com.mindmeapp.extensions.extra.OFFSET";
+
+    private static final String PATH_COLLECTIONS = "collections";
+
+    /**
+     * Returns the content URI of the collection with the given name, to be published through
+     * {@link ExtensionData#collectionUri(Uri)}.
+     */
+    public static Uri buildCollectionUri(Context context, String name) {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(context.getPackageName() + AUTHORITY_SUFFIX)
+                .appendPath(PATH_COLLECTIONS)
+                .appendPath(name)
+                .build();
+    }
+
+    /**
+     * Returns a URI for the page of the given collection starting at <code>offset</code> and
+     * holding at most <code>limit</code> items. Used by the main app to query the rows it shows.
+     */
+    public static Uri pageUri(Uri collectionUri, int offset, int limit) {
+        return collectionUri.buildUpon()
+                .clearQuery()
+                .appendQueryParameter(PARAM_OFFSET, String.valueOf(offset))
+                .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    /**
+     * Returns the name of the collection the given URI refers to, as passed to
+     * {@link #buildCollectionUri(Context, String)}.
+     */
+    protected static String getCollectionName(Uri uri) {
+        return uri.getLastPathSegment();
+    }
+
+    /**
+     * Returns the number of items in the given collection.
+     *
+     * @param collectionUri The collection URI, without paging parameters.
+     */
+    protected abstract int getItemCount(Uri collectionUri);
+
+    /**
+     * Returns the items of the given collection in the range
+     * <code>[offset, offset + limit)</code>, in display order. Implementations should only read
+     * that range, e.g. with <code>LIMIT</code> and <code>OFFSET</code> clauses, rather than
+     * reading everything and skipping rows.
+     *
+     * @param collectionUri The collection URI, without paging parameters.
+     * @param projection    The columns requested by the main app, or null for all columns.
+     * @param offset        The index of the first item, never negative.
+     * @param limit         The maximum number of items, between 1 and {@link #MAX_PAGE_SIZE}.
+     */
+    protected abstract Cursor queryItems(Uri collectionUri, String[] projection, int offset,
+            int limit);
+
+    /**
+     * Returns the current version of the given collection, which should be the value last
+     * published through {@link ExtensionData#collectionVersion(long)}. Default 0.
+     */
+    protected long getCollectionVersion(Uri collectionUri) {
+        return 0;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        Uri collectionUri = uri.buildUpon().clearQuery().build();
+        int offset = Math.max(0, parseInt(uri.getQueryParameter(PARAM_OFFSET), 0));
+        int limit = parseInt(uri.getQueryParameter(PARAM_LIMIT), DEFAULT_PAGE_SIZE);
+        limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+        long version = getCollectionVersion(collectionUri);
+        Cursor items = queryItems(collectionUri, projection, offset, limit);
+        if (items == null) {
+            return null;
+        }
+
+        Bundle extras = new Bundle();
+        extras.putInt(EXTRA_TOTAL_COUNT, getItemCount(collectionUri));
+        extras.putLong(EXTRA_VERSION, version);
+        extras.putInt(EXTRA_OFFSET, offset);
+        return new PageCursor(items, extras);
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.mindmeapp.extensions.collection";
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Extension collections are read-only.");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Extension collections are read-only.");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Extension collections are read-only.");
+    }
+
+    /**
+     * Adds the paging extras to the cursor returned by the subclass. Cursor.setExtras() is only
+     * available on recent platform versions.
+     */
+    private static final class PageCursor extends CursorWrapper {
+        private final Bundle mExtras;
+
+        PageCursor(Cursor cursor, Bundle extras) {
+            super(cursor);
+            mExtras = extras;
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+    }
+}
@@ -16,16 +16,38 @@
 
 package com.mindmeapp.extensions;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.net.Uri;
+import android.os.BadParcelableException;
 import android.os.Bundle;
 import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.text.TextUtils;
+import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
 import android.widget.RemoteViews;
 
 /**
@@ -71,13 +93,45 @@ import android.widget.RemoteViews;
  * @see MindMeExtension#publishUpdate(ExtensionData)
  */
 public class ExtensionData implements Parcelable {
+    private static final String TAG = "ExtensionData";
 	
     /**
      * Since there might be a case where new versions of the app use extensions running
      * old versions of the protocol (and thus old versions of this class), we need a versioning
      * system for the parcels sent between the core app and its extensions.
      */
-    public static final int PARCELABLE_VERSION = 1;
+    public static final int PARCELABLE_VERSION = 6;
+
+    /**
+     * Presence bits written at the start of version 2 parcels.
+     */
+    private static final int PRESENT_VISIBLE = 1 << 0;
+    private static final int PRESENT_ICON_URI = 1 << 1;
+    private static final int PRESENT_STATUS_TO_DISPLAY = 1 << 2;
+    private static final int PRESENT_STATUS_TO_SPEAK = 1 << 3;
+    private static final int PRESENT_LANGUAGE_TO_SPEAK = 1 << 4;
+    private static final int PRESENT_VIEWS_TO_DISPLAY = 1 << 5;
+    private static final int PRESENT_CONTENT_DESCRIPTION = 1 << 6;
+    private static final int PRESENT_BACKGROUND_URI = 1 << 7;
+
+    /**
+     * Section ids of version 6 parcels. Each section is written as its id, its length in bytes and
+     * its contents, and the list ends with {@link #SECTION_END}. Readers skip sections they don't
+     * know, so newer versions add fields in new sections instead of changing the layout.
+     */
+    private static final int SECTION_END = 0;
+    private static final int SECTION_CORE = 1;
+    private static final int SECTION_VIEWS = 2;
+    private static final int SECTION_PAYLOAD = 3;
+    private static final int SECTION_EXTRAS = 4;
+
+    /**
+     * Heavy fields whose section is kept as raw bytes until first accessed, as indexes of
+     * {@link #mLazySections}.
+     */
+    private static final int LAZY_VIEWS = 0;
+    private static final int LAZY_EXTRAS = 1;
+    private static final int LAZY_FIELD_COUNT = 2;
 
     private static final String KEY_VISIBLE = "visible";
     private static final String KEY_ICON = "icon";
@@ -89,6 +143,13 @@ public class ExtensionData implements Parcelable {
     private static final String KEY_CONTENT_DESCRIPTION = "content_description";
     private static final String KEY_BACKGROUND = "background";
     private static final String KEY_BACKGROUND_URI = "background_uri";
+    private static final String KEY_COLLECTION_URI = "collection_uri";
+    private static final String KEY_COLLECTION_VERSION = "collection_version";
+    private static final String KEY_PAYLOAD_TYPE = "payload_type";
+    private static final String KEY_PAYLOAD = "payload";
+    // Parcel form of a payload whose codec isn't registered, in base64
+    private static final String KEY_PAYLOAD_BYTES = "payload_bytes";
+    private static final String KEY_EXTRAS = "extras";
     
     /**
      * These keys are used when serializing the Locale object in its decomposed elements
@@ -112,6 +173,35 @@ public class ExtensionData implements Parcelable {
     public static final int MAX_CONTENT_DESCRIPTION_LENGTH = 32 +
             MAX_STATUS_TO_DISPLAY_LENGTH + MAX_STATUS_TO_SPEAK_LENGTH;
 
+    /**
+     * The maximum size of data read by {@link #readFromFile(ParcelFileDescriptor, int)}, in bytes.
+     */
+    public static final int MAX_FILE_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Field mask bits used by {@link #changedFields(ExtensionData)} and
+     * {@link #applyDelta(int, ExtensionData)} to describe which fields of the data changed.
+     */
+    public static final int FIELD_VISIBLE = 1 << 0;
+    public static final int FIELD_ICON = 1 << 1;
+    public static final int FIELD_ICON_URI = 1 << 2;
+    public static final int FIELD_STATUS_TO_DISPLAY = 1 << 3;
+    public static final int FIELD_STATUS_TO_SPEAK = 1 << 4;
+    public static final int FIELD_LANGUAGE_TO_SPEAK = 1 << 5;
+    public static final int FIELD_VIEWS_TO_DISPLAY = 1 << 6;
+    public static final int FIELD_CONTENT_DESCRIPTION = 1 << 7;
+    public static final int FIELD_BACKGROUND = 1 << 8;
+    public static final int FIELD_BACKGROUND_URI = 1 << 9;
+    public static final int FIELD_COLLECTION_URI = 1 << 10;
+    public static final int FIELD_COLLECTION_VERSION = 1 << 11;
+    public static final int FIELD_PAYLOAD = 1 << 12;
+    public static final int FIELD_EXTRAS = 1 << 13;
+
+    /**
+     * Field mask with the bits of all fields set.
+     */
+    public static final int FIELD_ALL = (1 << 14) - 1;
+
     private boolean mVisible = false;
     private int mIcon = 0;
     private Uri mIconUri = null;
@@ -122,10 +212,115 @@ public class ExtensionData implements Parcelable {
     private String mContentDescription = null;
     private int mBackground = 0;
     private Uri mBackgroundUri = null;
+    private Uri mCollectionUri = null;
+    private long mCollectionVersion = 0;
+    private String mPayloadType = null;
+    // Encoded by the codec of mPayloadType and never changed in place, so copies share it
+    private byte[] mPayload = null;
+    private ExtensionExtras mExtras = null;
+
+    private int mParcelVersion = PARCELABLE_VERSION;
+
+    /**
+     * Sections of heavy fields read from a version 6 parcel but not decoded yet, null for fields
+     * that are decoded. Guarded by {@link #mLazyLock}, so that getters, which decode pending
+     * fields, can be called from several threads at once.
+     */
+    private final Object mLazyLock = new Object();
+    private LazySection[] mLazySections;
+
+    private static final Object sPoolSync = new Object();
+    private static ExtensionData sPool;
+    private static int sPoolSize = 0;
+    private static final int MAX_POOL_SIZE = 10;
+    private ExtensionData mNext;
+
+    /**
+     * Codecs used to convert payloads to and from JSON, keyed by {@link ExtensionPayloadCodec#id()}.
+     */
+    private static final Map<String, ExtensionPayloadCodec<?>> sPayloadCodecs =
+            new ConcurrentHashMap<String, ExtensionPayloadCodec<?>>();
+
+    /**
+     * Cached hash of all fields but the extras, which {@link #fingerprint()} adds on every call
+     * since they can be changed in place. Invalidated by every setter.
+     */
+    private long mFingerprint;
+    private boolean mFingerprintValid = false;
 
     public ExtensionData() {
     }
 
+    /**
+     * Returns an instance from a small global pool, avoiding an allocation when one is available.
+     * Extensions that publish every few seconds can obtain an instance, fill and publish it and
+     * then {@link #recycle()} it, keeping steady-state publishing free of garbage.
+     */
+    public static ExtensionData obtain() {
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                ExtensionData data = sPool;
+                sPool = data.mNext;
+                data.mNext = null;
+                sPoolSize--;
+                return data;
+            }
+        }
+        return new ExtensionData();
+    }
+
+    /**
+     * Resets this object and returns it to the pool used by {@link #obtain()}. The object must not
+     * be used after this call. {@link MindMeExtension#publishUpdate(ExtensionData)} keeps its own
+     * copy, so data can be recycled as soon as it returns.
+     */
+    public void recycle() {
+        reset();
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * Resets all fields of this object to their default values.
+     *
+     * @return This object, for chaining.
+     */
+    public ExtensionData reset() {
+        mVisible = false;
+        mIcon = 0;
+        mIconUri = null;
+        mStatusToDisplay = null;
+        mStatusToSpeak = null;
+        mLanguageToSpeak = null;
+        mViewsToDisplay = null;
+        mContentDescription = null;
+        mBackground = 0;
+        mBackgroundUri = null;
+        mCollectionUri = null;
+        mCollectionVersion = 0;
+        mPayloadType = null;
+        mPayload = null;
+        mExtras = null;
+        releaseLazyFields();
+        mParcelVersion = PARCELABLE_VERSION;
+        mFingerprintValid = false;
+        return this;
+    }
+
+    /**
+     * Makes this object a copy of the given data, without allocating.
+     *
+     * @return This object, for chaining.
+     */
+    public ExtensionData copyFrom(ExtensionData other) {
+        return applyDelta(FIELD_ALL, other);
+    }
+
     /**
      * Returns whether or not the relevant extension should be visible (whether or not there is
      * relevant information to show to the user about the extension). Default false.
@@ -140,6 +335,7 @@ public class ExtensionData implements Parcelable {
      */
     public ExtensionData visible(boolean visible) {
         mVisible = visible;
+        mFingerprintValid = false;
         return this;
     }
 
@@ -162,6 +358,7 @@ public class ExtensionData implements Parcelable {
      */
     public ExtensionData icon(int icon) {
         mIcon = icon;
+        mFingerprintValid = false;
         return this;
     }
 
@@ -178,9 +375,12 @@ public class ExtensionData implements Parcelable {
      * using {@link android.content.ContentResolver#openFileDescriptor(android.net.Uri, String)} and
      * {@link android.graphics.BitmapFactory#decodeFileDescriptor(java.io.FileDescriptor)}. See the
      * {@link #icon(int) icon} method for guidelines on the styling of this bitmap.
+     *
+     * @see ExtensionImageProvider
      */
     public ExtensionData iconUri(Uri iconUri) {
         mIconUri = iconUri;
+        mFingerprintValid = false;
         return this;
     }
     
@@ -203,6 +403,7 @@ public class ExtensionData implements Parcelable {
      */
     public ExtensionData background(int background) {
         mBackground = background;
+        mFingerprintValid = false;
         return this;
     }
 
@@ -219,9 +420,11 @@ public class ExtensionData implements Parcelable {
      * using {@link android.content.ContentResolver#openFileDescriptor(android.net.Uri, String)} and
      * {@link android.graphics.BitmapFactory#decodeFileDescriptor(java.io.FileDescriptor)}. See the
      * {@link #background(int) background} method for guidelines on the styling of this bitmap.
+     * Use {@link ExtensionImageProvider} to avoid having the main app decode full-size photos.
      */
     public ExtensionData backgroundUri(Uri backgroundUri) {
     	mBackgroundUri = backgroundUri;
+        mFingerprintValid = false;
         return this;
     }    
 
@@ -243,6 +446,7 @@ public class ExtensionData implements Parcelable {
      */
     public ExtensionData statusToDisplay(String status) {
         mStatusToDisplay = status;
+        mFingerprintValid = false;
         return this;
     }
     
@@ -261,6 +465,7 @@ public class ExtensionData implements Parcelable {
      */  
     public ExtensionData statusToSpeak(String status) {
         mStatusToSpeak = status;
+        mFingerprintValid = false;
         return this;
     } 
     
@@ -275,10 +480,12 @@ public class ExtensionData implements Parcelable {
      */
     public ExtensionData languageToSpeak(Locale locale) {
         mLanguageToSpeak = locale;
+        mFingerprintValid = false;
         return this;
     }
     
     public RemoteViews viewsToDisplay() {
+        inflateLazyField(LAZY_VIEWS);
     	return mViewsToDisplay;
     }
     
@@ -291,6 +498,8 @@ public class ExtensionData implements Parcelable {
      */
     public ExtensionData viewsToDisplay(RemoteViews views) {
         mViewsToDisplay = views;
+        discardLazyField(LAZY_VIEWS);
+        mFingerprintValid = false;
         return this;
     }    
 
@@ -311,13 +520,169 @@ public class ExtensionData implements Parcelable {
      */
     public ExtensionData contentDescription(String contentDescription) {
         mContentDescription = contentDescription;
+        mFingerprintValid = false;
         return this;
     }
     
     /**
-     * Serializes the contents of this object to JSON.
+     * Returns the content:// URI of the collection of items behind this data. Default null.
+     */
+    public Uri collectionUri() {
+        return mCollectionUri;
+    }
+
+    /**
+     * Sets the content:// URI of a collection of items, such as the messages of an inbox, that the
+     * main app can page through instead of receiving them all in this object. The URI must be
+     * served by an {@link ExtensionCollectionProvider}. Default null.
+     *
+     * @see #collectionVersion(long)
+     * @since Protocol Version 3
+     */
+    public ExtensionData collectionUri(Uri collectionUri) {
+        mCollectionUri = collectionUri;
+        mFingerprintValid = false;
+        return this;
+    }
+
+    /**
+     * Returns the version stamp of the collection behind this data. Default 0.
+     */
+    public long collectionVersion() {
+        return mCollectionVersion;
+    }
+
+    /**
+     * Sets the version stamp of the collection set with {@link #collectionUri(Uri)}. Change it
+     * whenever the items change, for example to the time of the last modification; the main app
+     * only queries the collection again when the stamp differs from the one it has seen. Default
+     * 0.
+     *
+     * @since Protocol Version 3
+     */
+    public ExtensionData collectionVersion(long collectionVersion) {
+        mCollectionVersion = collectionVersion;
+        mFingerprintValid = false;
+        return this;
+    }
+
+    /**
+     * Returns the {@link ExtensionPayloadCodec#id() id} of the codec the payload of this data was
+     * encoded with, or null if there is no payload. Default null.
+     */
+    public String payloadType() {
+        return mPayloadType;
+    }
+
+    /**
+     * Sets an extension-specific payload, for data the main app understands beyond the standard
+     * fields, encoded with the codec generated for its {@link ExtensionPayload} class. The value
+     * is encoded right away, so changing it afterwards doesn't change this data. A null value
+     * removes the payload. Default null.
+     *
+     * @since Protocol Version 4
+     */
+    public <T> ExtensionData payload(ExtensionPayloadCodec<T> codec, T value) {
+        if (value == null) {
+            mPayloadType = null;
+            mPayload = null;
+        } else {
+            registerPayloadCodec(codec);
+            mPayload = encodePayload(codec, value);
+            mPayloadType = codec.id();
+        }
+        mFingerprintValid = false;
+        return this;
+    }
+
+    /**
+     * Returns the payload decoded with the codec generated for its {@link ExtensionPayload} class,
+     * or null if there is no payload or it was encoded with another codec. Each call decodes a new
+     * instance.
+     */
+    public <T> T payload(ExtensionPayloadCodec<T> codec) {
+        if (mPayloadType == null || !mPayloadType.equals(codec.id())) {
+            return null;
+        }
+        return decodePayload(codec, mPayload);
+    }
+
+    /**
+     * Makes the given codec known to the JSON methods of this class, which convert payloads with
+     * the codec registered for their {@link #payloadType()}. Generated codecs register themselves
+     * when their class is loaded, and so does any codec passed to
+     * {@link #payload(ExtensionPayloadCodec, Object)}. Payloads without a registered codec are
+     * written to JSON in their parcel form, and JSON payloads without one are dropped, so processes
+     * converting payloads they didn't create should register the codecs first.
+     */
+    public static void registerPayloadCodec(ExtensionPayloadCodec<?> codec) {
+        sPayloadCodecs.put(codec.id(), codec);
+    }
+
+    /**
+     * Returns the output of {@link ExtensionPayloadCodec#writeToParcel(Object, Parcel)} for the
+     * given value, which is what the payload is stored, compared and sent as.
+     */
+    private static <T> byte[] encodePayload(ExtensionPayloadCodec<T> codec, T value) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            codec.writeToParcel(value, parcel);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static <T> T decodePayload(ExtensionPayloadCodec<T> codec, byte[] payload) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(payload, 0, payload.length);
+            parcel.setDataPosition(0);
+            return codec.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static <T> void writePayloadJson(ExtensionPayloadCodec<T> codec, byte[] payload,
+            JsonWriter writer) throws IOException {
+        codec.writeJson(decodePayload(codec, payload), writer);
+    }
+
+    private static <T> byte[] readPayloadJson(ExtensionPayloadCodec<T> codec, JsonReader reader)
+            throws IOException {
+        return encodePayload(codec, codec.readJson(reader));
+    }
+
+    /**
+     * Returns the typed extras of this data. Default null.
+     */
+    public ExtensionExtras extras() {
+        inflateLazyField(LAZY_EXTRAS);
+        return mExtras;
+    }
+
+    /**
+     * Sets typed extras, such as progress values or timestamps, keyed by ids agreed on with the
+     * main app. Cheaper than a {@link #payload(ExtensionPayloadCodec, Object) payload} for a
+     * handful of numbers. Default null.
+     *
+     * @since Protocol Version 5
+     */
+    public ExtensionData extras(ExtensionExtras extras) {
+        mExtras = extras;
+        discardLazyField(LAZY_EXTRAS);
+        mFingerprintValid = false;
+        return this;
+    }
+
+    /**
+     * Serializes the contents of this object to JSON. The payload is converted with the codec
+     * registered for its type, see {@link #registerPayloadCodec(ExtensionPayloadCodec)}, or kept in
+     * its parcel form, in base64, if there is none.
      */
     public JSONObject serialize() throws JSONException {
+        inflateLazyField(LAZY_EXTRAS);
         JSONObject data = new JSONObject();
         data.put(KEY_VISIBLE, mVisible);
         data.put(KEY_ICON, mIcon);
@@ -327,45 +692,305 @@ public class ExtensionData implements Parcelable {
         data.put(KEY_CONTENT_DESCRIPTION, mContentDescription);
         data.put(KEY_BACKGROUND, mBackground);
         data.put(KEY_BACKGROUND_URI, (mBackgroundUri == null ? null : mBackgroundUri.toString()));
+        data.put(KEY_COLLECTION_URI, (mCollectionUri == null ? null : mCollectionUri.toString()));
+        data.put(KEY_COLLECTION_VERSION, mCollectionVersion);
+        data.put(KEY_EXTRAS, (mExtras == null ? null : mExtras.serialize()));
+        ExtensionPayloadCodec<?> payloadCodec = mPayloadType == null
+                ? null : sPayloadCodecs.get(mPayloadType);
+        if (payloadCodec != null) {
+            StringWriter payload = new StringWriter();
+            try {
+                JsonWriter writer = new JsonWriter(payload);
+                writePayloadJson(payloadCodec, mPayload, writer);
+                writer.flush();
+            } catch (IOException e) {
+                throw new JSONException("Couldn't write payload: " + e.getMessage());
+            }
+            data.put(KEY_PAYLOAD_TYPE, mPayloadType);
+            data.put(KEY_PAYLOAD, new JSONObject(payload.toString()));
+        } else if (mPayloadType != null) {
+            // Keep the payload as is, to be converted by a process that registered its codec
+            data.put(KEY_PAYLOAD_TYPE, mPayloadType);
+            data.put(KEY_PAYLOAD_BYTES, Base64.encodeToString(mPayload, Base64.NO_WRAP));
+        }
         
         //Decompose Locale object
-        data.put(KEY_LOCALE_LANGUAGE, mLanguageToSpeak.getLanguage());
-        data.put(KEY_LOCALE_COUNTRY, mLanguageToSpeak.getCountry());
-        
+        if (mLanguageToSpeak != null) {
+            data.put(KEY_LOCALE_LANGUAGE, mLanguageToSpeak.getLanguage());
+            data.put(KEY_LOCALE_COUNTRY, mLanguageToSpeak.getCountry());
+        }
+
         return data;
     }
     
     /**
      * Deserializes the given JSON representation of extension data, populating this
-     * object.
+     * object. Absent and null values read as null, like in {@link #readJson(JsonReader)}.
      */
     public void deserialize(JSONObject data) throws JSONException {
         this.mVisible = data.optBoolean(KEY_VISIBLE);
         this.mIcon = data.optInt(KEY_ICON);
-        String iconUriString = data.optString(KEY_ICON_URI);
-        this.mIconUri = TextUtils.isEmpty(iconUriString) ? null : Uri.parse(iconUriString);
-        this.mStatusToDisplay = data.optString(KEY_STATUS_TO_DISPLAY);
-        this.mStatusToSpeak = data.optString(KEY_STATUS_TO_SPEAK);
-        this.mContentDescription = data.optString(KEY_CONTENT_DESCRIPTION);
+        String iconUriString = optString(data, KEY_ICON_URI);
+        this.mIconUri = parseUri(this.mIconUri, iconUriString);
+        this.mStatusToDisplay = optString(data, KEY_STATUS_TO_DISPLAY);
+        this.mStatusToSpeak = optString(data, KEY_STATUS_TO_SPEAK);
+        this.mContentDescription = optString(data, KEY_CONTENT_DESCRIPTION);
         this.mBackground = data.optInt(KEY_BACKGROUND);
-        String backgroundUriString = data.optString(KEY_BACKGROUND_URI);
-        this.mBackgroundUri = TextUtils.isEmpty(backgroundUriString) ? null : Uri.parse(backgroundUriString);
-        
-        //Build back the Locale object
-        String language = data.optString(KEY_LOCALE_LANGUAGE);
-        String country = data.optString(KEY_LOCALE_COUNTRY);
-        if (TextUtils.isEmpty(country)) {
-        	this.mLanguageToSpeak = new Locale(language);
-        } else {
-        	this.mLanguageToSpeak = new Locale(language, country);
+        String backgroundUriString = optString(data, KEY_BACKGROUND_URI);
+        this.mBackgroundUri = parseUri(this.mBackgroundUri, backgroundUriString);
+        this.mCollectionUri = parseUri(this.mCollectionUri, optString(data, KEY_COLLECTION_URI));
+        this.mCollectionVersion = data.optLong(KEY_COLLECTION_VERSION);
+        JSONObject extras = data.optJSONObject(KEY_EXTRAS);
+        this.mExtras = extras == null ? null : ExtensionExtras.deserialize(extras);
+        discardLazyField(LAZY_EXTRAS);
+        String payloadType = optString(data, KEY_PAYLOAD_TYPE);
+        ExtensionPayloadCodec<?> payloadCodec = payloadType == null
+                ? null : sPayloadCodecs.get(payloadType);
+        JSONObject payload = data.optJSONObject(KEY_PAYLOAD);
+        this.mPayloadType = null;
+        this.mPayload = null;
+        if (payloadCodec != null && payload != null) {
+            try {
+                this.mPayload = readPayloadJson(payloadCodec,
+                        new JsonReader(new StringReader(payload.toString())));
+            } catch (IOException e) {
+                throw new JSONException("Couldn't read payload: " + e.getMessage());
+            }
+            this.mPayloadType = payloadType;
+        } else if (payloadType != null && !data.isNull(KEY_PAYLOAD_BYTES)) {
+            try {
+                this.mPayload = Base64.decode(data.getString(KEY_PAYLOAD_BYTES), Base64.NO_WRAP);
+            } catch (IllegalArgumentException e) {
+                throw new JSONException("Couldn't read payload bytes: " + e.getMessage());
+            }
+            this.mPayloadType = payloadType;
+        } else if (payload != null) {
+            Log.w(TAG, "Dropping JSON payload of unregistered codec " + payloadType + ".");
         }
         
+        //Build back the Locale object
+        String language = optString(data, KEY_LOCALE_LANGUAGE);
+        String country = optString(data, KEY_LOCALE_COUNTRY);
+        this.mLanguageToSpeak = TextUtils.isEmpty(language)
+                ? null : toLocale(this.mLanguageToSpeak, language, country, "");
+        this.mFingerprintValid = false;
     }    
 
+    /**
+     * Returns the string value of the given key, or null if it is absent or null, as
+     * {@link #readJson(JsonReader)} reads it. {@link JSONObject#optString(String)} would return
+     * an empty string, or "null" for a null value.
+     */
+    private static String optString(JSONObject data, String key) {
+        return data.isNull(key) ? null : data.optString(key);
+    }
+
+    /**
+     * Writes the contents of this object as a JSON object to the given stream, using the same
+     * representation as {@link #serialize()} without building an intermediate
+     * {@link JSONObject}. Null fields are omitted, and payloads without a registered codec are kept
+     * in their parcel form as well.
+     */
+    public void writeJson(JsonWriter writer) throws IOException {
+        inflateLazyField(LAZY_EXTRAS);
+        writer.beginObject();
+        writer.name(KEY_VISIBLE).value(mVisible);
+        writer.name(KEY_ICON).value(mIcon);
+        if (mIconUri != null) {
+            writer.name(KEY_ICON_URI).value(mIconUri.toString());
+        }
+        if (mStatusToDisplay != null) {
+            writer.name(KEY_STATUS_TO_DISPLAY).value(mStatusToDisplay);
+        }
+        if (mStatusToSpeak != null) {
+            writer.name(KEY_STATUS_TO_SPEAK).value(mStatusToSpeak);
+        }
+        if (mContentDescription != null) {
+            writer.name(KEY_CONTENT_DESCRIPTION).value(mContentDescription);
+        }
+        writer.name(KEY_BACKGROUND).value(mBackground);
+        if (mBackgroundUri != null) {
+            writer.name(KEY_BACKGROUND_URI).value(mBackgroundUri.toString());
+        }
+        if (mCollectionUri != null) {
+            writer.name(KEY_COLLECTION_URI).value(mCollectionUri.toString());
+        }
+        if (mCollectionVersion != 0) {
+            writer.name(KEY_COLLECTION_VERSION).value(mCollectionVersion);
+        }
+        if (mExtras != null) {
+            writer.name(KEY_EXTRAS);
+            mExtras.writeJson(writer);
+        }
+        ExtensionPayloadCodec<?> payloadCodec = mPayloadType == null
+                ? null : sPayloadCodecs.get(mPayloadType);
+        if (payloadCodec != null) {
+            // The type comes first, readers need it to decode the payload
+            writer.name(KEY_PAYLOAD_TYPE).value(mPayloadType);
+            writer.name(KEY_PAYLOAD);
+            writePayloadJson(payloadCodec, mPayload, writer);
+        } else if (mPayloadType != null) {
+            // Keep the payload as is, to be converted by a process that registered its codec
+            writer.name(KEY_PAYLOAD_TYPE).value(mPayloadType);
+            writer.name(KEY_PAYLOAD_BYTES)
+                    .value(Base64.encodeToString(mPayload, Base64.NO_WRAP));
+        }
+        if (mLanguageToSpeak != null) {
+            writer.name(KEY_LOCALE_LANGUAGE).value(mLanguageToSpeak.getLanguage());
+            writer.name(KEY_LOCALE_COUNTRY).value(mLanguageToSpeak.getCountry());
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Reads the next JSON object from the given stream, populating this object. Accepts the
+     * output of both {@link #writeJson(JsonWriter)} and {@link #serialize()}. Fields missing from
+     * the JSON object are reset to their default values, except for {@link #viewsToDisplay()}
+     * which has no JSON representation and is left untouched.
+     *
+     * <p>
+     * Payloads are converted with the codec {@link #registerPayloadCodec(ExtensionPayloadCodec)
+     * registered} for their type. Payloads kept in parcel form are read back as is, while JSON
+     * payloads of unregistered types are dropped with a warning.
+     */
+    public void readJson(JsonReader reader) throws IOException {
+        boolean visible = false;
+        int icon = 0;
+        String iconUriString = null;
+        String statusToDisplay = null;
+        String statusToSpeak = null;
+        String contentDescription = null;
+        int background = 0;
+        String backgroundUriString = null;
+        String collectionUriString = null;
+        long collectionVersion = 0;
+        ExtensionExtras extras = null;
+        String payloadType = null;
+        byte[] payload = null;
+        String payloadBytes = null;
+        String language = null;
+        String country = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (KEY_VISIBLE.equals(name)) {
+                visible = reader.nextBoolean();
+            } else if (KEY_ICON.equals(name)) {
+                icon = reader.nextInt();
+            } else if (KEY_ICON_URI.equals(name)) {
+                iconUriString = reader.nextString();
+            } else if (KEY_STATUS_TO_DISPLAY.equals(name)) {
+                statusToDisplay = reader.nextString();
+            } else if (KEY_STATUS_TO_SPEAK.equals(name)) {
+                statusToSpeak = reader.nextString();
+            } else if (KEY_CONTENT_DESCRIPTION.equals(name)) {
+                contentDescription = reader.nextString();
+            } else if (KEY_BACKGROUND.equals(name)) {
+                background = reader.nextInt();
+            } else if (KEY_BACKGROUND_URI.equals(name)) {
+                backgroundUriString = reader.nextString();
+            } else if (KEY_COLLECTION_URI.equals(name)) {
+                collectionUriString = reader.nextString();
+            } else if (KEY_COLLECTION_VERSION.equals(name)) {
+                collectionVersion = reader.nextLong();
+            } else if (KEY_EXTRAS.equals(name)) {
+                extras = ExtensionExtras.readJson(reader);
+            } else if (KEY_PAYLOAD_TYPE.equals(name)) {
+                payloadType = reader.nextString();
+            } else if (KEY_PAYLOAD.equals(name) && payloadType != null
+                    && sPayloadCodecs.containsKey(payloadType)) {
+                payload = readPayloadJson(sPayloadCodecs.get(payloadType), reader);
+            } else if (KEY_PAYLOAD.equals(name)) {
+                Log.w(TAG, "Dropping JSON payload of unregistered codec " + payloadType + ".");
+                reader.skipValue();
+            } else if (KEY_PAYLOAD_BYTES.equals(name)) {
+                payloadBytes = reader.nextString();
+            } else if (KEY_LOCALE_LANGUAGE.equals(name)) {
+                language = reader.nextString();
+            } else if (KEY_LOCALE_COUNTRY.equals(name)) {
+                country = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (payload == null && payloadType != null && payloadBytes != null) {
+            try {
+                payload = Base64.decode(payloadBytes, Base64.NO_WRAP);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Couldn't read payload bytes: " + e.getMessage());
+            }
+        }
+
+        this.mVisible = visible;
+        this.mIcon = icon;
+        this.mIconUri = parseUri(this.mIconUri, iconUriString);
+        this.mStatusToDisplay = statusToDisplay;
+        this.mStatusToSpeak = statusToSpeak;
+        this.mContentDescription = contentDescription;
+        this.mBackground = background;
+        this.mBackgroundUri = parseUri(this.mBackgroundUri, backgroundUriString);
+        this.mCollectionUri = parseUri(this.mCollectionUri, collectionUriString);
+        this.mCollectionVersion = collectionVersion;
+        this.mExtras = extras;
+        discardLazyField(LAZY_EXTRAS);
+        this.mPayloadType = payload != null ? payloadType : null;
+        this.mPayload = payload;
+        this.mLanguageToSpeak = TextUtils.isEmpty(language)
+                ? null : toLocale(this.mLanguageToSpeak, language, country, "");
+        this.mFingerprintValid = false;
+    }
+
+    /**
+     * Writes the given list as a JSON array to the given stream, one object per entry as
+     * written by {@link #writeJson(JsonWriter)}. Null entries are written as JSON nulls. The writer
+     * is flushed but not closed.
+     */
+    public static void writeJsonArray(Writer out, List<ExtensionData> dataList)
+            throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        for (ExtensionData data : dataList) {
+            if (data == null) {
+                writer.nullValue();
+            } else {
+                data.writeJson(writer);
+            }
+        }
+        writer.endArray();
+        writer.flush();
+    }
+
+    /**
+     * Reads a JSON array written by {@link #writeJsonArray(Writer, List)} from the given stream,
+     * decoding entries one at a time. The reader is not closed.
+     */
+    public static List<ExtensionData> readJsonArray(Reader in) throws IOException {
+        List<ExtensionData> dataList = new ArrayList<ExtensionData>();
+        JsonReader reader = new JsonReader(in);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                dataList.add(null);
+            } else {
+                ExtensionData data = new ExtensionData();
+                data.readJson(reader);
+                dataList.add(data);
+            }
+        }
+        reader.endArray();
+        return dataList;
+    }
+
     /**
      * Serializes the contents of this object to a {@link Bundle}.
      */
     public Bundle toBundle() {
+        inflateLazyFields();
         Bundle data = new Bundle();
         data.putBoolean(KEY_VISIBLE, mVisible);
         data.putInt(KEY_ICON, mIcon);
@@ -377,6 +1002,11 @@ public class ExtensionData implements Parcelable {
         data.putSerializable(KEY_LANGUAGE_TO_SPEAK, mLanguageToSpeak);
         data.putInt(KEY_BACKGROUND, mBackground);
         data.putString(KEY_BACKGROUND_URI, (mBackgroundUri == null ? null : mBackgroundUri.toString()));
+        data.putString(KEY_COLLECTION_URI, (mCollectionUri == null ? null : mCollectionUri.toString()));
+        data.putLong(KEY_COLLECTION_VERSION, mCollectionVersion);
+        data.putString(KEY_PAYLOAD_TYPE, mPayloadType);
+        data.putByteArray(KEY_PAYLOAD, mPayload);
+        data.putBundle(KEY_EXTRAS, (mExtras == null ? null : mExtras.toBundle()));
         return data;
     }
 
@@ -385,10 +1015,11 @@ public class ExtensionData implements Parcelable {
      * object.
      */
     public void fromBundle(Bundle src) {
+        releaseLazyFields();
         this.mVisible = src.getBoolean(KEY_VISIBLE, true);
         this.mIcon = src.getInt(KEY_ICON);
         String iconUriString = src.getString(KEY_ICON_URI);
-        this.mIconUri = TextUtils.isEmpty(iconUriString) ? null : Uri.parse(iconUriString);
+        this.mIconUri = parseUri(this.mIconUri, iconUriString);
         this.mStatusToDisplay = src.getString(KEY_STATUS_TO_DISPLAY);
         this.mStatusToSpeak = src.getString(KEY_STATUS_TO_SPEAK);
         this.mLanguageToSpeak = (Locale) src.getSerializable(KEY_LANGUAGE_TO_SPEAK);
@@ -396,7 +1027,16 @@ public class ExtensionData implements Parcelable {
         this.mContentDescription = src.getString(KEY_CONTENT_DESCRIPTION);
         this.mBackground = src.getInt(KEY_BACKGROUND);
         String backgroundUriString = src.getString(KEY_BACKGROUND_URI);
-        this.mBackgroundUri = TextUtils.isEmpty(backgroundUriString) ? null : Uri.parse(backgroundUriString);
+        this.mBackgroundUri = parseUri(this.mBackgroundUri, backgroundUriString);
+        this.mCollectionUri = parseUri(this.mCollectionUri, src.getString(KEY_COLLECTION_URI));
+        this.mCollectionVersion = src.getLong(KEY_COLLECTION_VERSION);
+        String payloadType = src.getString(KEY_PAYLOAD_TYPE);
+        byte[] payload = src.getByteArray(KEY_PAYLOAD);
+        this.mPayloadType = payload != null ? payloadType : null;
+        this.mPayload = payloadType != null ? payload : null;
+        Bundle extras = src.getBundle(KEY_EXTRAS);
+        this.mExtras = extras == null ? null : ExtensionExtras.fromBundle(extras);
+        this.mFingerprintValid = false;
     }
 
     /**
@@ -414,13 +1054,62 @@ public class ExtensionData implements Parcelable {
     };
 
     private ExtensionData(Parcel in) {
+        readFromParcel(in);
+    }
+
+    /**
+     * Reads data written by {@link #writeToParcel(Parcel, int)}, populating this object. Unlike
+     * {@link #CREATOR}, this lets hosts decode frequent updates into an existing instance.
+     */
+    public void readFromParcel(Parcel in) {
+        releaseLazyFields();
         int parcelableVersion = in.readInt();
-        
+        switch (parcelableVersion) {
+            case 1:
+                readFromParcelV1(in);
+                break;
+            case 2:
+                readFromParcelV2(in, true);
+                this.mCollectionUri = null;
+                this.mCollectionVersion = 0;
+                this.mPayloadType = null;
+                this.mPayload = null;
+                this.mExtras = null;
+                break;
+            case 3:
+                readFromParcelV2(in, true);
+                readFromParcelV3(in);
+                this.mPayloadType = null;
+                this.mPayload = null;
+                this.mExtras = null;
+                break;
+            case 4:
+                readFromParcelV2(in, true);
+                readFromParcelV3(in);
+                readFromParcelV4(in);
+                this.mExtras = null;
+                break;
+            case 5:
+                readFromParcelV2(in, true);
+                readFromParcelV3(in);
+                readFromParcelV4(in);
+                readFromParcelV5(in);
+                break;
+            case 6:
+            default:
+                // Later versions only add sections
+                readFromParcelV6(in);
+                break;
+        }
+        mFingerprintValid = false;
+    }
+
+    private void readFromParcelV1(Parcel in) {
         this.mVisible = (in.readInt() != 0);
         
         this.mIcon = in.readInt();
         String iconUriString = in.readString();
-        this.mIconUri = TextUtils.isEmpty(iconUriString) ? null : Uri.parse(iconUriString);
+        this.mIconUri = parseUri(this.mIconUri, iconUriString);
 
         this.mStatusToDisplay = in.readString();
         if (TextUtils.isEmpty(this.mStatusToDisplay)) {
@@ -440,17 +1129,280 @@ public class ExtensionData implements Parcelable {
         
         this.mBackground = in.readInt();
         String backgroundUriString = in.readString();
-        this.mBackgroundUri = TextUtils.isEmpty(backgroundUriString) ? null : Uri.parse(backgroundUriString);
+        this.mBackgroundUri = parseUri(this.mBackgroundUri, backgroundUriString);
+        this.mCollectionUri = null;
+        this.mCollectionVersion = 0;
+        this.mPayloadType = null;
+        this.mPayload = null;
+        this.mExtras = null;
+    }
+
+    /**
+     * @param withViews Whether the views are inlined, as in version 2 to 5 parcels.
+     */
+    private void readFromParcelV2(Parcel in, boolean withViews) {
+        int present = in.readInt();
+        this.mVisible = (present & PRESENT_VISIBLE) != 0;
+        this.mIcon = in.readInt();
+        this.mIconUri = (present & PRESENT_ICON_URI) != 0
+                ? parseUri(this.mIconUri, in.readString()) : null;
+        this.mStatusToDisplay = (present & PRESENT_STATUS_TO_DISPLAY) != 0 ? in.readString() : null;
+        this.mStatusToSpeak = (present & PRESENT_STATUS_TO_SPEAK) != 0 ? in.readString() : null;
+        if ((present & PRESENT_LANGUAGE_TO_SPEAK) != 0) {
+            String language = in.readString();
+            String country = in.readString();
+            String variant = in.readString();
+            this.mLanguageToSpeak = toLocale(this.mLanguageToSpeak, language, country, variant);
+        } else {
+            this.mLanguageToSpeak = null;
+        }
+        if (withViews) {
+            this.mViewsToDisplay = (present & PRESENT_VIEWS_TO_DISPLAY) != 0
+                    ? RemoteViews.CREATOR.createFromParcel(in) : null;
+        }
+        this.mContentDescription = (present & PRESENT_CONTENT_DESCRIPTION) != 0
+                ? in.readString() : null;
+        this.mBackground = in.readInt();
+        this.mBackgroundUri = (present & PRESENT_BACKGROUND_URI) != 0
+                ? parseUri(this.mBackgroundUri, in.readString()) : null;
+    }
+
+    /**
+     * Reads the fields version 3 appends to the version 2 layout.
+     */
+    private void readFromParcelV3(Parcel in) {
+        this.mCollectionUri = parseUri(this.mCollectionUri, in.readString());
+        this.mCollectionVersion = in.readLong();
+    }
+
+    /**
+     * Reads the payload version 4 appends to the version 3 layout, which version 6 puts in the
+     * payload section.
+     */
+    private void readFromParcelV4(Parcel in) {
+        String payloadType = in.readString();
+        byte[] payload = payloadType != null ? in.createByteArray() : null;
+        this.mPayloadType = payload != null ? payloadType : null;
+        this.mPayload = payload;
+    }
+
+    /**
+     * Reads the extras version 5 appends to the version 4 layout, reusing the current extras
+     * instance when there is one.
+     */
+    private void readFromParcelV5(Parcel in) {
+        if (in.readInt() == 0) {
+            this.mExtras = null;
+            return;
+        }
+        if (this.mExtras == null) {
+            this.mExtras = new ExtensionExtras();
+        }
+        this.mExtras.readFromParcel(in);
+    }
+
+    /**
+     * Reads the sections of a version 6 parcel. The core section is decoded right away, while the
+     * sections of heavy fields are only copied and decoded when the field is first accessed, so a
+     * host that only speaks {@link #statusToSpeak()} never unparcels the views. Absent sections
+     * leave their fields at the default value and unknown ones are skipped.
+     *
+     * @throws BadParcelableException If a section length points outside of the parcel.
+     */
+    private void readFromParcelV6(Parcel in) {
+        this.mViewsToDisplay = null;
+        this.mPayloadType = null;
+        this.mPayload = null;
+        this.mExtras = null;
+
+        boolean hasCore = false;
+        int section;
+        while ((section = in.readInt()) != SECTION_END) {
+            int length = in.readInt();
+            int start = in.dataPosition();
+            // Parcels come from other apps, a bad length must not loop or misread
+            if (length < 0 || length > in.dataSize() - start) {
+                throw new BadParcelableException("Invalid length " + length + " of section "
+                        + section + " at " + start + " in a parcel of " + in.dataSize()
+                        + " bytes.");
+            }
+            switch (section) {
+                case SECTION_CORE:
+                    readFromParcelV2(in, false);
+                    readFromParcelV3(in);
+                    hasCore = true;
+                    break;
+                case SECTION_VIEWS:
+                    deferLazyField(LAZY_VIEWS, in, start, length);
+                    break;
+                case SECTION_PAYLOAD:
+                    // Already encoded by its codec, copying the bytes is all decoding costs
+                    readFromParcelV4(in);
+                    break;
+                case SECTION_EXTRAS:
+                    deferLazyField(LAZY_EXTRAS, in, start, length);
+                    break;
+                default:
+                    // Written by a newer version of this class
+                    break;
+            }
+            in.setDataPosition(start + length);
+        }
+
+        if (!hasCore) {
+            // Don't keep the values of a previous read
+            this.mVisible = false;
+            this.mIcon = 0;
+            this.mIconUri = null;
+            this.mStatusToDisplay = null;
+            this.mStatusToSpeak = null;
+            this.mLanguageToSpeak = null;
+            this.mContentDescription = null;
+            this.mBackground = 0;
+            this.mBackgroundUri = null;
+            this.mCollectionUri = null;
+            this.mCollectionVersion = 0;
+        }
+    }
+
+    private void deferLazyField(int field, Parcel in, int start, int length) {
+        setLazySection(field, new LazySection(in, start, length));
+    }
+
+    private void setLazySection(int field, LazySection section) {
+        LazySection previous;
+        synchronized (mLazyLock) {
+            if (mLazySections == null) {
+                mLazySections = new LazySection[LAZY_FIELD_COUNT];
+            }
+            previous = mLazySections[field];
+            mLazySections[field] = section;
+        }
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Shares the pending section of the given field of <code>source</code> with this object, and
+     * returns whether there was one. Used by copies, which thus never decode heavy fields.
+     */
+    private boolean copyLazySection(int field, ExtensionData source) {
+        LazySection section;
+        synchronized (source.mLazyLock) {
+            section = source.mLazySections == null ? null : source.mLazySections[field];
+            if (section == null) {
+                return false;
+            }
+            section.retain();
+        }
+        setLazySection(field, section);
+        return true;
+    }
+
+    /**
+     * Decodes the given heavy field if it is still pending.
+     */
+    private void inflateLazyField(int field) {
+        synchronized (mLazyLock) {
+            LazySection section = mLazySections == null ? null : mLazySections[field];
+            if (section == null) {
+                return;
+            }
+
+            switch (field) {
+                case LAZY_VIEWS:
+                    mViewsToDisplay = section.views();
+                    break;
+                case LAZY_EXTRAS:
+                    mExtras = section.extras();
+                    break;
+            }
+            mLazySections[field] = null;
+            section.release();
+        }
+    }
+
+    /**
+     * Decodes all pending heavy fields, before code that reads the fields directly.
+     */
+    private void inflateLazyFields() {
+        for (int field = 0; field < LAZY_FIELD_COUNT; field++) {
+            inflateLazyField(field);
+        }
+    }
+
+    /**
+     * Forgets the raw bytes of the given field, e.g. because it was set to a new value.
+     */
+    private void discardLazyField(int field) {
+        setLazySection(field, null);
+    }
+
+    private void releaseLazyFields() {
+        for (int field = 0; field < LAZY_FIELD_COUNT; field++) {
+            discardLazyField(field);
+        }
+    }
+
+    /**
+     * Returns what {@link #viewsToDisplay()} is compared by, without decoding a pending section:
+     * the views, or the pending section while no copy sharing it decoded it yet.
+     */
+    private Object viewsIdentity() {
+        synchronized (mLazyLock) {
+            LazySection section = mLazySections == null ? null : mLazySections[LAZY_VIEWS];
+            if (section == null) {
+                return mViewsToDisplay;
+            }
+            RemoteViews views = section.decodedViews();
+            return views != null ? views : section;
+        }
     }
 
     @Override
     public void writeToParcel(Parcel parcel, int i) {
         /**
-         * NOTE: When adding fields in the process of updating this API, make sure to bump
+         * NOTE: When adding fields in the process of updating this API, add them in a new
+         * section of the version 6 layout, which older readers skip, and bump
          * {@link #PARCELABLE_VERSION}.
          */
-        parcel.writeInt(PARCELABLE_VERSION);
-        // Version 1 below
+        if (mParcelVersion < 6) {
+            // Older layouts inline every field
+            inflateLazyFields();
+        }
+
+        parcel.writeInt(mParcelVersion);
+        switch (mParcelVersion) {
+            case 1:
+                writeToParcelV1(parcel, i);
+                break;
+            case 2:
+                writeToParcelV2(parcel, i, true);
+                break;
+            case 3:
+                writeToParcelV2(parcel, i, true);
+                writeToParcelV3(parcel);
+                break;
+            case 4:
+                writeToParcelV2(parcel, i, true);
+                writeToParcelV3(parcel);
+                writeToParcelV4(parcel);
+                break;
+            case 5:
+                writeToParcelV2(parcel, i, true);
+                writeToParcelV3(parcel);
+                writeToParcelV4(parcel);
+                writeToParcelV5(parcel, i);
+                break;
+            case 6:
+            default:
+                writeToParcelV6(parcel, i);
+                break;
+        }
+    }
+
+    private void writeToParcelV1(Parcel parcel, int i) {
         parcel.writeInt(mVisible ? 1 : 0);
         parcel.writeInt(mIcon);
         parcel.writeString(mIconUri == null ? "" : mIconUri.toString());
@@ -463,39 +1415,492 @@ public class ExtensionData implements Parcelable {
         parcel.writeString(mBackgroundUri == null ? "" : mBackgroundUri.toString());
     }
 
+    /**
+     * Version 2 avoids Java serialization for the locale and replaces empty strings and null
+     * objects by bits in a leading presence mask, so absent fields cost nothing on the wire.
+     */
+    private void writeToParcelV2(Parcel parcel, int i, boolean withViews) {
+        int present = 0;
+        if (mVisible) {
+            present |= PRESENT_VISIBLE;
+        }
+        if (mIconUri != null) {
+            present |= PRESENT_ICON_URI;
+        }
+        if (!TextUtils.isEmpty(mStatusToDisplay)) {
+            present |= PRESENT_STATUS_TO_DISPLAY;
+        }
+        if (!TextUtils.isEmpty(mStatusToSpeak)) {
+            present |= PRESENT_STATUS_TO_SPEAK;
+        }
+        if (mLanguageToSpeak != null) {
+            present |= PRESENT_LANGUAGE_TO_SPEAK;
+        }
+        if (withViews && mViewsToDisplay != null) {
+            present |= PRESENT_VIEWS_TO_DISPLAY;
+        }
+        if (!TextUtils.isEmpty(mContentDescription)) {
+            present |= PRESENT_CONTENT_DESCRIPTION;
+        }
+        if (mBackgroundUri != null) {
+            present |= PRESENT_BACKGROUND_URI;
+        }
+
+        parcel.writeInt(present);
+        parcel.writeInt(mIcon);
+        if (mIconUri != null) {
+            parcel.writeString(mIconUri.toString());
+        }
+        if ((present & PRESENT_STATUS_TO_DISPLAY) != 0) {
+            parcel.writeString(mStatusToDisplay);
+        }
+        if ((present & PRESENT_STATUS_TO_SPEAK) != 0) {
+            parcel.writeString(mStatusToSpeak);
+        }
+        if (mLanguageToSpeak != null) {
+            parcel.writeString(mLanguageToSpeak.getLanguage());
+            parcel.writeString(mLanguageToSpeak.getCountry());
+            parcel.writeString(mLanguageToSpeak.getVariant());
+        }
+        if ((present & PRESENT_VIEWS_TO_DISPLAY) != 0) {
+            mViewsToDisplay.writeToParcel(parcel, i);
+        }
+        if ((present & PRESENT_CONTENT_DESCRIPTION) != 0) {
+            parcel.writeString(mContentDescription);
+        }
+        parcel.writeInt(mBackground);
+        if (mBackgroundUri != null) {
+            parcel.writeString(mBackgroundUri.toString());
+        }
+    }
+
+    /**
+     * Version 3 appends the collection fields to the version 2 layout.
+     */
+    private void writeToParcelV3(Parcel parcel) {
+        parcel.writeString(mCollectionUri == null ? null : mCollectionUri.toString());
+        parcel.writeLong(mCollectionVersion);
+    }
+
+    /**
+     * Version 4 appends the payload to the version 3 layout: its {@link #payloadType()}, followed,
+     * if not null, by the output of {@link ExtensionPayloadCodec#writeToParcel(Object, Parcel)} as
+     * a byte array.
+     */
+    private void writeToParcelV4(Parcel parcel) {
+        parcel.writeString(mPayloadType);
+        if (mPayloadType != null) {
+            parcel.writeByteArray(mPayload);
+        }
+    }
+
+    /**
+     * Version 5 appends {@link #extras()} to the version 4 layout, preceded by a presence flag.
+     */
+    private void writeToParcelV5(Parcel parcel, int i) {
+        parcel.writeInt(mExtras != null ? 1 : 0);
+        if (mExtras != null) {
+            mExtras.writeToParcel(parcel, i);
+        }
+    }
+
+    /**
+     * Version 6 frames fields in length-prefixed sections: the light fields of versions 2 and 3 in
+     * the core section, then one section per heavy field that is set. Heavy fields still pending
+     * from the parcel this object was read from are copied back without being decoded.
+     */
+    private void writeToParcelV6(Parcel parcel, int i) {
+        int section = beginSection(parcel, SECTION_CORE);
+        writeToParcelV2(parcel, i, false);
+        writeToParcelV3(parcel);
+        endSection(parcel, section);
+
+        if (!writeLazySection(parcel, SECTION_VIEWS, LAZY_VIEWS) && mViewsToDisplay != null) {
+            section = beginSection(parcel, SECTION_VIEWS);
+            mViewsToDisplay.writeToParcel(parcel, i);
+            endSection(parcel, section);
+        }
+        if (mPayloadType != null) {
+            section = beginSection(parcel, SECTION_PAYLOAD);
+            writeToParcelV4(parcel);
+            endSection(parcel, section);
+        }
+        if (!writeLazySection(parcel, SECTION_EXTRAS, LAZY_EXTRAS) && mExtras != null) {
+            section = beginSection(parcel, SECTION_EXTRAS);
+            mExtras.writeToParcel(parcel, i);
+            endSection(parcel, section);
+        }
+        parcel.writeInt(SECTION_END);
+    }
+
+    /**
+     * Writes the header of a section with a placeholder length, and returns the position of the
+     * length for {@link #endSection(Parcel, int)}.
+     */
+    private static int beginSection(Parcel parcel, int section) {
+        parcel.writeInt(section);
+        int lengthPosition = parcel.dataPosition();
+        parcel.writeInt(0);
+        return lengthPosition;
+    }
+
+    /**
+     * Backpatches the length of the section started at the given position.
+     */
+    private static void endSection(Parcel parcel, int lengthPosition) {
+        int end = parcel.dataPosition();
+        parcel.setDataPosition(lengthPosition);
+        parcel.writeInt(end - lengthPosition - 4);
+        parcel.setDataPosition(end);
+    }
+
+    /**
+     * Copies the raw section of the given field if it is still pending, and returns whether it
+     * did.
+     */
+    private boolean writeLazySection(Parcel parcel, int section, int field) {
+        synchronized (mLazyLock) {
+            LazySection lazySection = mLazySections == null ? null : mLazySections[field];
+            if (lazySection == null) {
+                return false;
+            }
+            lazySection.writeTo(parcel, section);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of bytes this object takes when written to a {@link Parcel}, which is
+     * roughly what publishing it costs in the binder transaction buffer.
+     */
+    public int parcelSize() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Writes this object to a parcel from the pool, which the caller must recycle.
+     */
+    Parcel toParcel() {
+        Parcel parcel = Parcel.obtain();
+        writeToParcel(parcel, 0);
+        return parcel;
+    }
+
+    /**
+     * Writes the given parcel, e.g. one returned by {@link #toParcel()}, to an unlinked file in
+     * the given directory and returns a read-only descriptor for it, used to hand payloads too
+     * large for a binder transaction to the main app. Returns null if the parcel holds live
+     * objects such as binders (e.g. the {@link android.app.PendingIntent}s of a
+     * {@link RemoteViews}), which can't leave a parcel.
+     */
+    static ParcelFileDescriptor writeToFile(Parcel parcel, File dir) throws IOException {
+        byte[] bytes;
+        try {
+            if (parcel.hasFileDescriptors()) {
+                return null;
+            }
+            bytes = parcel.marshall();
+        } catch (RuntimeException e) {
+            // Parcel.marshall() refuses parcels holding binder objects
+            return null;
+        }
+
+        File file = File.createTempFile("extension_data", null, dir);
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            // The descriptor keeps the contents alive after the file is unlinked
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Reads data published through a file descriptor because it was too large for a binder
+     * transaction. Used by hosts implementing
+     * {@link com.mindmeapp.extensions.internal.IMindMeExtensionHost#publishUpdateFromFile}.
+     *
+     * @param fd   The descriptor received from the extension. Not closed by this method.
+     * @param size The payload size announced by the extension, in bytes.
+     * @throws IOException If the size is negative, larger than the file or than
+     *                     {@link #MAX_FILE_SIZE}, or the file can't be read.
+     */
+    public static ExtensionData readFromFile(ParcelFileDescriptor fd, int size)
+            throws IOException {
+        // The size comes from another app, check it before allocating anything
+        long fileSize = fd.getStatSize();
+        if (size < 0 || size > MAX_FILE_SIZE || (fileSize >= 0 && size > fileSize)) {
+            throw new IOException("Invalid extension data size " + size + " for a file of "
+                    + fileSize + " bytes.");
+        }
+
+        // Parcel.unmarshall() needs an array, read straight into it
+        byte[] bytes = new byte[size];
+        FileChannel channel = new FileInputStream(fd.getFileDescriptor()).getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new IOException("Extension data file ended after " + buffer.position()
+                        + " of " + size + " bytes.");
+            }
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, size);
+            parcel.setDataPosition(0);
+            return CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Sets the parcel layout version written by {@link #writeToParcel(Parcel, int)}. Used to talk
+     * to hosts that only understand older layouts.
+     */
+    ExtensionData parcelVersion(int parcelVersion) {
+        mParcelVersion = parcelVersion;
+        return this;
+    }
+
     @Override
     public int describeContents() {
         return 0;
     }
 
-    @SuppressWarnings("EqualsWhichDoesntCheckParameterClass")
     @Override
     public boolean equals(Object o) {
-        if (o == null) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof ExtensionData)) {
             return false;
         }
 
-        try {
-            ExtensionData other = (ExtensionData) o;
-            return other.mVisible == mVisible
-                    && other.mIcon == mIcon
-                    && objectEquals(other.mIconUri, mIconUri)
-                    && TextUtils.equals(other.mStatusToDisplay, mStatusToDisplay)
-                    && TextUtils.equals(other.mStatusToSpeak, mStatusToSpeak)
-                    && objectEquals(other.mLanguageToSpeak, mLanguageToSpeak)
-                    && objectEquals(other.mViewsToDisplay, mViewsToDisplay)
-                    && TextUtils.equals(other.mContentDescription, mContentDescription)
-                    && other.mBackground == mBackground
-                    && objectEquals(other.mBackgroundUri, mBackgroundUri);
-
-        } catch (ClassCastException e) {
+        ExtensionData other = (ExtensionData) o;
+        // The cached hashes leave out the views and extras, but tell most other changes apart
+        if (other.mFingerprintValid && mFingerprintValid
+                && other.mFingerprint != mFingerprint) {
             return false;
         }
+        // Views are compared by reference and needn't be decoded
+        inflateLazyField(LAZY_EXTRAS);
+        other.inflateLazyField(LAZY_EXTRAS);
+        return other.mVisible == mVisible
+                && other.mIcon == mIcon
+                && objectEquals(other.mIconUri, mIconUri)
+                && TextUtils.equals(other.mStatusToDisplay, mStatusToDisplay)
+                && TextUtils.equals(other.mStatusToSpeak, mStatusToSpeak)
+                && objectEquals(other.mLanguageToSpeak, mLanguageToSpeak)
+                && other.viewsIdentity() == viewsIdentity()
+                && TextUtils.equals(other.mContentDescription, mContentDescription)
+                && other.mBackground == mBackground
+                && objectEquals(other.mBackgroundUri, mBackgroundUri)
+                && objectEquals(other.mCollectionUri, mCollectionUri)
+                && other.mCollectionVersion == mCollectionVersion
+                && TextUtils.equals(other.mPayloadType, mPayloadType)
+                && Arrays.equals(other.mPayload, mPayload)
+                && objectEquals(other.mExtras, mExtras);
+    }
+
+    /**
+     * Returns a field mask of the fields in this object that differ from the given data, using the
+     * same comparison as {@link #equals(Object)}. If <code>other</code> is null, all fields are
+     * reported as changed.
+     *
+     * @see #FIELD_ALL
+     */
+    public int changedFields(ExtensionData other) {
+        if (other == null) {
+            return FIELD_ALL;
+        }
+
+        inflateLazyField(LAZY_EXTRAS);
+        other.inflateLazyField(LAZY_EXTRAS);
+        int changed = 0;
+        if (other.mVisible != mVisible) {
+            changed |= FIELD_VISIBLE;
+        }
+        if (other.mIcon != mIcon) {
+            changed |= FIELD_ICON;
+        }
+        if (!objectEquals(other.mIconUri, mIconUri)) {
+            changed |= FIELD_ICON_URI;
+        }
+        if (!TextUtils.equals(other.mStatusToDisplay, mStatusToDisplay)) {
+            changed |= FIELD_STATUS_TO_DISPLAY;
+        }
+        if (!TextUtils.equals(other.mStatusToSpeak, mStatusToSpeak)) {
+            changed |= FIELD_STATUS_TO_SPEAK;
+        }
+        if (!objectEquals(other.mLanguageToSpeak, mLanguageToSpeak)) {
+            changed |= FIELD_LANGUAGE_TO_SPEAK;
+        }
+        if (other.viewsIdentity() != viewsIdentity()) {
+            changed |= FIELD_VIEWS_TO_DISPLAY;
+        }
+        if (!TextUtils.equals(other.mContentDescription, mContentDescription)) {
+            changed |= FIELD_CONTENT_DESCRIPTION;
+        }
+        if (other.mBackground != mBackground) {
+            changed |= FIELD_BACKGROUND;
+        }
+        if (!objectEquals(other.mBackgroundUri, mBackgroundUri)) {
+            changed |= FIELD_BACKGROUND_URI;
+        }
+        if (!objectEquals(other.mCollectionUri, mCollectionUri)) {
+            changed |= FIELD_COLLECTION_URI;
+        }
+        if (other.mCollectionVersion != mCollectionVersion) {
+            changed |= FIELD_COLLECTION_VERSION;
+        }
+        if (!TextUtils.equals(other.mPayloadType, mPayloadType)
+                || !Arrays.equals(other.mPayload, mPayload)) {
+            changed |= FIELD_PAYLOAD;
+        }
+        if (!objectEquals(other.mExtras, mExtras)) {
+            changed |= FIELD_EXTRAS;
+        }
+        return changed;
+    }
+
+    /**
+     * Returns a new object holding only the fields of this object selected by the given mask. All
+     * other fields keep their default values, so unchanged heavy fields such as
+     * {@link #viewsToDisplay()} are not sent along with a delta. The result comes from
+     * {@link #obtain()} and can be recycled once sent.
+     */
+    ExtensionData delta(int fieldMask) {
+        return obtain().applyDelta(fieldMask, this);
+    }
+
+    /**
+     * Copies the fields selected by the given mask from <code>delta</code> into this object. Hosts
+     * use this to rebuild the full data from the last known data and a delta published by the
+     * extension. Passing {@link #FIELD_ALL} makes this object a copy of <code>delta</code>.
+     * Heavy fields <code>delta</code> didn't decode yet are copied without being decoded.
+     *
+     * @return This object, for chaining.
+     */
+    public ExtensionData applyDelta(int fieldMask, ExtensionData delta) {
+        if (delta == this) {
+            return this;
+        }
+        if ((fieldMask & FIELD_VISIBLE) != 0) {
+            mVisible = delta.mVisible;
+        }
+        if ((fieldMask & FIELD_ICON) != 0) {
+            mIcon = delta.mIcon;
+        }
+        if ((fieldMask & FIELD_ICON_URI) != 0) {
+            mIconUri = delta.mIconUri;
+        }
+        if ((fieldMask & FIELD_STATUS_TO_DISPLAY) != 0) {
+            mStatusToDisplay = delta.mStatusToDisplay;
+        }
+        if ((fieldMask & FIELD_STATUS_TO_SPEAK) != 0) {
+            mStatusToSpeak = delta.mStatusToSpeak;
+        }
+        if ((fieldMask & FIELD_LANGUAGE_TO_SPEAK) != 0) {
+            mLanguageToSpeak = delta.mLanguageToSpeak;
+        }
+        if ((fieldMask & FIELD_VIEWS_TO_DISPLAY) != 0) {
+            if (copyLazySection(LAZY_VIEWS, delta)) {
+                mViewsToDisplay = null;
+            } else {
+                discardLazyField(LAZY_VIEWS);
+                mViewsToDisplay = delta.mViewsToDisplay;
+            }
+        }
+        if ((fieldMask & FIELD_CONTENT_DESCRIPTION) != 0) {
+            mContentDescription = delta.mContentDescription;
+        }
+        if ((fieldMask & FIELD_BACKGROUND) != 0) {
+            mBackground = delta.mBackground;
+        }
+        if ((fieldMask & FIELD_BACKGROUND_URI) != 0) {
+            mBackgroundUri = delta.mBackgroundUri;
+        }
+        if ((fieldMask & FIELD_COLLECTION_URI) != 0) {
+            mCollectionUri = delta.mCollectionUri;
+        }
+        if ((fieldMask & FIELD_COLLECTION_VERSION) != 0) {
+            mCollectionVersion = delta.mCollectionVersion;
+        }
+        if ((fieldMask & FIELD_PAYLOAD) != 0) {
+            // Shared, encoded payloads are never changed in place
+            mPayloadType = delta.mPayloadType;
+            mPayload = delta.mPayload;
+        }
+        if ((fieldMask & FIELD_EXTRAS) != 0) {
+            if (copyLazySection(LAZY_EXTRAS, delta)) {
+                // Each copy decodes its own instance
+                mExtras = null;
+            } else if (delta.mExtras == null) {
+                discardLazyField(LAZY_EXTRAS);
+                mExtras = null;
+            } else {
+                discardLazyField(LAZY_EXTRAS);
+                // Copied rather than shared, extras may be updated after publishing
+                if (mExtras == null || mExtras == delta.mExtras) {
+                    mExtras = new ExtensionExtras().copyFrom(delta.mExtras);
+                } else {
+                    mExtras.copyFrom(delta.mExtras);
+                }
+            }
+        }
+        mFingerprintValid = false;
+        return this;
+    }
+
+    /**
+     * Returns the URI for the given string, reusing <code>current</code> if it already represents
+     * it, so that decoding an unchanged value allocates nothing, and the interned instance
+     * otherwise. Empty strings decode to null.
+     */
+    private static Uri parseUri(Uri current, String value) {
+        if (TextUtils.isEmpty(value)) {
+            return null;
+        }
+        if (current != null && value.equals(current.toString())) {
+            return current;
+        }
+        return InternCache.uri(value);
+    }
+
+    /**
+     * Returns the locale for the given components, reusing <code>current</code> if it already
+     * matches them, and the interned instance otherwise.
+     */
+    private static Locale toLocale(Locale current, String language, String country,
+            String variant) {
+        if (current != null
+                && current.getLanguage().equals(language)
+                && current.getCountry().equals(country == null ? "" : country)
+                && current.getVariant().equals(variant == null ? "" : variant)) {
+            return current;
+        }
+        return InternCache.locale(language, country, variant);
     }
 
     private static boolean objectEquals(Object x, Object y) {
-        if (x == null || y == null) {
-            return x == y;
+        if (x == y) {
+            // Interned values decoded from different parcels are identical
+            return true;
+        } else if (x == null || y == null) {
+            return false;
         } else {
             return x.equals(y);
         }
@@ -514,7 +1919,91 @@ public class ExtensionData implements Parcelable {
 
     @Override
     public int hashCode() {
-        throw new UnsupportedOperationException();
+        long fingerprint = fingerprint();
+        return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of the contents of this object. Objects that are
+     * {@link #equals(Object) equal} have the same fingerprint, and different contents almost
+     * always produce different fingerprints, which makes it a cheap key for caching and change
+     * detection. The hash of the extras, which can be changed in place, and of the views, is
+     * computed on every call, and the hash of the other fields is cached until one of the setters
+     * is called.
+     *
+     * <p>
+     * The fingerprint only depends on field values and is thus stable across processes, with the
+     * exception of {@link #viewsToDisplay()} which, like in {@link #equals(Object)}, is compared by
+     * reference and isn't decoded.
+     */
+    public long fingerprint() {
+        if (!mFingerprintValid) {
+            long hash = FNV_OFFSET_BASIS;
+            hash = fnv(hash, mVisible ? 1 : 0);
+            hash = fnv(hash, mIcon);
+            hash = fnv(hash, mIconUri == null ? null : mIconUri.toString());
+            hash = fnv(hash, mStatusToDisplay);
+            hash = fnv(hash, mStatusToSpeak);
+            hash = fnv(hash, mLanguageToSpeak == null ? null : mLanguageToSpeak.toString());
+            hash = fnv(hash, mContentDescription);
+            hash = fnv(hash, mBackground);
+            hash = fnv(hash, mBackgroundUri == null ? null : mBackgroundUri.toString());
+            hash = fnv(hash, mCollectionUri == null ? null : mCollectionUri.toString());
+            hash = fnv(hash, (int) mCollectionVersion);
+            hash = fnv(hash, (int) (mCollectionVersion >>> 32));
+            hash = fnv(hash, mPayloadType);
+            hash = fnv(hash, mPayload);
+            mFingerprint = hash;
+            mFingerprintValid = true;
+        }
+        // Pending views are identified by their section until a copy sharing it decodes them
+        Object views = viewsIdentity();
+        long hash = fnv(mFingerprint, views == null ? 0 : System.identityHashCode(views));
+        inflateLazyField(LAZY_EXTRAS);
+        if (mExtras == null) {
+            // Distinguish null from empty extras, as equals() does
+            return fnv(hash, -1);
+        }
+        return fnv(fnv(hash, mExtras.size()), mExtras.hashCode());
+    }
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static long fnv(long hash, int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash ^= (value >>> shift) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long fnv(long hash, byte[] value) {
+        if (value == null) {
+            return fnv(hash, -1);
+        }
+        hash = fnv(hash, value.length);
+        for (byte b : value) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long fnv(long hash, String value) {
+        if (value == null) {
+            // Distinguish null from the empty string, as TextUtils.equals does
+            return fnv(hash, -1);
+        }
+        hash = fnv(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash ^= c & 0xff;
+            hash *= FNV_PRIME;
+            hash ^= c >>> 8;
+            hash *= FNV_PRIME;
+        }
+        return hash;
     }
 
     /**
@@ -534,5 +2023,62 @@ public class ExtensionData implements Parcelable {
                 && mContentDescription.length() > MAX_CONTENT_DESCRIPTION_LENGTH) {
             mContentDescription = mContentDescription.substring(0, MAX_CONTENT_DESCRIPTION_LENGTH);
         }
+        mFingerprintValid = false;
+    }
+
+    /**
+     * The encoded section of a heavy field read from a version 6 parcel, in a parcel of its own.
+     * Copies of the data share the section instead of decoding it, and share the decoded views
+     * too, since views are compared by reference. Extras are decoded once per copy, as they can be
+     * changed in place.
+     */
+    private static final class LazySection {
+        private final int mLength;
+        private Parcel mParcel;
+        private int mRefCount = 1;
+        private RemoteViews mViews;
+
+        LazySection(Parcel in, int start, int length) {
+            mLength = length;
+            mParcel = Parcel.obtain();
+            mParcel.appendFrom(in, start, length);
+        }
+
+        synchronized void retain() {
+            ++mRefCount;
+        }
+
+        synchronized void release() {
+            if (--mRefCount == 0) {
+                mParcel.recycle();
+                mParcel = null;
+            }
+        }
+
+        synchronized void writeTo(Parcel out, int section) {
+            out.writeInt(section);
+            out.writeInt(mLength);
+            out.appendFrom(mParcel, 0, mLength);
+        }
+
+        synchronized RemoteViews views() {
+            if (mViews == null) {
+                mParcel.setDataPosition(0);
+                mViews = RemoteViews.CREATOR.createFromParcel(mParcel);
+            }
+            return mViews;
+        }
+
+        /**
+         * Returns the views if a copy sharing this section decoded them already, or null.
+         */
+        synchronized RemoteViews decodedViews() {
+            return mViews;
+        }
+
+        synchronized ExtensionExtras extras() {
+            mParcel.setDataPosition(0);
+            return ExtensionExtras.CREATOR.createFromParcel(mParcel);
+        }
     }
 }
@@ -0,0 +1,543 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.BadParcelableException;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+/**
+ * Typed extras attached to {@link ExtensionData#extras(ExtensionExtras)}, such as progress
+ * values, timestamps and small flags. Values are <code>int</code>, <code>long</code>,
+ * <code>double</code> or <code>boolean</code> and are keyed by small non-negative ids chosen by the
+ * extension, typically constants shared with the main app:
+ *
+ * <pre class="prettyprint">
+ * static final int EXTRA_PROGRESS = 1;
+ * static final int EXTRA_DUE_TIME = 2;
+ *
+ * data.extras(new ExtensionExtras()
+ *         .putInt(EXTRA_PROGRESS, 40)
+ *         .putLong(EXTRA_DUE_TIME, dueTime));
+ * </pre>
+ *
+ * <p>
+ * Unlike a {@link Bundle}, entries are stored in sorted primitive arrays, so values are never
+ * boxed and lookups are binary searches. In a parcel, each entry costs a 4-byte tag holding its
+ * key and type, followed by its value; booleans are folded into the tag.
+ */
+public final class ExtensionExtras implements Parcelable {
+    /**
+     * The largest key accepted, leaving room for the type in parcel tags.
+     */
+    public static final int MAX_KEY = (1 << 24) - 1;
+
+    private static final int TYPE_INT = 0;
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_DOUBLE = 2;
+    private static final int TYPE_BOOLEAN = 3;
+
+    private static final String KEY_KEYS = "keys";
+    private static final String KEY_TYPES = "types";
+    private static final String KEY_VALUES = "values";
+
+    /**
+     * Type prefixes of the JSON names, e.g. <code>"i1"</code> for int key 1.
+     */
+    private static final char[] JSON_PREFIXES = {'i', 'l', 'd', 'b'};
+
+    private static final int[] EMPTY_INTS = new int[0];
+    private static final byte[] EMPTY_BYTES = new byte[0];
+    private static final long[] EMPTY_LONGS = new long[0];
+
+    /**
+     * Sorted keys, with the type and raw bits of each value at the same index.
+     */
+    private int[] mKeys = EMPTY_INTS;
+    private byte[] mTypes = EMPTY_BYTES;
+    private long[] mValues = EMPTY_LONGS;
+    private int mSize = 0;
+
+    public ExtensionExtras() {
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the key of the entry at the given index, in increasing key order.
+     */
+    public int keyAt(int index) {
+        return mKeys[index];
+    }
+
+    public boolean containsKey(int key) {
+        return Arrays.binarySearch(mKeys, 0, mSize, key) >= 0;
+    }
+
+    public ExtensionExtras putInt(int key, int value) {
+        return put(key, TYPE_INT, value);
+    }
+
+    public ExtensionExtras putLong(int key, long value) {
+        return put(key, TYPE_LONG, value);
+    }
+
+    public ExtensionExtras putDouble(int key, double value) {
+        return put(key, TYPE_DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    public ExtensionExtras putBoolean(int key, boolean value) {
+        return put(key, TYPE_BOOLEAN, value ? 1 : 0);
+    }
+
+    /**
+     * Returns the int value of the given key, or <code>defaultValue</code> if there is no int
+     * value for it.
+     */
+    public int getInt(int key, int defaultValue) {
+        int index = indexOf(key, TYPE_INT);
+        return index >= 0 ? (int) mValues[index] : defaultValue;
+    }
+
+    /**
+     * Returns the long value of the given key, or <code>defaultValue</code> if there is no long
+     * value for it.
+     */
+    public long getLong(int key, long defaultValue) {
+        int index = indexOf(key, TYPE_LONG);
+        return index >= 0 ? mValues[index] : defaultValue;
+    }
+
+    /**
+     * Returns the double value of the given key, or <code>defaultValue</code> if there is no
+     * double value for it.
+     */
+    public double getDouble(int key, double defaultValue) {
+        int index = indexOf(key, TYPE_DOUBLE);
+        return index >= 0 ? Double.longBitsToDouble(mValues[index]) : defaultValue;
+    }
+
+    /**
+     * Returns the boolean value of the given key, or <code>defaultValue</code> if there is no
+     * boolean value for it.
+     */
+    public boolean getBoolean(int key, boolean defaultValue) {
+        int index = indexOf(key, TYPE_BOOLEAN);
+        return index >= 0 ? mValues[index] != 0 : defaultValue;
+    }
+
+    public ExtensionExtras remove(int key) {
+        int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (index >= 0) {
+            int moved = mSize - index - 1;
+            System.arraycopy(mKeys, index + 1, mKeys, index, moved);
+            System.arraycopy(mTypes, index + 1, mTypes, index, moved);
+            System.arraycopy(mValues, index + 1, mValues, index, moved);
+            mSize--;
+        }
+        return this;
+    }
+
+    public ExtensionExtras clear() {
+        mSize = 0;
+        return this;
+    }
+
+    /**
+     * Makes this object a copy of the given extras, reusing its arrays when they are large enough.
+     *
+     * @return This object, for chaining.
+     */
+    public ExtensionExtras copyFrom(ExtensionExtras other) {
+        ensureCapacity(other.mSize);
+        System.arraycopy(other.mKeys, 0, mKeys, 0, other.mSize);
+        System.arraycopy(other.mTypes, 0, mTypes, 0, other.mSize);
+        System.arraycopy(other.mValues, 0, mValues, 0, other.mSize);
+        mSize = other.mSize;
+        return this;
+    }
+
+    private int indexOf(int key, int type) {
+        int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        return index >= 0 && mTypes[index] == type ? index : -1;
+    }
+
+    private ExtensionExtras put(int key, int type, long bits) {
+        if (key < 0 || key > MAX_KEY) {
+            throw new IllegalArgumentException("Extra keys must be between 0 and " + MAX_KEY);
+        }
+
+        int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (index < 0) {
+            index = ~index;
+            ensureCapacity(mSize + 1);
+            int moved = mSize - index;
+            System.arraycopy(mKeys, index, mKeys, index + 1, moved);
+            System.arraycopy(mTypes, index, mTypes, index + 1, moved);
+            System.arraycopy(mValues, index, mValues, index + 1, moved);
+            mKeys[index] = key;
+            mSize++;
+        }
+        mTypes[index] = (byte) type;
+        mValues[index] = bits;
+        return this;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mKeys.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, Math.max(4, mKeys.length * 2));
+        int[] keys = new int[newCapacity];
+        byte[] types = new byte[newCapacity];
+        long[] values = new long[newCapacity];
+        System.arraycopy(mKeys, 0, keys, 0, mSize);
+        System.arraycopy(mTypes, 0, types, 0, mSize);
+        System.arraycopy(mValues, 0, values, 0, mSize);
+        mKeys = keys;
+        mTypes = types;
+        mValues = values;
+    }
+
+    /**
+     * Serializes the contents of this object to a {@link Bundle} of three primitive arrays.
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle(3);
+        bundle.putIntArray(KEY_KEYS, Arrays.copyOf(mKeys, mSize));
+        bundle.putByteArray(KEY_TYPES, Arrays.copyOf(mTypes, mSize));
+        bundle.putLongArray(KEY_VALUES, Arrays.copyOf(mValues, mSize));
+        return bundle;
+    }
+
+    /**
+     * Deserializes the given {@link Bundle} representation of extras, returned by
+     * {@link #toBundle()}.
+     *
+     * @throws IllegalArgumentException If the arrays of the bundle don't describe valid extras.
+     */
+    public static ExtensionExtras fromBundle(Bundle src) {
+        ExtensionExtras extras = new ExtensionExtras();
+        int[] keys = src.getIntArray(KEY_KEYS);
+        byte[] types = src.getByteArray(KEY_TYPES);
+        long[] values = src.getLongArray(KEY_VALUES);
+        if (keys == null || types == null || values == null) {
+            return extras;
+        }
+        if (keys.length != types.length || keys.length != values.length) {
+            throw new IllegalArgumentException("Extras arrays have different lengths "
+                    + keys.length + ", " + types.length + " and " + values.length + ".");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (types[i] < TYPE_INT || types[i] > TYPE_BOOLEAN) {
+                throw new IllegalArgumentException("Invalid extra type " + types[i] + ".");
+            }
+            checkKeyOrder(i == 0 ? -1 : keys[i - 1], keys[i]);
+        }
+
+        // Copied, put() changes values in place and the bundle may still be in use
+        extras.mKeys = keys.clone();
+        extras.mTypes = types.clone();
+        extras.mValues = values.clone();
+        extras.mSize = keys.length;
+        return extras;
+    }
+
+    /**
+     * Throws an {@link IllegalArgumentException} unless <code>key</code> is a valid key greater
+     * than <code>previous</code>, i.e. keys are sorted and unique.
+     */
+    private static void checkKeyOrder(int previous, int key) {
+        if (key <= previous || key > MAX_KEY) {
+            throw new IllegalArgumentException("Invalid extra key " + key + " after " + previous
+                    + ".");
+        }
+    }
+
+    /**
+     * Serializes the contents of this object to JSON, with names made of a type prefix and the
+     * key, e.g. <code>{"i1": 40, "l2": 1386000000000}</code>.
+     */
+    public JSONObject serialize() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < mSize; i++) {
+            String name = JSON_PREFIXES[mTypes[i]] + String.valueOf(mKeys[i]);
+            switch (mTypes[i]) {
+                case TYPE_INT:
+                case TYPE_LONG:
+                    json.put(name, mValues[i]);
+                    break;
+                case TYPE_DOUBLE:
+                    json.put(name, Double.longBitsToDouble(mValues[i]));
+                    break;
+                case TYPE_BOOLEAN:
+                    json.put(name, mValues[i] != 0);
+                    break;
+            }
+        }
+        return json;
+    }
+
+    /**
+     * Deserializes the given JSON representation of extras, returned by {@link #serialize()}.
+     * Names that don't denote a typed key are ignored.
+     */
+    public static ExtensionExtras deserialize(JSONObject json) throws JSONException {
+        ExtensionExtras extras = new ExtensionExtras();
+        Iterator<?> names = json.keys();
+        while (names.hasNext()) {
+            String name = (String) names.next();
+            int type = jsonType(name);
+            int key = jsonKey(name);
+            if (type < 0 || key < 0) {
+                continue;
+            }
+            switch (type) {
+                case TYPE_INT:
+                    extras.putInt(key, json.getInt(name));
+                    break;
+                case TYPE_LONG:
+                    extras.putLong(key, json.getLong(name));
+                    break;
+                case TYPE_DOUBLE:
+                    extras.putDouble(key, json.getDouble(name));
+                    break;
+                case TYPE_BOOLEAN:
+                    extras.putBoolean(key, json.getBoolean(name));
+                    break;
+            }
+        }
+        return extras;
+    }
+
+    /**
+     * Writes the contents of this object as a JSON object to the given stream, using the same
+     * representation as {@link #serialize()}.
+     */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        for (int i = 0; i < mSize; i++) {
+            writer.name(JSON_PREFIXES[mTypes[i]] + String.valueOf(mKeys[i]));
+            switch (mTypes[i]) {
+                case TYPE_INT:
+                case TYPE_LONG:
+                    writer.value(mValues[i]);
+                    break;
+                case TYPE_DOUBLE:
+                    writer.value(Double.longBitsToDouble(mValues[i]));
+                    break;
+                case TYPE_BOOLEAN:
+                    writer.value(mValues[i] != 0);
+                    break;
+            }
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Reads the next JSON object from the given stream, as written by
+     * {@link #writeJson(JsonWriter)}.
+     */
+    public static ExtensionExtras readJson(JsonReader reader) throws IOException {
+        ExtensionExtras extras = new ExtensionExtras();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            int type = jsonType(name);
+            int key = jsonKey(name);
+            if (type < 0 || key < 0 || reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (type) {
+                case TYPE_INT:
+                    extras.putInt(key, reader.nextInt());
+                    break;
+                case TYPE_LONG:
+                    extras.putLong(key, reader.nextLong());
+                    break;
+                case TYPE_DOUBLE:
+                    extras.putDouble(key, reader.nextDouble());
+                    break;
+                case TYPE_BOOLEAN:
+                    extras.putBoolean(key, reader.nextBoolean());
+                    break;
+            }
+        }
+        reader.endObject();
+        return extras;
+    }
+
+    private static int jsonType(String name) {
+        if (name.length() < 2) {
+            return -1;
+        }
+        for (int type = 0; type < JSON_PREFIXES.length; type++) {
+            if (JSON_PREFIXES[type] == name.charAt(0)) {
+                return type;
+            }
+        }
+        return -1;
+    }
+
+    private static int jsonKey(String name) {
+        try {
+            int key = Integer.parseInt(name.substring(1));
+            return key <= MAX_KEY ? key : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @see Parcelable
+     */
+    public static final Creator<ExtensionExtras> CREATOR = new Creator<ExtensionExtras>() {
+        public ExtensionExtras createFromParcel(Parcel in) {
+            ExtensionExtras extras = new ExtensionExtras();
+            extras.readFromParcel(in);
+            return extras;
+        }
+
+        public ExtensionExtras[] newArray(int size) {
+            return new ExtensionExtras[size];
+        }
+    };
+
+    /**
+     * Reads extras written by {@link #writeToParcel(Parcel, int)}, replacing the contents of
+     * this object.
+     *
+     * @throws BadParcelableException If the entry count doesn't fit in the parcel or keys are not
+     *                                sorted and unique.
+     */
+    public void readFromParcel(Parcel in) {
+        int size = in.readInt();
+        mSize = 0;
+        // Each entry takes at least its tag, a bad count must not allocate a huge array
+        if (size < 0 || size > in.dataAvail() / 4) {
+            throw new BadParcelableException("Invalid extras count " + size + " with "
+                    + in.dataAvail() + " bytes left.");
+        }
+        ensureCapacity(size);
+        for (int i = 0; i < size; i++) {
+            int tag = in.readInt();
+            int type = (tag >>> 1) & 3;
+            int key = tag >>> 3;
+            try {
+                checkKeyOrder(i == 0 ? -1 : mKeys[i - 1], key);
+            } catch (IllegalArgumentException e) {
+                throw new BadParcelableException(e);
+            }
+            mKeys[i] = key;
+            mTypes[i] = (byte) type;
+            switch (type) {
+                case TYPE_INT:
+                    mValues[i] = in.readInt();
+                    break;
+                case TYPE_BOOLEAN:
+                    mValues[i] = tag & 1;
+                    break;
+                default:
+                    mValues[i] = in.readLong();
+                    break;
+            }
+        }
+        mSize = size;
+    }
+
+    /**
+     * Writes the entry count, then for each entry a tag made of <code>key &lt;&lt; 3 | type
+     * &lt;&lt; 1 | booleanValue</code> followed by the value for non-boolean types.
+     */
+    @Override
+    public void writeToParcel(Parcel parcel, int flags) {
+        parcel.writeInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            int type = mTypes[i];
+            int tag = mKeys[i] << 3 | type << 1;
+            switch (type) {
+                case TYPE_INT:
+                    parcel.writeInt(tag);
+                    parcel.writeInt((int) mValues[i]);
+                    break;
+                case TYPE_BOOLEAN:
+                    parcel.writeInt(tag | (int) mValues[i]);
+                    break;
+                default:
+                    parcel.writeInt(tag);
+                    parcel.writeLong(mValues[i]);
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof ExtensionExtras)) {
+            return false;
+        }
+
+        ExtensionExtras other = (ExtensionExtras) o;
+        if (other.mSize != mSize) {
+            return false;
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (other.mKeys[i] != mKeys[i] || other.mTypes[i] != mTypes[i]
+                    || other.mValues[i] != mValues[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = mSize;
+        for (int i = 0; i < mSize; i++) {
+            hash = 31 * hash + mKeys[i];
+            hash = 31 * hash + mTypes[i];
+            hash = 31 * hash + (int) (mValues[i] ^ (mValues[i] >>> 32));
+        }
+        return hash;
+    }
+}
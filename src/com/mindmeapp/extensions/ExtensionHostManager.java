@@ -0,0 +1,577 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.mindmeapp.extensions.internal.IMindMeExtension;
+import com.mindmeapp.extensions.internal.IMindMeExtensionHost;
+
+/**
+ * Host-side counterpart of {@link MindMeExtension}: discovers extensions through
+ * {@link MindMeExtension#ACTION_EXTENSION}, binds to them, implements the host end of the protocol
+ * and keeps the latest data published by each one.
+ *
+ * <p>
+ * Update requests are fanned out with bounded parallelism: at most
+ * <code>maxParallelUpdates</code> extensions are asked to update at the same time, and an
+ * extension counts as busy until it reports the end of its update run, publishes, or
+ * {@link #UPDATE_TIMEOUT_MILLIS} elapse. Extensions declaring protocol version 1 don't report the
+ * end of runs, so those publishing nothing are only released by the timeout. Waiting
+ * requests are ordered by reason, with {@link MindMeExtension#UPDATE_REASON_MANUAL} first, then
+ * by the priority set with {@link #setPriority(ComponentName, int)}. Requests for an extension that
+ * is already waiting are merged.
+ *
+ * <p>
+ * All methods must be called on the thread of the {@link Looper} given to the constructor, and
+ * listeners are called on that thread too. Binder and service connection callbacks, which arrive
+ * on other threads, are forwarded to it.
+ */
+public class ExtensionHostManager {
+    private static final String TAG = "ExtensionHostManager";
+
+    /**
+     * The protocol version implemented by this host, announced to extensions declaring protocol
+     * version 2 or above.
+     */
+    public static final int PROTOCOL_VERSION = 6;
+
+    /**
+     * How long an extension counts against the parallelism limit after being asked to update,
+     * unless it publishes or finishes its update run earlier.
+     */
+    public static final long UPDATE_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * Listener for changes to the data published by extensions.
+     */
+    public interface OnExtensionDataChangedListener {
+        /**
+         * Called when the given extension published new data, available through
+         * {@link ExtensionHostManager#getLatestData(ComponentName)} and
+         * {@link ExtensionHostManager#getLatestDataList(ComponentName)}.
+         */
+        void onExtensionDataChanged(ComponentName extension);
+    }
+
+    /**
+     * Listener for speech streamed by extensions ahead of their data, see
+     * {@link MindMeExtension#publishSpeechSegment(String, Locale, boolean)}.
+     */
+    public interface OnSpeechSegmentListener {
+        /**
+         * Called for each segment in the order it was published.
+         *
+         * @param streamId Identifies the stream among those of the same extension.
+         * @param sequence The index of the segment in its stream, starting at 0.
+         * @param text     The text to speak.
+         * @param locale   The language of the text, or null for the default language.
+         * @param isLast   Whether the stream ends with this segment.
+         */
+        void onSpeechSegment(ComponentName extension, int streamId, int sequence, String text,
+                Locale locale, boolean isLast);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final int mMaxParallelUpdates;
+
+    private final Map<ComponentName, Connection> mConnections
+            = new HashMap<ComponentName, Connection>();
+    private final Map<ComponentName, Integer> mPriorities = new HashMap<ComponentName, Integer>();
+    private final PriorityQueue<PendingUpdate> mPendingUpdates = new PriorityQueue<PendingUpdate>();
+    private final Map<ComponentName, PendingUpdate> mPendingByExtension
+            = new HashMap<ComponentName, PendingUpdate>();
+    private final Set<ComponentName> mUpdatesInFlight = new HashSet<ComponentName>();
+    private long mNextSequence = 0;
+
+    private OnExtensionDataChangedListener mListener;
+    private OnSpeechSegmentListener mSpeechListener;
+
+    /**
+     * @param context            The host context, used to discover and bind extensions.
+     * @param looper             The looper on which this manager is used and listeners are
+     *                           called.
+     * @param maxParallelUpdates The maximum number of extensions updating at the same time.
+     */
+    public ExtensionHostManager(Context context, Looper looper, int maxParallelUpdates) {
+        mContext = context.getApplicationContext();
+        mHandler = new Handler(looper);
+        mMaxParallelUpdates = Math.max(1, maxParallelUpdates);
+    }
+
+    public void setOnExtensionDataChangedListener(OnExtensionDataChangedListener listener) {
+        mListener = listener;
+    }
+
+    public void setOnSpeechSegmentListener(OnSpeechSegmentListener listener) {
+        mSpeechListener = listener;
+    }
+
+    /**
+     * Returns the components of all installed extensions.
+     */
+    public List<ComponentName> queryExtensions() {
+        List<ComponentName> extensions = new ArrayList<ComponentName>();
+        List<ResolveInfo> resolveInfos = mContext.getPackageManager().queryIntentServices(
+                new Intent(MindMeExtension.ACTION_EXTENSION), 0);
+        for (ResolveInfo resolveInfo : resolveInfos) {
+            extensions.add(new ComponentName(resolveInfo.serviceInfo.packageName,
+                    resolveInfo.serviceInfo.name));
+        }
+        return extensions;
+    }
+
+    /**
+     * Binds to the given extensions, and unbinds from connected extensions not in the collection.
+     */
+    public void setActiveExtensions(Collection<ComponentName> extensions) {
+        Set<ComponentName> active = new HashSet<ComponentName>(extensions);
+        for (ComponentName extension : new ArrayList<ComponentName>(mConnections.keySet())) {
+            if (!active.contains(extension)) {
+                disconnect(extension);
+            }
+        }
+        for (ComponentName extension : active) {
+            if (!mConnections.containsKey(extension)) {
+                connect(extension);
+            }
+        }
+    }
+
+    /**
+     * Unbinds from all extensions and forgets their data.
+     */
+    public void destroy() {
+        for (ComponentName extension : new ArrayList<ComponentName>(mConnections.keySet())) {
+            disconnect(extension);
+        }
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void connect(ComponentName extension) {
+        Connection connection = new Connection(extension, loadProtocolVersion(extension));
+        Intent intent = new Intent(MindMeExtension.ACTION_EXTENSION).setComponent(extension);
+        try {
+            if (!mContext.bindService(intent, connection, Context.BIND_AUTO_CREATE)) {
+                Log.e(TAG, "Couldn't bind to extension " + extension);
+                return;
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "Not allowed to bind to extension " + extension, e);
+            return;
+        }
+        mConnections.put(extension, connection);
+    }
+
+    private void disconnect(ComponentName extension) {
+        Connection connection = mConnections.remove(extension);
+        if (connection == null) {
+            return;
+        }
+
+        // The timeout would otherwise finish the update of a later connection to the extension
+        connection.mDestroyed = true;
+        mHandler.removeCallbacks(connection.mUpdateTimeout);
+        mContext.unbindService(connection);
+        PendingUpdate pending = mPendingByExtension.remove(extension);
+        if (pending != null) {
+            mPendingUpdates.remove(pending);
+        }
+        finishUpdate(extension);
+    }
+
+    private int loadProtocolVersion(ComponentName extension) {
+        try {
+            Bundle metaData = mContext.getPackageManager().getServiceInfo(extension,
+                    PackageManager.GET_META_DATA).metaData;
+            return metaData != null ? metaData.getInt("protocolVersion") : 1;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Sets the priority of the given extension among waiting updates with the same reason. Higher
+     * values are updated first. The default is 0.
+     */
+    public void setPriority(ComponentName extension, int priority) {
+        mPriorities.put(extension, priority);
+    }
+
+    /**
+     * Asks all connected extensions to update their data.
+     *
+     * @param reason See {@link MindMeExtension#UPDATE_REASON_PERIODIC} and related constants.
+     */
+    public void requestUpdate(int reason) {
+        for (ComponentName extension : mConnections.keySet()) {
+            enqueueUpdate(extension, reason);
+        }
+        dispatchUpdates();
+    }
+
+    /**
+     * Asks the given extension to update its data.
+     *
+     * @param reason See {@link MindMeExtension#UPDATE_REASON_PERIODIC} and related constants.
+     */
+    public void requestUpdate(ComponentName extension, int reason) {
+        if (mConnections.containsKey(extension)) {
+            enqueueUpdate(extension, reason);
+            dispatchUpdates();
+        }
+    }
+
+    /**
+     * Tells connected extensions when the next periodic update will be requested, so they can
+     * pre-load their data.
+     *
+     * @param triggerAtMillis The time of the next periodic update, in
+     *                        {@link System#currentTimeMillis()} time base.
+     */
+    public void scheduleUpdate(long triggerAtMillis) {
+        for (Connection connection : mConnections.values()) {
+            if (connection.mBinder != null && connection.mProtocolVersion >= 2) {
+                try {
+                    connection.mBinder.onScheduleUpdate(triggerAtMillis);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Couldn't schedule update of " + connection.mExtension, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the last single entry published by the given extension, or null if it published
+     * nothing or cleared its data.
+     */
+    public ExtensionData getLatestData(ComponentName extension) {
+        Connection connection = mConnections.get(extension);
+        return connection != null ? connection.mLatestData : null;
+    }
+
+    /**
+     * Returns all entries of the last publish of the given extension, which has a single entry
+     * unless the extension used {@link MindMeExtension#publishUpdates(List)}.
+     */
+    public List<ExtensionData> getLatestDataList(ComponentName extension) {
+        Connection connection = mConnections.get(extension);
+        return connection != null
+                ? connection.mLatestDataList : Collections.<ExtensionData>emptyList();
+    }
+
+    private void enqueueUpdate(ComponentName extension, int reason) {
+        PendingUpdate pending = mPendingByExtension.get(extension);
+        if (pending != null) {
+            if (reasonPriority(reason) <= reasonPriority(pending.mReason)) {
+                return;
+            }
+            // Reorder with the more urgent reason
+            mPendingUpdates.remove(pending);
+        }
+
+        Integer priority = mPriorities.get(extension);
+        pending = new PendingUpdate(extension, reason, priority != null ? priority : 0,
+                mNextSequence++);
+        mPendingByExtension.put(extension, pending);
+        mPendingUpdates.add(pending);
+    }
+
+    private void dispatchUpdates() {
+        List<PendingUpdate> busy = new ArrayList<PendingUpdate>();
+        while (mUpdatesInFlight.size() < mMaxParallelUpdates && !mPendingUpdates.isEmpty()) {
+            PendingUpdate pending = mPendingUpdates.poll();
+            if (mUpdatesInFlight.contains(pending.mExtension)) {
+                // Still updating, keep the request for when it's done
+                busy.add(pending);
+                continue;
+            }
+
+            mPendingByExtension.remove(pending.mExtension);
+            Connection connection = mConnections.get(pending.mExtension);
+            if (connection == null || connection.mBinder == null) {
+                // Not connected yet, requested again once connected
+                if (connection != null && (connection.mUpdateOnConnect < 0
+                        || reasonPriority(pending.mReason)
+                                > reasonPriority(connection.mUpdateOnConnect))) {
+                    connection.mUpdateOnConnect = pending.mReason;
+                }
+                continue;
+            }
+
+            try {
+                connection.mBinder.onUpdate(pending.mReason);
+                mUpdatesInFlight.add(pending.mExtension);
+                mHandler.postDelayed(connection.mUpdateTimeout, UPDATE_TIMEOUT_MILLIS);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Couldn't request update of " + pending.mExtension, e);
+            }
+        }
+        mPendingUpdates.addAll(busy);
+    }
+
+    private void finishUpdate(ComponentName extension) {
+        Connection connection = mConnections.get(extension);
+        if (connection != null) {
+            mHandler.removeCallbacks(connection.mUpdateTimeout);
+        }
+        if (mUpdatesInFlight.remove(extension)) {
+            dispatchUpdates();
+        }
+    }
+
+    private void onDataPublished(Connection connection, List<ExtensionData> dataList) {
+        if (connection.mDestroyed) {
+            return;
+        }
+
+        connection.mLatestDataList = dataList;
+        connection.mLatestData = dataList.isEmpty() ? null : dataList.get(dataList.size() - 1);
+        finishUpdate(connection.mExtension);
+        if (mListener != null) {
+            mListener.onExtensionDataChanged(connection.mExtension);
+        }
+    }
+
+    private static int reasonPriority(int reason) {
+        switch (reason) {
+            case MindMeExtension.UPDATE_REASON_MANUAL:
+                return 3;
+            case MindMeExtension.UPDATE_REASON_SETTINGS_CHANGED:
+                return 2;
+            case MindMeExtension.UPDATE_REASON_PERIODIC:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private static final class PendingUpdate implements Comparable<PendingUpdate> {
+        final ComponentName mExtension;
+        final int mReason;
+        final int mPriority;
+        final long mSequence;
+
+        PendingUpdate(ComponentName extension, int reason, int priority, long sequence) {
+            mExtension = extension;
+            mReason = reason;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PendingUpdate other) {
+            int byReason = reasonPriority(other.mReason) - reasonPriority(mReason);
+            if (byReason != 0) {
+                return byReason;
+            }
+            if (mPriority != other.mPriority) {
+                return other.mPriority > mPriority ? 1 : -1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Binding to a single extension, along with the host binder handed to it. Host binder calls
+     * arrive on binder threads and are forwarded to the manager's looper.
+     */
+    private final class Connection extends IMindMeExtensionHost.Stub implements ServiceConnection {
+        final ComponentName mExtension;
+        final int mProtocolVersion;
+        IMindMeExtension mBinder;
+        boolean mConnectedBefore = false;
+        boolean mDestroyed = false;
+        int mUpdateOnConnect = -1;
+        ExtensionData mLatestData;
+        List<ExtensionData> mLatestDataList = Collections.emptyList();
+
+        final Runnable mUpdateTimeout = new Runnable() {
+            @Override
+            public void run() {
+                if (!mDestroyed) {
+                    Log.w(TAG, "Extension " + mExtension + " didn't publish in time.");
+                    finishUpdate(mExtension);
+                }
+            }
+        };
+
+        Connection(ComponentName extension, int protocolVersion) {
+            mExtension = extension;
+            mProtocolVersion = protocolVersion;
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, final IBinder service) {
+            // Always called on the main thread, which needn't be the manager's
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mDestroyed) {
+                        onConnected(service);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mDestroyed) {
+                        mBinder = null;
+                        finishUpdate(mExtension);
+                    }
+                }
+            });
+        }
+
+        private void onConnected(IBinder service) {
+            mBinder = IMindMeExtension.Stub.asInterface(service);
+            try {
+                mBinder.onInitialize(this, mConnectedBefore);
+                if (mProtocolVersion >= 2) {
+                    mBinder.setHostProtocolVersion(PROTOCOL_VERSION);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "Couldn't initialize extension " + mExtension, e);
+            }
+            mConnectedBefore = true;
+
+            if (mUpdateOnConnect >= 0) {
+                enqueueUpdate(mExtension, mUpdateOnConnect);
+                mUpdateOnConnect = -1;
+                dispatchUpdates();
+            }
+        }
+
+        @Override
+        public void publishUpdate(final ExtensionData data) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onDataPublished(Connection.this, data != null
+                            ? Collections.singletonList(data)
+                            : Collections.<ExtensionData>emptyList());
+                }
+            });
+        }
+
+        @Override
+        public void publishUpdateDelta(final int changedFields, final ExtensionData delta) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Published data is never modified in place, listeners may hold on to it
+                    ExtensionData data = new ExtensionData();
+                    if (mLatestData != null) {
+                        data.copyFrom(mLatestData);
+                    }
+                    data.applyDelta(changedFields, delta);
+                    onDataPublished(Connection.this, Collections.singletonList(data));
+                }
+            });
+        }
+
+        @Override
+        public void publishUpdates(final List<ExtensionData> dataList) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onDataPublished(Connection.this, dataList != null
+                            ? Collections.unmodifiableList(dataList)
+                            : Collections.<ExtensionData>emptyList());
+                }
+            });
+        }
+
+        @Override
+        public void onUpdateFinished() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mDestroyed) {
+                        finishUpdate(mExtension);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void publishSpeechSegment(final int streamId, final int sequence,
+                final String text, String language, String country, final boolean isLast) {
+            final Locale locale = language != null
+                    ? InternCache.locale(language, country, null) : null;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mDestroyed && mSpeechListener != null) {
+                        mSpeechListener.onSpeechSegment(mExtension, streamId, sequence, text,
+                                locale, isLast);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void publishUpdateFromFile(ParcelFileDescriptor fd, int size) {
+            if (fd == null) {
+                return;
+            }
+
+            final ExtensionData data;
+            try {
+                data = ExtensionData.readFromFile(fd, size);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't read data published by " + mExtension, e);
+                return;
+            } finally {
+                try {
+                    fd.close();
+                } catch (IOException ignored) {
+                }
+            }
+            publishUpdate(data);
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * A {@link ContentProvider} serving extension images, such as {@link ExtensionData#iconUri(Uri)}
+ * and {@link ExtensionData#backgroundUri(Uri)}, pre-downsampled to the size the main app
+ * actually displays.
+ *
+ * <p>
+ * Extensions store an image once under a key of their choice with
+ * {@link #putImage(Context, String, Bitmap)} and publish the returned content URI. The URI only
+ * depends on the key, so republishing the same image costs nothing. The main app appends the size
+ * it needs with {@link #sizedUri(Uri, int, int)}. The first request for a size decodes the
+ * original with subsampling, scales it down and caches the result on disk. Later requests
+ * for that size are served straight from the cache. Downsampled copies are evicted least recently
+ * used first once they exceed {@link #MAX_CACHE_SIZE_BYTES}.
+ *
+ * <p>
+ * To use it, declare the provider in your manifest with an authority made of your package name
+ * followed by {@link #AUTHORITY_SUFFIX}:
+ *
+ * <pre class="prettyprint">
+ * &lt;provider android:name="com.mindmeapp.extensions.ExtensionImageProvider"
+ *     android:authorities="com.example.myextension.mindme.images"
+ *     android:exported="true"
+ *     android:readPermission="com.mindmeapp.extensions.permission.READ_EXTENSION_DATA" /&gt;
+ * </pre>
+ */
+public class ExtensionImageProvider extends ContentProvider {
+    private static final String TAG = "ExtensionImageProvider";
+
+    /**
+     * Appended to the package name of the extension to form the authority of this provider.
+     */
+    public static final String AUTHORITY_SUFFIX = ".mindme.images";
+
+    /**
+     * Query parameters of {@link #sizedUri(Uri, int, int)}.
+     */
+    public static final String PARAM_WIDTH = "w";
+    public static final String PARAM_HEIGHT = "h";
+
+    /**
+     * Maximum total size of the downsampled copies kept on disk. Originals don't count.
+     */
+    public static final long MAX_CACHE_SIZE_BYTES = 8 * 1024 * 1024;
+
+    private static final String PATH_IMAGES = "images";
+    private static final String ORIGINALS_DIR = "mindme_images";
+    private static final String CACHE_DIR = "mindme_images";
+
+    /**
+     * Downsampled copies known to be on disk, keyed by file name, so repeated requests skip the
+     * file system checks. Ordered by last use, which {@link #trimCache()} evicts by.
+     */
+    private final LruCache<String, Variant> mVariants = new LruCache<String, Variant>(64);
+
+    /**
+     * Locks of the variants being created, so that only requests for the same variant wait for
+     * each other while it is decoded and compressed.
+     */
+    private final Map<String, VariantLock> mVariantLocks = new HashMap<String, VariantLock>();
+
+    private final Object mTrimLock = new Object();
+    private File mCacheDir;
+
+    /**
+     * A downsampled copy and the modification time of the original it was made from. The file is
+     * null if the original is served as is, e.g. because it is already small enough.
+     */
+    private static final class Variant {
+        final File mFile;
+        final long mOriginalModified;
+
+        Variant(File file, long originalModified) {
+            mFile = file;
+            mOriginalModified = originalModified;
+        }
+    }
+
+    private static final class VariantLock {
+        int mUsers;
+    }
+
+    /**
+     * Stores the given image under the given key, unless an image is already stored under that
+     * key, and returns its content URI. Keys identify image contents: use a new key when the
+     * image changes, or call {@link #removeImage(Context, String)} first. This method does disk
+     * I/O and should not be called on the main thread.
+     */
+    public static Uri putImage(Context context, String key, Bitmap bitmap) throws IOException {
+        File original = getOriginalFile(context, key);
+        if (!original.exists()) {
+            File temp = new File(original.getPath() + ".tmp");
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                if (!bitmap.compress(formatFor(bitmap), 90, out)) {
+                    throw new IOException("Couldn't encode image " + key);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(original)) {
+                temp.delete();
+                throw new IOException("Couldn't store image " + key);
+            }
+        }
+        return buildUri(context, key);
+    }
+
+    /**
+     * Stores the encoded image read from the given stream under the given key, unless an image is
+     * already stored under that key, and returns its content URI. The stream is not closed.
+     *
+     * @see #putImage(Context, String, Bitmap)
+     */
+    public static Uri putImage(Context context, String key, InputStream in) throws IOException {
+        File original = getOriginalFile(context, key);
+        if (!original.exists()) {
+            File temp = new File(original.getPath() + ".tmp");
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(original)) {
+                temp.delete();
+                throw new IOException("Couldn't store image " + key);
+            }
+        }
+        return buildUri(context, key);
+    }
+
+    /**
+     * Deletes the image stored under the given key. Downsampled copies are left for the cache
+     * eviction to clean up, but are never served once the original is gone.
+     */
+    public static void removeImage(Context context, String key) {
+        getOriginalFile(context, key).delete();
+    }
+
+    /**
+     * Returns the content URI of the image stored under the given key.
+     */
+    public static Uri buildUri(Context context, String key) {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(context.getPackageName() + AUTHORITY_SUFFIX)
+                .appendPath(PATH_IMAGES)
+                .appendPath(key)
+                .build();
+    }
+
+    /**
+     * Returns a URI for the given image downsampled to fit within the given size, in pixels. Used
+     * by the main app to request the size it displays.
+     */
+    public static Uri sizedUri(Uri imageUri, int width, int height) {
+        return imageUri.buildUpon()
+                .clearQuery()
+                .appendQueryParameter(PARAM_WIDTH, String.valueOf(width))
+                .appendQueryParameter(PARAM_HEIGHT, String.valueOf(height))
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Extension images are read-only.");
+        }
+
+        String key = getKey(uri);
+        File original = new File(new File(getContext().getFilesDir(), ORIGINALS_DIR),
+                Uri.encode(key));
+        // Zero if the file doesn't exist, which saves a separate check
+        long originalModified = original.lastModified();
+        if (originalModified == 0) {
+            throw new FileNotFoundException("No image stored for " + uri);
+        }
+
+        int width = parseDimension(uri.getQueryParameter(PARAM_WIDTH));
+        int height = parseDimension(uri.getQueryParameter(PARAM_HEIGHT));
+        if (width > 0 && height > 0) {
+            File variant = getVariant(original, originalModified, key, width, height);
+            if (variant != null) {
+                try {
+                    return ParcelFileDescriptor.open(variant, ParcelFileDescriptor.MODE_READ_ONLY);
+                } catch (FileNotFoundException e) {
+                    // Evicted since, or the system cleared the cache directory
+                    mVariants.remove(variant.getName());
+                }
+            }
+        }
+        return ParcelFileDescriptor.open(original, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Returns the cached copy of the given original downsampled to fit within the given size,
+     * creating it if needed. Returns null if the original is already small enough or can't be
+     * decoded, in which case the original should be served.
+     */
+    private File getVariant(File original, long originalModified, String key, int width,
+            int height) {
+        String name = Uri.encode(key) + "_" + width + "x" + height;
+        Variant cached = mVariants.get(name);
+        if (cached != null && cached.mOriginalModified == originalModified) {
+            return cached.mFile;
+        }
+
+        VariantLock lock;
+        synchronized (mVariantLocks) {
+            lock = mVariantLocks.get(name);
+            if (lock == null) {
+                lock = new VariantLock();
+                mVariantLocks.put(name, lock);
+            }
+            ++lock.mUsers;
+        }
+        try {
+            synchronized (lock) {
+                return createVariant(original, originalModified, key, name, width, height);
+            }
+        } finally {
+            synchronized (mVariantLocks) {
+                if (--lock.mUsers == 0) {
+                    mVariantLocks.remove(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the variant with the given file name, unless a request that held its lock before
+     * created it already or it is on disk from a previous process.
+     */
+    private File createVariant(File original, long originalModified, String key, String name,
+            int width, int height) {
+        Variant cached = mVariants.get(name);
+        if (cached != null && cached.mOriginalModified == originalModified) {
+            return cached.mFile;
+        }
+
+        File variant = new File(getCacheDir(), name);
+        if (variant.lastModified() >= originalModified) {
+            mVariants.put(name, new Variant(variant, originalModified));
+            return variant;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(original.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0
+                || (options.outWidth <= width && options.outHeight <= height)) {
+            mVariants.put(name, new Variant(null, originalModified));
+            return null;
+        }
+
+        // Subsample while decoding so full-size photos never get fully decoded
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width
+                && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeFile(original.getPath(), options);
+        if (bitmap == null) {
+            mVariants.put(name, new Variant(null, originalModified));
+            return null;
+        }
+
+        float scale = Math.min((float) width / bitmap.getWidth(),
+                (float) height / bitmap.getHeight());
+        if (scale < 1) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+
+        try {
+            OutputStream out = new FileOutputStream(variant);
+            try {
+                bitmap.compress(formatFor(bitmap), 90, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't cache downsampled image " + key, e);
+            variant.delete();
+            return null;
+        } finally {
+            bitmap.recycle();
+        }
+
+        mVariants.put(name, new Variant(variant, originalModified));
+        trimCache();
+        return variant;
+    }
+
+    /**
+     * Deletes the least recently served downsampled copies until the cache fits within
+     * {@link #MAX_CACHE_SIZE_BYTES}. Copies left by a previous process go first, oldest first.
+     */
+    private void trimCache() {
+        synchronized (mTrimLock) {
+            File[] files = getCacheDir().listFiles();
+            if (files == null) {
+                return;
+            }
+
+            long total = 0;
+            for (File file : files) {
+                total += file.length();
+            }
+            if (total <= MAX_CACHE_SIZE_BYTES) {
+                return;
+            }
+
+            Map<String, Variant> served = mVariants.snapshot();
+            List<File> evictionOrder = new ArrayList<File>(files.length);
+            for (File file : files) {
+                if (!served.containsKey(file.getName())) {
+                    evictionOrder.add(file);
+                }
+            }
+            Collections.sort(evictionOrder, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    long l = lhs.lastModified();
+                    long r = rhs.lastModified();
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+            // The snapshot is ordered from least to most recently used
+            for (Variant variant : served.values()) {
+                if (variant.mFile != null) {
+                    evictionOrder.add(variant.mFile);
+                }
+            }
+
+            for (File file : evictionOrder) {
+                if (total <= MAX_CACHE_SIZE_BYTES) {
+                    break;
+                }
+                total -= file.length();
+                mVariants.remove(file.getName());
+                file.delete();
+            }
+        }
+    }
+
+    private synchronized File getCacheDir() {
+        if (mCacheDir == null) {
+            mCacheDir = new File(getContext().getCacheDir(), CACHE_DIR);
+            mCacheDir.mkdirs();
+        }
+        return mCacheDir;
+    }
+
+    private static File getOriginalFile(Context context, String key) {
+        File dir = new File(context.getFilesDir(), ORIGINALS_DIR);
+        dir.mkdirs();
+        return new File(dir, Uri.encode(key));
+    }
+
+    private static String getKey(Uri uri) throws FileNotFoundException {
+        if (uri.getPathSegments().size() != 2
+                || !PATH_IMAGES.equals(uri.getPathSegments().get(0))) {
+            throw new FileNotFoundException("Unknown extension image URI " + uri);
+        }
+        return uri.getLastPathSegment();
+    }
+
+    private static int parseDimension(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Bitmap.CompressFormat formatFor(Bitmap bitmap) {
+        // Icons need their alpha channel, backgrounds are usually photos
+        return bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return "image/*";
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Use putImage() to store extension images.");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Use removeImage() to delete extension images.");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Extension images are read-only.");
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions;
+
+import java.io.PrintWriter;
+
+/**
+ * Counters and histograms describing how a {@link MindMeExtension} behaved since its service was
+ * created: update requests and runs per reason, the time runs waited in the queue and spent in
+ * {@link MindMeExtension#onUpdateData(UpdateRequest)}, and the outcome and size of publishes.
+ *
+ * <p>
+ * Instances returned by {@link MindMeExtension#getMetrics()} are snapshots and don't change
+ * afterwards. The same data is printed by <code>adb shell dumpsys activity service
+ * &lt;extension component&gt;</code>.
+ */
+public final class ExtensionMetrics {
+    /**
+     * Upper bounds, in milliseconds, of all but the last bucket of the latency histograms. The
+     * last bucket counts everything above the last bound.
+     */
+    private static final long[] LATENCY_BOUNDS_MILLIS
+            = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    /**
+     * Upper bounds, in bytes, of all but the last bucket of the parcel size histogram.
+     */
+    private static final long[] SIZE_BOUNDS_BYTES
+            = {1024, 4 * 1024, 16 * 1024, 64 * 1024, 128 * 1024, 512 * 1024};
+
+    private static final int REASON_COUNT = MindMeExtension.UPDATE_REASON_SETTINGS_CHANGED + 1;
+
+    private final long[] mRequestCounts = new long[REASON_COUNT];
+    private final long[] mRunCounts = new long[REASON_COUNT];
+    private final long[] mCacheHitCounts = new long[REASON_COUNT];
+    private final long[] mRunLatencies = new long[LATENCY_BOUNDS_MILLIS.length + 1];
+    private final long[] mQueueWaits = new long[LATENCY_BOUNDS_MILLIS.length + 1];
+    private final long[] mParcelSizes = new long[SIZE_BOUNDS_BYTES.length + 1];
+    private long mPublishSuccessCount;
+    private long mPublishFailureCount;
+    private long mPublishUnchangedCount;
+    private long mPublishSupersededCount;
+    private long mPublishedBytes;
+    private long mMaxParcelSize;
+
+    ExtensionMetrics() {
+    }
+
+    synchronized void recordRequest(int reason) {
+        ++mRequestCounts[reasonIndex(reason)];
+    }
+
+    synchronized void recordRun(int reason, long queueWaitMillis, long latencyMillis) {
+        ++mRunCounts[reasonIndex(reason)];
+        ++mQueueWaits[bucket(LATENCY_BOUNDS_MILLIS, queueWaitMillis)];
+        ++mRunLatencies[bucket(LATENCY_BOUNDS_MILLIS, latencyMillis)];
+    }
+
+    synchronized void recordCacheHit(int reason) {
+        ++mCacheHitCounts[reasonIndex(reason)];
+    }
+
+    synchronized void recordPublish(int parcelSize) {
+        ++mPublishSuccessCount;
+        if (parcelSize > 0) {
+            ++mParcelSizes[bucket(SIZE_BOUNDS_BYTES, parcelSize)];
+            mPublishedBytes += parcelSize;
+            mMaxParcelSize = Math.max(mMaxParcelSize, parcelSize);
+        }
+    }
+
+    synchronized void recordPublishFailure() {
+        ++mPublishFailureCount;
+    }
+
+    synchronized void recordPublishUnchanged() {
+        ++mPublishUnchangedCount;
+    }
+
+    synchronized void recordPublishSuperseded() {
+        ++mPublishSupersededCount;
+    }
+
+    /**
+     * Returns an immutable copy of the current values.
+     */
+    synchronized ExtensionMetrics snapshot() {
+        ExtensionMetrics copy = new ExtensionMetrics();
+        System.arraycopy(mRequestCounts, 0, copy.mRequestCounts, 0, REASON_COUNT);
+        System.arraycopy(mRunCounts, 0, copy.mRunCounts, 0, REASON_COUNT);
+        System.arraycopy(mCacheHitCounts, 0, copy.mCacheHitCounts, 0, REASON_COUNT);
+        System.arraycopy(mRunLatencies, 0, copy.mRunLatencies, 0, mRunLatencies.length);
+        System.arraycopy(mQueueWaits, 0, copy.mQueueWaits, 0, mQueueWaits.length);
+        System.arraycopy(mParcelSizes, 0, copy.mParcelSizes, 0, mParcelSizes.length);
+        copy.mPublishSuccessCount = mPublishSuccessCount;
+        copy.mPublishFailureCount = mPublishFailureCount;
+        copy.mPublishUnchangedCount = mPublishUnchangedCount;
+        copy.mPublishSupersededCount = mPublishSupersededCount;
+        copy.mPublishedBytes = mPublishedBytes;
+        copy.mMaxParcelSize = mMaxParcelSize;
+        return copy;
+    }
+
+    /**
+     * Returns the number of update requests received from the main app with the given reason.
+     * Reasons unknown to this version of the library are counted as
+     * {@link MindMeExtension#UPDATE_REASON_UNKNOWN}.
+     */
+    public synchronized long requestCount(int reason) {
+        return mRequestCounts[reasonIndex(reason)];
+    }
+
+    /**
+     * Returns the number of runs of {@link MindMeExtension#onUpdateData(UpdateRequest)} with the
+     * given (coalesced) reason. Lower than {@link #requestCount(int)} when requests were merged.
+     */
+    public synchronized long runCount(int reason) {
+        return mRunCounts[reasonIndex(reason)];
+    }
+
+    /**
+     * Returns the number of coalesced requests with the given reason that were answered by
+     * republishing fresh data instead of running
+     * {@link MindMeExtension#onUpdateData(UpdateRequest)}.
+     */
+    public synchronized long cacheHitCount(int reason) {
+        return mCacheHitCounts[reasonIndex(reason)];
+    }
+
+    /**
+     * Returns the upper bounds, in milliseconds, of the buckets of
+     * {@link #runLatencyHistogram()} and {@link #queueWaitHistogram()}. Histograms have one more
+     * bucket than there are bounds, counting everything above the last bound.
+     */
+    public static long[] latencyBucketBoundsMillis() {
+        return LATENCY_BOUNDS_MILLIS.clone();
+    }
+
+    /**
+     * Returns the histogram of the time spent in
+     * {@link MindMeExtension#onUpdateData(UpdateRequest)}.
+     *
+     * @see #latencyBucketBoundsMillis()
+     */
+    public synchronized long[] runLatencyHistogram() {
+        return mRunLatencies.clone();
+    }
+
+    /**
+     * Returns the histogram of the time between the first request merged into a run and the
+     * start of that run.
+     *
+     * @see #latencyBucketBoundsMillis()
+     */
+    public synchronized long[] queueWaitHistogram() {
+        return mQueueWaits.clone();
+    }
+
+    /**
+     * Returns the upper bounds, in bytes, of the buckets of {@link #parcelSizeHistogram()}.
+     */
+    public static long[] sizeBucketBoundsBytes() {
+        return SIZE_BOUNDS_BYTES.clone();
+    }
+
+    /**
+     * Returns the histogram of the parcel sizes sent by successful single-entry publishes. Batches
+     * sent with {@link MindMeExtension#publishUpdates(java.util.List)} and publishes clearing the data are
+     * not measured and not counted here.
+     *
+     * @see #sizeBucketBoundsBytes()
+     */
+    public synchronized long[] parcelSizeHistogram() {
+        return mParcelSizes.clone();
+    }
+
+    /**
+     * Returns the number of publishes that reached the main app.
+     */
+    public synchronized long publishSuccessCount() {
+        return mPublishSuccessCount;
+    }
+
+    /**
+     * Returns the number of publishes that failed with a {@link android.os.RemoteException}.
+     */
+    public synchronized long publishFailureCount() {
+        return mPublishFailureCount;
+    }
+
+    /**
+     * Returns the number of publishes skipped because the data was unchanged.
+     */
+    public synchronized long publishUnchangedCount() {
+        return mPublishUnchangedCount;
+    }
+
+    /**
+     * Returns the number of publishes dropped because their update run had been superseded.
+     */
+    public synchronized long publishSupersededCount() {
+        return mPublishSupersededCount;
+    }
+
+    /**
+     * Returns the total parcel bytes sent by successful single-entry publishes.
+     */
+    public synchronized long publishedBytes() {
+        return mPublishedBytes;
+    }
+
+    /**
+     * Returns the largest parcel sent by a successful single-entry publish, in bytes.
+     */
+    public synchronized long maxParcelSize() {
+        return mMaxParcelSize;
+    }
+
+    synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Update requests / runs / cache hits by reason:");
+        for (int reason = 0; reason < REASON_COUNT; reason++) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(reasonName(reason));
+            writer.print(": ");
+            writer.print(mRequestCounts[reason]);
+            writer.print(" / ");
+            writer.print(mRunCounts[reason]);
+            writer.print(" / ");
+            writer.println(mCacheHitCounts[reason]);
+        }
+        dumpHistogram(prefix, writer, "Run latency (ms):", LATENCY_BOUNDS_MILLIS, mRunLatencies);
+        dumpHistogram(prefix, writer, "Queue wait (ms):", LATENCY_BOUNDS_MILLIS, mQueueWaits);
+        dumpHistogram(prefix, writer, "Parcel size (bytes):", SIZE_BOUNDS_BYTES, mParcelSizes);
+        writer.print(prefix);
+        writer.print("Publishes: ok=");
+        writer.print(mPublishSuccessCount);
+        writer.print(" failed=");
+        writer.print(mPublishFailureCount);
+        writer.print(" unchanged=");
+        writer.print(mPublishUnchangedCount);
+        writer.print(" superseded=");
+        writer.println(mPublishSupersededCount);
+        writer.print(prefix);
+        writer.print("Published bytes: total=");
+        writer.print(mPublishedBytes);
+        writer.print(" max=");
+        writer.println(mMaxParcelSize);
+    }
+
+    private static void dumpHistogram(String prefix, PrintWriter writer, String title,
+            long[] bounds, long[] counts) {
+        writer.print(prefix);
+        writer.println(title);
+        for (int i = 0; i < counts.length; i++) {
+            writer.print(prefix);
+            writer.print(i < bounds.length ? "  <=" + bounds[i] : "  >" + bounds[bounds.length - 1]);
+            writer.print(": ");
+            writer.println(counts[i]);
+        }
+    }
+
+    private static int bucket(long[] bounds, long value) {
+        for (int i = 0; i < bounds.length; i++) {
+            if (value <= bounds[i]) {
+                return i;
+            }
+        }
+        return bounds.length;
+    }
+
+    private static int reasonIndex(int reason) {
+        return reason >= 0 && reason < REASON_COUNT ? reason : MindMeExtension.UPDATE_REASON_UNKNOWN;
+    }
+
+    private static String reasonName(int reason) {
+        switch (reason) {
+            case MindMeExtension.UPDATE_REASON_MANUAL:
+                return "manual";
+            case MindMeExtension.UPDATE_REASON_PERIODIC:
+                return "periodic";
+            case MindMeExtension.UPDATE_REASON_SETTINGS_CHANGED:
+                return "settings changed";
+            default:
+                return "unknown";
+        }
+    }
+}
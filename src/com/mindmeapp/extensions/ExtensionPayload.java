@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class whose instances travel in {@link ExtensionData#payload(ExtensionPayloadCodec,
+ * Object)}. The annotation processor in the <code>processor</code> module generates, next to the
+ * class, a <code>&lt;ClassName&gt;Codec</code> implementing {@link ExtensionPayloadCodec} with
+ * Parcel, Bundle and JSON codecs that access the fields directly, without reflection.
+ *
+ * <p>
+ * The class needs a no-argument constructor visible to its package, and nested classes must be
+ * static and not private. All non-static, non-transient fields are encoded and must not be
+ * private. Supported field types are <code>boolean</code>, <code>int</code>, <code>long</code>,
+ * <code>float</code>, <code>double</code> and {@link String}. For example:
+ *
+ * <pre class="prettyprint">
+ * &#64;ExtensionPayload
+ * public class Forecast {
+ *     int temperature;
+ *     double precipitation;
+ *     String summary;
+ * }
+ *
+ * data.payload(ForecastCodec.INSTANCE, forecast);
+ * </pre>
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface ExtensionPayload {
+}
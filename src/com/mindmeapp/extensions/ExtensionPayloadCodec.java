@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions;
+
+import java.io.IOException;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+/**
+ * Encodes and decodes instances of a class annotated with {@link ExtensionPayload}.
+ * Implementations are generated by the annotation processor and exposed as
+ * <code>&lt;ClassName&gt;Codec.INSTANCE</code>; there is no need to implement this interface by
+ * hand.
+ *
+ * <p>
+ * Generated codecs register themselves with
+ * {@link ExtensionData#registerPayloadCodec(ExtensionPayloadCodec)} when their class is loaded,
+ * i.e. the first time <code>INSTANCE</code> is used. The JSON methods of {@link ExtensionData}
+ * only convert payloads of registered codecs: a process that reads JSON payloads before touching
+ * their codec, e.g. when restoring a snapshot at startup, must reference <code>INSTANCE</code>
+ * first. Payloads written to JSON without their codec are kept in parcel form instead.
+ *
+ * @param <T> The payload class.
+ */
+public interface ExtensionPayloadCodec<T> {
+    /**
+     * Returns the id sent along with encoded payloads, which tells readers the codec to decode them
+     * with. Generated codecs return the binary name of the payload class.
+     */
+    String id();
+
+    /**
+     * Writes all fields of the given value to the parcel.
+     */
+    void writeToParcel(T value, Parcel out);
+
+    /**
+     * Reads a value written by {@link #writeToParcel(Object, Parcel)}.
+     */
+    T createFromParcel(Parcel in);
+
+    /**
+     * Returns a {@link Bundle} holding all fields of the given value, keyed by field name.
+     */
+    Bundle toBundle(T value);
+
+    /**
+     * Reads a value from a {@link Bundle} returned by {@link #toBundle(Object)}. Missing fields
+     * keep their default values.
+     */
+    T fromBundle(Bundle bundle);
+
+    /**
+     * Writes the given value as a JSON object, keyed by field name. Null strings are omitted.
+     */
+    void writeJson(T value, JsonWriter writer) throws IOException;
+
+    /**
+     * Reads the next JSON object from the given stream. Unknown names are skipped and missing
+     * fields keep their default values.
+     */
+    T readJson(JsonReader reader) throws IOException;
+
+    /**
+     * Compares all fields of the two values. Either value may be null.
+     */
+    boolean equals(T x, T y);
+
+    /**
+     * Returns a hash code of all fields of the given value, consistent with
+     * {@link #equals(Object, Object)}.
+     */
+    int hashCode(T value);
+}
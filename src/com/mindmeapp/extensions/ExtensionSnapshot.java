@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+/**
+ * On-disk copy of the last {@link ExtensionData} published by an extension, so it can be
+ * republished as soon as the main app connects, before the extension has fetched fresh data.
+ *
+ * <p>
+ * The snapshot is written with {@link ExtensionData#writeJson(JsonWriter)} to a temporary file
+ * that then replaces the previous one, so a crash mid-write never leaves a truncated snapshot.
+ * {@link ExtensionData#viewsToDisplay()} is not persisted.
+ */
+final class ExtensionSnapshot {
+    private static final String TAG = "ExtensionSnapshot";
+
+    private static final String CHARSET = "UTF-8";
+
+    private final File mFile;
+    private final File mTempFile;
+
+    ExtensionSnapshot(Context context, String name) {
+        mFile = new File(context.getFilesDir(), "mindme_snapshot_" + name + ".json");
+        mTempFile = new File(mFile.getPath() + ".tmp");
+    }
+
+    /**
+     * Returns the last saved data, or null if there is none, it could not be read or it was saved
+     * more than the given time ago.
+     */
+    synchronized ExtensionData load(long maxAgeMillis) {
+        if (!mFile.exists()) {
+            return null;
+        }
+        long age = System.currentTimeMillis() - mFile.lastModified();
+        if (age > maxAgeMillis) {
+            // Too old to show, and only getting older
+            mFile.delete();
+            return null;
+        }
+
+        JsonReader reader = null;
+        try {
+            reader = new JsonReader(new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mFile), CHARSET)));
+            ExtensionData data = new ExtensionData();
+            data.readJson(reader);
+            return data;
+        } catch (IOException e) {
+            // Also thrown for truncated or malformed JSON, which would fail again next time
+            Log.w(TAG, "Discarding unreadable extension data snapshot.", e);
+            mFile.delete();
+            return null;
+        } catch (RuntimeException e) {
+            // Unexpected values surface as IllegalStateException/NumberFormatException
+            Log.w(TAG, "Discarding corrupt extension data snapshot.", e);
+            mFile.delete();
+            return null;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Replaces the saved data. Passing null deletes the snapshot.
+     */
+    synchronized void save(ExtensionData data) {
+        if (data == null) {
+            mFile.delete();
+            return;
+        }
+
+        JsonWriter writer = null;
+        try {
+            writer = new JsonWriter(new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(mTempFile), CHARSET)));
+            data.writeJson(writer);
+            writer.close();
+            writer = null;
+            if (!mTempFile.renameTo(mFile)) {
+                Log.w(TAG, "Couldn't replace extension data snapshot.");
+                mTempFile.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't write extension data snapshot.", e);
+            mTempFile.delete();
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
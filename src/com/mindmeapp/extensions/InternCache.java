@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions;
+
+import java.util.Locale;
+
+import android.net.Uri;
+import android.util.LruCache;
+
+/**
+ * Bounded caches of canonical {@link Uri} and {@link Locale} instances shared by all
+ * {@link ExtensionData} decode paths. Extensions publish the same handful of icon URIs and
+ * languages over and over, so interning them saves the parsing and lets equality checks succeed
+ * on identity.
+ */
+final class InternCache {
+    private static final int MAX_URIS = 64;
+    private static final int MAX_LANGUAGES = 16;
+    private static final int MAX_LOCALES_PER_LANGUAGE = 4;
+
+    private static final LruCache<String, Uri> sUris = new LruCache<String, Uri>(MAX_URIS);
+
+    /**
+     * Locales by language, each with the few countries and variants seen for it, so lookups
+     * don't need to build a combined key.
+     */
+    private static final LruCache<String, Locale[]> sLocales
+            = new LruCache<String, Locale[]>(MAX_LANGUAGES);
+
+    private InternCache() {
+    }
+
+    /**
+     * Returns the canonical {@link Uri} for the given non-empty string.
+     */
+    static Uri uri(String value) {
+        Uri uri = sUris.get(value);
+        if (uri == null) {
+            uri = Uri.parse(value);
+            sUris.put(value, uri);
+        }
+        return uri;
+    }
+
+    /**
+     * Returns the canonical {@link Locale} for the given components. Null components are treated
+     * as empty.
+     */
+    static Locale locale(String language, String country, String variant) {
+        if (language == null) {
+            language = "";
+        }
+        if (country == null) {
+            country = "";
+        }
+        if (variant == null) {
+            variant = "";
+        }
+
+        Locale[] locales;
+        synchronized (sLocales) {
+            locales = sLocales.get(language);
+            if (locales == null) {
+                locales = new Locale[MAX_LOCALES_PER_LANGUAGE];
+                sLocales.put(language, locales);
+            }
+        }
+
+        synchronized (locales) {
+            int slot = locales.length - 1;
+            for (int i = 0; i < locales.length; i++) {
+                Locale locale = locales[i];
+                if (locale == null) {
+                    slot = i;
+                    break;
+                }
+                // Locale upper-cases the country
+                if (locale.getCountry().equalsIgnoreCase(country)
+                        && locale.getVariant().equals(variant)) {
+                    return locale;
+                }
+            }
+            // Once full, the last slot holds whatever was asked for last
+            Locale locale = new Locale(language, country, variant);
+            locales[slot] = locale;
+            return locale;
+        }
+    }
+}
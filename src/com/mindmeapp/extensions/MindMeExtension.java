@@ -16,20 +16,43 @@
 
 package com.mindmeapp.extensions;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
 import android.content.pm.Signature;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.widget.RemoteViews;
 
 import com.mindmeapp.extensions.internal.IMindMeExtension;
 import com.mindmeapp.extensions.internal.IMindMeExtensionHost;
@@ -67,7 +90,9 @@ import com.mindmeapp.extensions.internal.IMindMeExtensionHost;
  * you should add to your service definition:
  *
  * <ul>
- * <li><code>protocolVersion</code> (required): should be <strong>1</strong>.</li>
+ * <li><code>protocolVersion</code> (required): should be <strong>6</strong>. Extensions declaring
+ * version 1 keep working but won't be told about newer protocol features of the main app, see
+ * <a href="#protocol-versions">Protocol versions</a>.</li>
  * <li><code>description</code> (required): should be a one- or two-sentence description
  * of the extension, as a string.</li>
  * <li><code>settingsActivity</code> (optional): if present, should be the qualified
@@ -75,8 +100,42 @@ import com.mindmeapp.extensions.internal.IMindMeExtensionHost;
  * to the user for customizing the extension.</li>
  * <li><code>worldReadable</code> (optional): if present and true (default is false), will allow
  * other apps to read data for this extension.</li>
+ * <li><code>updateTtl</code> (optional): how long, in seconds, published data stays fresh. Periodic
+ * updates requested within this time of the last run republish the last data instead of calling
+ * {@link #onUpdateData(int)}. The time doubles, up to 8 times, while runs keep publishing
+ * unchanged data, and resets once the data changes or settings change.</li>
+ * <li><code>minUpdateInterval</code> (optional): minimum time, in seconds, between two periodic
+ * runs of {@link #onUpdateData(int)}. Manual and settings-change updates always run.</li>
  * </ul>
  *
+ * <h3><a name="protocol-versions">Protocol versions</a></h3>
+ *
+ * Extensions declaring protocol version 2 or above are told the protocol version of the main app
+ * through {@link IMindMeExtension#setHostProtocolVersion(int)}, and this class only uses the
+ * features that version supports:
+ *
+ * <ul>
+ * <li><strong>1</strong>: data is published with
+ * {@link IMindMeExtensionHost#publishUpdate(ExtensionData)} in the version 1
+ * {@link ExtensionData} parcel layout. The <code>worldReadable</code> meta-data is honored.</li>
+ * <li><strong>2</strong>: adds field-level deltas, several entries in one transaction, data over
+ * 128KB sent through a file, speech streamed ahead of the data, the end of each update run
+ * reported through {@link IMindMeExtensionHost#onUpdateFinished()} and update times scheduled by
+ * the main app. Data uses the version 2 parcel layout, which doesn't rely on Java
+ * serialization.</li>
+ * <li><strong>3</strong>: the version 3 parcel layout, which adds
+ * {@link ExtensionData#collectionUri()} and {@link ExtensionData#collectionVersion()}.</li>
+ * <li><strong>4</strong>: the version 4 parcel layout, which adds typed payloads, see
+ * {@link ExtensionData#payload(ExtensionPayloadCodec, Object)}.</li>
+ * <li><strong>5</strong>: the version 5 parcel layout, which adds
+ * {@link ExtensionData#extras()}.</li>
+ * <li><strong>6</strong>: the version 6 parcel layout, which frames fields in sections that older
+ * readers skip, and lets the main app decode the views and extras only when it needs them.</li>
+ * </ul>
+ *
+ * From version 3 on, the protocol version is also the highest {@link ExtensionData} parcel
+ * layout the main app reads, so new fields only need a new parcel layout and no new AIDL method.
+ *
  * <h3>Example</h3>
  *
  * Below is an example extension declaration in the manifest:
@@ -89,7 +148,7 @@ import com.mindmeapp.extensions.internal.IMindMeExtensionHost;
  *     &lt;intent-filter&gt;
  *         &lt;action android:name="com.mindmeapp.extensions.Extension" /&gt;
  *     &lt;/intent-filter&gt;
- *     &lt;meta-data android:name="protocolVersion" android:value="1" /&gt;
+ *     &lt;meta-data android:name="protocolVersion" android:value="6" /&gt;
  *     &lt;meta-data android:name="worldReadable" android:value="true" /&gt;
  *     &lt;meta-data android:name="description"
  *         android:value="@string/extension_description" /&gt;
@@ -157,6 +216,25 @@ public abstract class MindMeExtension extends Service {
      */
     public static final int UPDATE_REASON_SETTINGS_CHANGED = 3;    
 
+    /**
+     * Update policy under which at most one run of {@link #onUpdateData(UpdateRequest)} is in
+     * flight at any time. Requests arriving during a run are coalesced into a single follow-up
+     * run. This is the default.
+     *
+     * @see #getUpdatePolicy()
+     */
+    public static final int UPDATE_POLICY_SERIAL = 0;
+
+    /**
+     * Update policy under which a new run of {@link #onUpdateData(UpdateRequest)} may start while
+     * previous ones are still in flight, as far as the executor returned by
+     * {@link #onCreateUpdateExecutor()} allows. Requests are only coalesced while a run is waiting
+     * to start. {@link #onUpdateData(UpdateRequest)} must then be thread-safe.
+     *
+     * @see #getUpdatePolicy()
+     */
+    public static final int UPDATE_POLICY_CONCURRENT = 1;
+
     /**
      * The {@link Intent} action representing a MindMe extension. This service should
      * declare an <code>&lt;intent-filter&gt;</code> for this action in order to register with
@@ -184,12 +262,155 @@ public abstract class MindMeExtension extends Service {
      */
     private static final int PROTOCOL_VERSION_WORLD_READABILITY = 1;
 
+    /**
+     * The protocol version with which the main app started accepting field-level deltas through
+     * {@link IMindMeExtensionHost#publishUpdateDelta(int, ExtensionData)}.
+     */
+    private static final int PROTOCOL_VERSION_DELTA_UPDATES = 2;
+
+    /**
+     * The protocol version with which the main app started accepting several entries in one
+     * transaction through {@link IMindMeExtensionHost#publishUpdates(List)}.
+     */
+    private static final int PROTOCOL_VERSION_BATCH_UPDATES = 2;
+
+    /**
+     * The protocol version with which the main app started reading {@link ExtensionData} parcels
+     * newer than version 1.
+     */
+    private static final int PROTOCOL_VERSION_PARCEL_V2 = 2;
+
+    /**
+     * The protocol version with which the main app started accepting data through
+     * {@link IMindMeExtensionHost#publishUpdateFromFile(ParcelFileDescriptor, int)}.
+     */
+    private static final int PROTOCOL_VERSION_LARGE_PAYLOADS = 2;
+
+    /**
+     * The protocol version with which the main app started expecting
+     * {@link IMindMeExtensionHost#onUpdateFinished()} at the end of each update run, including
+     * runs that publish nothing.
+     */
+    private static final int PROTOCOL_VERSION_UPDATE_FINISHED = 2;
+
+    /**
+     * The protocol version with which the main app started accepting speech as it is produced
+     * through {@link IMindMeExtensionHost#publishSpeechSegment}.
+     */
+    private static final int PROTOCOL_VERSION_SPEECH_SEGMENTS = 2;
+
+    /**
+     * The protocol version with which the main app started reading version 3
+     * {@link ExtensionData} parcels, which carry a collection URI. From this version on, hosts
+     * read parcels up to the version matching their protocol version.
+     */
+    private static final int PROTOCOL_VERSION_PARCEL_V3 = 3;
+
+    /**
+     * Largest parcel published inline. The binder transaction buffer is 1MB and shared by all
+     * pending transactions of the process, so larger payloads go through a file descriptor.
+     */
+    private static final int MAX_INLINE_PAYLOAD_SIZE = 128 * 1024;
+
+    /**
+     * How many times the declared <code>updateTtl</code> may double while the data stays
+     * unchanged, i.e. the freshness window backs off to at most 8 times the TTL.
+     */
+    private static final int MAX_TTL_BACKOFF_SHIFT = 3;
+
+    private static final long DEFAULT_PRE_LOAD_LEAD_TIME_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * How long publishes are collected before the last one is written to the snapshot, so a burst
+     * of publishes costs a single write.
+     */
+    private static final long SNAPSHOT_SAVE_DELAY_MILLIS = 2000;
+
+    /**
+     * Longest time {@link #onDestroy()} waits for a pending snapshot save.
+     */
+    private static final long SNAPSHOT_FLUSH_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * Oldest snapshot republished by extensions that don't declare an <code>updateTtl</code>.
+     */
+    private static final long DEFAULT_SNAPSHOT_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+
     private boolean mInitialized = false;
     private boolean mIsWorldReadable = false;
     private IMindMeExtensionHost mHost;
 
+    /**
+     * UIDs whose package signature matched one of {@link #TRUSTED_SIGNATURES}. Kept per service,
+     * since {@link #mPackageChangeReceiver}, which invalidates it, only listens while this service
+     * is alive.
+     */
+    private final SparseBooleanArray mVerifiedUids = new SparseBooleanArray();
+    private volatile int mHostProtocolVersion = 1;
+
+    /**
+     * Guards the last data published to the current host, used to drop identical publishes and to
+     * compute field-level deltas.
+     */
+    private final Object mPublishLock = new Object();
+    private boolean mHasPublished = false;
+    private ExtensionData mLastPublished = null;
+    private boolean mSnapshotRepublishPending = false;
+    private ExtensionSnapshot mSnapshot;
+    private volatile int mLastPublishedSize = 0;
+
+    /**
+     * Data waiting for {@link #mSnapshotSaver}, null to delete the snapshot, guarded by
+     * {@link #mSnapshotLock}.
+     */
+    private final Object mSnapshotLock = new Object();
+    private ExtensionData mPendingSnapshot = null;
+    private boolean mSnapshotSavePending = false;
+
+    /**
+     * Speech stream state, also guarded by {@link #mPublishLock}. Hosts that can't receive
+     * segments get them appended to {@link #mBufferedSpeech} instead.
+     */
+    private int mSpeechStreamId = 0;
+    private int mSpeechSequence = 0;
+    private final StringBuilder mBufferedSpeech = new StringBuilder();
+    private Locale mBufferedSpeechLocale = null;
+
     private volatile Looper mServiceLooper;
     private volatile Handler mServiceHandler;
+    private Executor mDefaultUpdateExecutor;
+    private volatile Executor mUpdateExecutor;
+    private int mUpdatePolicy = UPDATE_POLICY_SERIAL;
+    private volatile boolean mDestroyed = false;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Guards the coalescing update queue below. Update requests are merged into the pending run
+     * while one is queued or in flight, so bursts from the main app only cost a single refresh.
+     */
+    private final Object mUpdateLock = new Object();
+    private boolean mUpdatePending = false;
+    private Object mPreLoadedData = null;
+    private long mPreLoadedAt = 0;
+    private long mLastPeriodicRequestAt = 0;
+    private volatile boolean mHostSchedulesUpdates = false;
+    private final List<UpdateRequest> mRunningUpdates = new ArrayList<UpdateRequest>();
+
+    /**
+     * The update run executing on the current thread, used to drop publishes from cancelled runs.
+     */
+    private final ThreadLocal<UpdateRequest> mCurrentUpdate = new ThreadLocal<UpdateRequest>();
+    private int mPendingReason = UPDATE_REASON_UNKNOWN;
+    private int mPendingRequestCount = 0;
+    private long mPendingSince = 0;
+
+    private long mUpdateTtlMillis = 0;
+    private long mMinUpdateIntervalMillis = 0;
+    private long mLastRunAt = 0;
+    private int mUnchangedRunCount = 0;
+    private volatile int mChangedPublishCount = 0;
+
+    private final ExtensionMetrics mMetrics = new ExtensionMetrics();
 
     protected MindMeExtension() {
         super();
@@ -199,19 +420,100 @@ public abstract class MindMeExtension extends Service {
     public void onCreate() {
         super.onCreate();
         loadMetaData();
+        mSnapshot = new ExtensionSnapshot(this, getClass().getName());
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(mPackageChangeReceiver, packageFilter);
 
+        mUpdatePolicy = getUpdatePolicy();
+        mUpdateExecutor = onCreateUpdateExecutor();
+    }
+
+    /**
+     * Returns the {@link Executor} on which {@link #onUpdateData(UpdateRequest)} runs. Called once
+     * from {@link #onCreate()}. Override this to run updates on a bounded pool or on an executor
+     * shared by all extensions of the app, instead of a dedicated thread per extension. Executors
+     * returned by subclasses are not shut down by this class.
+     *
+     * <p>
+     * The default implementation starts a {@link HandlerThread} that is quit in
+     * {@link #onDestroy()}, so {@link #onUpdateData(int)} runs on a thread with a {@link Looper}.
+     *
+     * @see #getUpdatePolicy()
+     */
+    protected Executor onCreateUpdateExecutor() {
         HandlerThread thread = new HandlerThread(
                 "MindMeExtension:" + getClass().getSimpleName());
         thread.start();
 
         mServiceLooper = thread.getLooper();
         mServiceHandler = new Handler(mServiceLooper);
+        mDefaultUpdateExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mServiceHandler.post(command);
+            }
+        };
+        return mDefaultUpdateExecutor;
+    }
+
+    /**
+     * Returns how update runs of this extension may overlap. Called once from {@link #onCreate()}.
+     * The default is {@link #UPDATE_POLICY_SERIAL}.
+     */
+    protected int getUpdatePolicy() {
+        return UPDATE_POLICY_SERIAL;
     }
 
     @Override
     public void onDestroy() {
-        mServiceHandler.removeCallbacksAndMessages(null); // remove all callbacks
-        mServiceLooper.quit();
+        // Shared executors outlive this service, make sure queued runs become no-ops
+        mDestroyed = true;
+        mMainHandler.removeCallbacks(mPreLoadTrigger);
+        // The executor may not run a delayed save anymore, write it now
+        mMainHandler.removeCallbacks(mSnapshotTrigger);
+        flushSnapshot();
+        unregisterReceiver(mPackageChangeReceiver);
+        if (mServiceLooper != null) {
+            mServiceHandler.removeCallbacksAndMessages(null); // remove all callbacks
+            mServiceLooper.quit();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Writes a snapshot save still waiting for its delay on a background thread, waiting up to
+     * {@link #SNAPSHOT_FLUSH_TIMEOUT_MILLIS} for it so the main thread isn't held up by file I/O.
+     * A save that takes longer finishes in the background.
+     */
+    private void flushSnapshot() {
+        synchronized (mSnapshotLock) {
+            if (!mSnapshotSavePending) {
+                return;
+            }
+        }
+
+        final CountDownLatch saved = new CountDownLatch(1);
+        new Thread("MindMeExtension:" + getClass().getSimpleName() + ":snapshot") {
+            @Override
+            public void run() {
+                try {
+                    mSnapshotSaver.run();
+                } finally {
+                    saved.countDown();
+                }
+            }
+        }.start();
+        try {
+            if (!saved.await(SNAPSHOT_FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Snapshot save still running after the service was destroyed.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private void loadMetaData() {
@@ -225,6 +527,8 @@ public abstract class MindMeExtension extends Service {
                 int protocolVersion = metaData.getInt("protocolVersion");
                 mIsWorldReadable = protocolVersion >= PROTOCOL_VERSION_WORLD_READABILITY
                         && metaData.getBoolean("worldReadable");
+                mUpdateTtlMillis = metaData.getInt("updateTtl") * 1000L;
+                mMinUpdateIntervalMillis = metaData.getInt("minUpdateInterval") * 1000L;
             }
         } catch (PackageManager.NameNotFoundException e) {
             Log.w(TAG, "Could not load metadata (e.g. world readable) for extension.");
@@ -240,37 +544,22 @@ public abstract class MindMeExtension extends Service {
         @Override
         public void onInitialize(IMindMeExtensionHost host, boolean isReconnect)
                 throws RemoteException {
-            if (!mIsWorldReadable) {
-                // If not world readable, check the signature of the [first] package with the given
-                // UID against the known-good official MindMe app signature.
-                boolean verified = false;
-                PackageManager pm = getPackageManager();
-                String[] packages = pm.getPackagesForUid(getCallingUid());
-                if (packages != null && packages.length > 0) {
-                    try {
-                        PackageInfo pi = pm.getPackageInfo(packages[0],
-                                PackageManager.GET_SIGNATURES);
-                        if (pi.signatures != null
-                                && pi.signatures.length == 1
-                                && (MINDME_SIGNATURE.equals(pi.signatures[0])
-                                		|| ALARMPAD_SIGNATURE.equals(pi.signatures[0]))
-                                		|| ALARMPADPRO_SIGNATURE.equals(pi.signatures[0])) {
-                            verified = true;
-                        }
-                    } catch (PackageManager.NameNotFoundException ignored) {
-                    }
-                }
+            enforceCallerAllowed();
 
-                if (!verified) {
-                    Log.e(TAG, "Caller is not an official MindMe app and this "
-                            + "extension is not world-readable.");
-                    throw new SecurityException("Caller is not an official MindMe app and this "
-                            + "extension is not world-readable.");
-                }
+            synchronized (mPublishLock) {
+                mHost = host;
+                // Hosts that speak a newer protocol tell us so right after initializing
+                mHostProtocolVersion = 1;
+                mHostSchedulesUpdates = false;
+                mHasPublished = false;
+                mLastPublished = null;
+                mSpeechSequence = 0;
+                mBufferedSpeech.setLength(0);
+                mBufferedSpeechLocale = null;
+                // Held until the host's protocol version is known, see republishSnapshotLater()
+                mSnapshotRepublishPending = true;
             }
 
-            mHost = host;
-
             if (!mInitialized) {
                 MindMeExtension.this.onInitialize(isReconnect);
                 mInitialized = true;
@@ -279,20 +568,529 @@ public abstract class MindMeExtension extends Service {
 
         @Override
         public void onUpdate(final int reason) throws RemoteException {
+            enforceCallerAllowed();
+            if (!mInitialized) {
+                return;
+            }
+
+            // Version 1 hosts never send their protocol version, their first request is the cue
+            republishSnapshotLater();
+            requestUpdate(reason);
+        }
+
+        @Override
+        public void setHostProtocolVersion(int protocolVersion) throws RemoteException {
+            // Also decides the parcel layout sent to the host, other apps mustn't change it
+            enforceCallerAllowed();
+            if (mHost == null) {
+                return;
+            }
+
+            mHostProtocolVersion = protocolVersion;
+            republishSnapshotLater();
+        }
+
+        @Override
+        public void onScheduleUpdate(long triggerAtMillis) throws RemoteException {
+            enforceCallerAllowed();
             if (!mInitialized) {
                 return;
             }
 
-            // Do this in a separate thread
-            mServiceHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    MindMeExtension.this.onUpdateData(reason);
+            mHostSchedulesUpdates = true;
+            schedulePreLoad(SystemClock.elapsedRealtime()
+                    + (triggerAtMillis - System.currentTimeMillis()));
+        }
+    };
+
+    /**
+     * Hands data too large for a binder transaction to the main app through a file descriptor.
+     * Returns false if the host can't receive it this way or the data can't be written to a file,
+     * in which case it should be published inline.
+     *
+     * @param parcel The data already written to a parcel in the host's layout, or null to write
+     *               it here.
+     */
+    private boolean publishUpdateFromFile(ExtensionData data, Parcel parcel)
+            throws RemoteException {
+        if (data == null || mHostProtocolVersion < PROTOCOL_VERSION_LARGE_PAYLOADS) {
+            return false;
+        }
+
+        ParcelFileDescriptor fd = null;
+        Parcel written = null;
+        if (parcel == null) {
+            ExtensionData copy = data.delta(ExtensionData.FIELD_ALL)
+                    .parcelVersion(getHostParcelVersion());
+            written = copy.toParcel();
+            copy.recycle();
+        }
+        try {
+            Parcel source = parcel != null ? parcel : written;
+            if (source.dataSize() > ExtensionData.MAX_FILE_SIZE) {
+                // The main app refuses files this large
+                return false;
+            }
+            fd = ExtensionData.writeToFile(source, getCacheDir());
+            if (fd == null) {
+                return false;
+            }
+            mHost.publishUpdateFromFile(fd, (int) fd.getStatSize());
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't write extension data to a file.", e);
+            return false;
+        } finally {
+            if (written != null) {
+                written.recycle();
+            }
+            if (fd != null) {
+                try {
+                    // The binder transaction holds its own duplicate of the descriptor
+                    fd.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the update and publish metrics recorded since this service was
+     * created, e.g. to report them to your own telemetry.
+     */
+    public final ExtensionMetrics getMetrics() {
+        return mMetrics.snapshot();
+    }
+
+    /**
+     * Prints the metrics returned by {@link #getMetrics()}, so they show up in
+     * <code>adb shell dumpsys activity service &lt;extension component&gt;</code>. Subclasses
+     * overriding this should call through to include them.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.print(getClass().getName());
+        writer.print(" (host protocol ");
+        writer.print(mHostProtocolVersion);
+        writer.println("):");
+        mMetrics.dump("  ", writer);
+    }
+
+    /**
+     * Returns the size in bytes of the parcel sent to the main app by the last
+     * {@link #publishUpdate(ExtensionData)} call that reached it, or 0 if nothing was sent yet or
+     * the last call cleared the data. Deltas are measured as sent, with only the changed fields.
+     * Useful to keep an eye on how close {@link ExtensionData#viewsToDisplay(RemoteViews)} layouts
+     * get to the binder transaction limit.
+     */
+    protected final int getLastPublishedSize() {
+        return mLastPublishedSize;
+    }
+
+    /**
+     * Queues {@link #republishSnapshot()} on the update executor if the current host hasn't had
+     * the chance to get the snapshot yet. Called once the host's protocol version is known, so
+     * the snapshot is sent in a layout the host can read, and ahead of any update it requested.
+     */
+    private void republishSnapshotLater() {
+        synchronized (mPublishLock) {
+            if (!mSnapshotRepublishPending) {
+                return;
+            }
+            mSnapshotRepublishPending = false;
+        }
+
+        mUpdateExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                republishSnapshot();
+            }
+        });
+    }
+
+    /**
+     * Publishes the data saved by the last successful {@link #publishUpdate(ExtensionData)}, even
+     * from a previous process, unless something was already published to the current host. This
+     * keeps the main app from showing an empty card while the extension fetches fresh data.
+     * Snapshots older than the longest freshness window of the declared <code>updateTtl</code>, or
+     * than a day without one, are dropped instead.
+     */
+    private void republishSnapshot() {
+        if (mDestroyed) {
+            return;
+        }
+
+        synchronized (mPublishLock) {
+            if (mHasPublished || mHost == null) {
+                return;
+            }
+        }
+
+        // A save still waiting for its delay holds newer data than the file
+        mSnapshotSaver.run();
+        long maxAge = mUpdateTtlMillis > 0
+                ? mUpdateTtlMillis << MAX_TTL_BACKOFF_SHIFT : DEFAULT_SNAPSHOT_MAX_AGE_MILLIS;
+        ExtensionData snapshot = mSnapshot.load(maxAge);
+        synchronized (mPublishLock) {
+            // With concurrent updates, a fresh publish may have happened while loading
+            if (snapshot != null && !mHasPublished) {
+                publishUpdate(snapshot, false);
+            }
+        }
+    }
+
+    /**
+     * Throws a {@link SecurityException} unless this extension is world-readable or the calling
+     * app is an official MindMe app. Called by every incoming binder call.
+     */
+    private void enforceCallerAllowed() {
+        if (!mIsWorldReadable && !isCallerVerified(Binder.getCallingUid())) {
+            Log.e(TAG, "Caller is not an official MindMe app and this "
+                    + "extension is not world-readable.");
+            throw new SecurityException("Caller is not an official MindMe app and this "
+                    + "extension is not world-readable.");
+        }
+    }
+
+    /**
+     * Checks the signature of the [first] package with the given UID against the known-good
+     * official MindMe app signatures. Verified UIDs are cached until a package with that UID is
+     * replaced or removed, so repeated calls don't go through the package manager.
+     */
+    private boolean isCallerVerified(int uid) {
+        synchronized (mVerifiedUids) {
+            if (mVerifiedUids.get(uid)) {
+                return true;
+            }
+        }
+
+        boolean verified = false;
+        PackageManager pm = getPackageManager();
+        String[] packages = pm.getPackagesForUid(uid);
+        if (packages != null && packages.length > 0) {
+            try {
+                PackageInfo pi = pm.getPackageInfo(packages[0], PackageManager.GET_SIGNATURES);
+                if (pi.signatures != null
+                        && pi.signatures.length == 1
+                        && TRUSTED_SIGNATURES.contains(pi.signatures[0])) {
+                    verified = true;
+                }
+            } catch (PackageManager.NameNotFoundException ignored) {
+            }
+        }
+
+        if (verified) {
+            synchronized (mVerifiedUids) {
+                mVerifiedUids.put(uid, true);
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * Drops cached verifications for packages that were replaced or removed, since their
+     * signature (or the package owning the UID) may have changed.
+     */
+    private final BroadcastReceiver mPackageChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            synchronized (mVerifiedUids) {
+                if (uid == -1) {
+                    mVerifiedUids.clear();
+                } else {
+                    mVerifiedUids.delete(uid);
+                }
+            }
+        }
+    };
+
+    /**
+     * Queues an update for the given reason, merging it into the pending run if there is one.
+     * With {@link #UPDATE_POLICY_SERIAL}, requests arriving while a run is in flight are held back
+     * and a single follow-up run is scheduled once the current one finishes.
+     *
+     * <p>
+     * Requests fall in two lanes. Foreground requests ({@link #UPDATE_REASON_MANUAL} and
+     * {@link #UPDATE_REASON_SETTINGS_CHANGED}) cancel any run in flight and are queued ahead of
+     * other work waiting on the default executor. Background requests
+     * ({@link #UPDATE_REASON_PERIODIC} and unknown reasons) only cancel background runs, and are
+     * absorbed by a foreground run in flight, which is about to publish fresh data anyway.
+     */
+    private void requestUpdate(int reason) {
+        List<UpdateRequest> superseded;
+        boolean dispatch = true;
+        boolean background = UpdateRequest.isBackgroundReason(reason);
+        long expectedPeriodicAt = 0;
+        mMetrics.recordRequest(reason);
+        synchronized (mUpdateLock) {
+            if (reason == UPDATE_REASON_PERIODIC) {
+                long now = SystemClock.elapsedRealtime();
+                if (mLastPeriodicRequestAt > 0 && !mHostSchedulesUpdates) {
+                    // Assume the host keeps its current refresh interval
+                    expectedPeriodicAt = now + (now - mLastPeriodicRequestAt);
+                }
+                mLastPeriodicRequestAt = now;
+            }
+
+            if (background && hasForegroundUpdateRunning()) {
+                superseded = null;
+                dispatch = false;
+            } else {
+                superseded = new ArrayList<UpdateRequest>(mRunningUpdates);
+                dispatch = queueUpdate(reason);
+            }
+        }
+
+        if (expectedPeriodicAt > 0) {
+            schedulePreLoad(expectedPeriodicAt);
+        }
+
+        if (superseded != null) {
+            // Cancel listeners run extension code, keep them out of the lock
+            for (UpdateRequest running : superseded) {
+                running.cancel();
+            }
+        }
+
+        if (dispatch) {
+            dispatchUpdate(!background);
+        }
+    }
+
+    /**
+     * Merges a request into the pending run and returns whether a run must be dispatched for it.
+     * A foreground request upgrading a run already waiting on the executor dispatches it again,
+     * so it can jump ahead; whichever dispatch runs first takes the pending run. Must be called
+     * with {@link #mUpdateLock} held.
+     */
+    private boolean queueUpdate(int reason) {
+        boolean upgraded = mPendingRequestCount > 0
+                && UpdateRequest.isBackgroundReason(mPendingReason)
+                && !UpdateRequest.isBackgroundReason(reason);
+        if (mPendingRequestCount == 0) {
+            mPendingSince = SystemClock.elapsedRealtime();
+        }
+        if (mPendingRequestCount == 0
+                || reasonPriority(reason) > reasonPriority(mPendingReason)) {
+            mPendingReason = reason;
+        }
+        ++mPendingRequestCount;
+
+        if (mUpdatePending) {
+            return upgraded;
+        } else if (mUpdatePolicy == UPDATE_POLICY_SERIAL && !mRunningUpdates.isEmpty()) {
+            return false;
+        }
+        mUpdatePending = true;
+        return true;
+    }
+
+    private boolean hasForegroundUpdateRunning() {
+        for (UpdateRequest running : mRunningUpdates) {
+            if (!running.isBackground()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs {@link #mUpdateRunnable} on the update executor. On the default executor, foreground
+     * runs are posted at the front of the queue, ahead of pre-loading and other waiting work.
+     * Other executors receive them in request order.
+     */
+    private void dispatchUpdate(boolean foreground) {
+        if (foreground && mUpdateExecutor == mDefaultUpdateExecutor) {
+            mServiceHandler.postAtFrontOfQueue(mUpdateRunnable);
+        } else {
+            mUpdateExecutor.execute(mUpdateRunnable);
+        }
+    }
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mDestroyed) {
+                return;
+            }
+
+            UpdateRequest request = null;
+            long start = SystemClock.elapsedRealtime();
+            long queueWait;
+            int reason;
+            synchronized (mUpdateLock) {
+                if (!mUpdatePending) {
+                    // A foreground request dispatched the pending run again, which already ran
+                    return;
                 }
-            });
+                mUpdatePending = false;
+                queueWait = start - mPendingSince;
+                reason = mPendingReason;
+                if (!isDataFresh(reason, start)) {
+                    request = new UpdateRequest(reason, mPendingRequestCount,
+                            getUpdateDeadline(reason), takePreLoadedData(reason));
+                    mRunningUpdates.add(request);
+                }
+                mPendingReason = UPDATE_REASON_UNKNOWN;
+                mPendingRequestCount = 0;
+            }
+
+            boolean runAgain = false;
+            boolean foregroundAgain = false;
+            int publishCount = mChangedPublishCount;
+            mCurrentUpdate.set(request);
+            try {
+                if (request != null) {
+                    MindMeExtension.this.onUpdateData(request);
+                } else {
+                    republishLastData();
+                }
+            } finally {
+                mCurrentUpdate.set(null);
+                if (request != null) {
+                    mMetrics.recordRun(reason, queueWait, SystemClock.elapsedRealtime() - start);
+                } else {
+                    mMetrics.recordCacheHit(reason);
+                }
+                synchronized (mUpdateLock) {
+                    if (request != null) {
+                        mRunningUpdates.remove(request);
+                    }
+                    // A superseded run's publishes were dropped, it says nothing about freshness
+                    if (request != null && !request.isCancelled()) {
+                        mLastRunAt = start;
+                        if (mChangedPublishCount != publishCount
+                                || reason == UPDATE_REASON_SETTINGS_CHANGED) {
+                            mUnchangedRunCount = 0;
+                        } else {
+                            ++mUnchangedRunCount;
+                        }
+                    }
+                    // Concurrent runs are dispatched as soon as they are requested
+                    if (mUpdatePolicy == UPDATE_POLICY_SERIAL
+                            && mPendingRequestCount > 0 && !mUpdatePending) {
+                        mUpdatePending = true;
+                        runAgain = true;
+                        foregroundAgain = !UpdateRequest.isBackgroundReason(mPendingReason);
+                    }
+                }
+                notifyUpdateFinished();
+                if (runAgain) {
+                    dispatchUpdate(foregroundAgain);
+                }
+            }
         }
     };
 
+    /**
+     * Tells the main app that an update run is over, so it stops counting this extension as busy
+     * even if the run published nothing or only unchanged data.
+     */
+    private void notifyUpdateFinished() {
+        synchronized (mPublishLock) {
+            if (mHost == null || mHostProtocolVersion < PROTOCOL_VERSION_UPDATE_FINISHED) {
+                return;
+            }
+            try {
+                mHost.onUpdateFinished();
+            } catch (RemoteException e) {
+                Log.e(TAG, "Couldn't notify the main app of the end of an update.", e);
+            }
+        }
+    }
+
+    /**
+     * Returns whether a run for the given reason can be answered with the last published data
+     * instead of calling {@link #onUpdateData(UpdateRequest)}. Only periodic (and unknown) requests
+     * arriving within the freshness window of the last run qualify. The window is the larger of
+     * the declared minimum interval and the declared TTL, the latter doubling with every run that
+     * didn't change the data, up to {@link #MAX_TTL_BACKOFF_SHIFT} times. Must be called with
+     * {@link #mUpdateLock} held.
+     */
+    private boolean isDataFresh(int reason, long now) {
+        if ((reason != UPDATE_REASON_PERIODIC && reason != UPDATE_REASON_UNKNOWN)
+                || mLastRunAt == 0) {
+            return false;
+        }
+
+        long window = mMinUpdateIntervalMillis;
+        if (mUpdateTtlMillis > 0) {
+            window = Math.max(window,
+                    mUpdateTtlMillis << Math.min(mUnchangedRunCount, MAX_TTL_BACKOFF_SHIFT));
+        }
+        if (now - mLastRunAt >= window) {
+            return false;
+        }
+
+        synchronized (mPublishLock) {
+            return mHasPublished;
+        }
+    }
+
+    /**
+     * Sends the last published data to the main app again, answering an update request without
+     * running {@link #onUpdateData(UpdateRequest)}. Sent in full, the same way as new data.
+     */
+    private void republishLastData() {
+        synchronized (mPublishLock) {
+            if (!mHasPublished) {
+                return;
+            }
+
+            try {
+                sendUpdate(mLastPublished, ExtensionData.FIELD_ALL);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Couldn't publish updated extension data.", e);
+                mMetrics.recordPublishFailure();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the calling thread is executing an update run that has been superseded by a
+     * newer request, in which case anything it publishes is stale.
+     */
+    private boolean isCurrentUpdateCancelled() {
+        UpdateRequest current = mCurrentUpdate.get();
+        return current != null && current.isCancelled();
+    }
+
+    private long getUpdateDeadline(int reason) {
+        long timeout = getUpdateTimeoutMillis(reason);
+        return timeout > 0 ? SystemClock.elapsedRealtime() + timeout : 0;
+    }
+
+    /**
+     * Returns the time a run of {@link #onUpdateData(UpdateRequest)} for the given reason should
+     * take at most, exposed to the run through {@link UpdateRequest#deadline()}. The deadline is
+     * advisory: the library does not interrupt runs that exceed it. The default is 0, meaning no
+     * deadline.
+     *
+     * @param reason The reason for the update. See {@link #UPDATE_REASON_PERIODIC} and related
+     *               constants for more details.
+     */
+    protected long getUpdateTimeoutMillis(int reason) {
+        return 0;
+    }
+
+    /**
+     * Returns the relative priority of an update reason, used to pick the reason of a coalesced
+     * run. Unknown values (e.g. from newer versions of the main app) rank lowest.
+     */
+    private static int reasonPriority(int reason) {
+        switch (reason) {
+            case UPDATE_REASON_MANUAL:
+                return 3;
+            case UPDATE_REASON_SETTINGS_CHANGED:
+                return 2;
+            case UPDATE_REASON_PERIODIC:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
     /**
      * Called when a connection with the main app has been established or re-established
      * after a previous one was lost. In this latter case, the parameter <code>isReconnect</code>
@@ -305,9 +1103,136 @@ public abstract class MindMeExtension extends Service {
     protected void onInitialize(boolean isReconnect) {
     }
     
-    //TODO
-    protected void onPreLoadData() {
-    	
+    /**
+     * Called shortly before the main app is expected to request a periodic update, giving the
+     * extension a chance to do its slow work (network requests, database queries) ahead of time.
+     * The returned object is cached and handed to the next {@link #UPDATE_REASON_PERIODIC} run
+     * through {@link UpdateRequest#preLoadedData()}, which then only needs to format and publish
+     * it. The default implementation does nothing and returns <code>null</code>. This method is
+     * called on the same executor as {@link #onUpdateData(UpdateRequest)}.
+     *
+     * <p>
+     * Pre-loading is scheduled {@link #getPreLoadLeadTimeMillis()} before the time announced by
+     * the main app, or, for hosts that don't announce it, before the time predicted from the
+     * interval between the last two periodic updates. Since the schedule only lives as long as
+     * this service, {@link #onUpdateData(UpdateRequest)} must still handle a missing result.
+     *
+     * @return The pre-loaded data, or <code>null</code> if nothing was pre-loaded.
+     */
+    protected Object onPreLoadData() {
+        return null;
+    }
+
+    /**
+     * Returns how long before an expected periodic update {@link #onPreLoadData()} is called. Pre-
+     * loaded data older than twice this value is discarded. The default is 5 minutes.
+     */
+    protected long getPreLoadLeadTimeMillis() {
+        return DEFAULT_PRE_LOAD_LEAD_TIME_MILLIS;
+    }
+
+    /**
+     * Schedules {@link #onPreLoadData()} ahead of a periodic update expected at the given time, in
+     * the {@link SystemClock#elapsedRealtime()} time base. Replaces any previous schedule.
+     */
+    private void schedulePreLoad(long expectedUpdateAt) {
+        long now = SystemClock.elapsedRealtime();
+        mMainHandler.removeCallbacks(mPreLoadTrigger);
+        if (expectedUpdateAt <= now) {
+            return;
+        }
+
+        mMainHandler.postDelayed(mPreLoadTrigger,
+                Math.max(0, expectedUpdateAt - getPreLoadLeadTimeMillis() - now));
+    }
+
+    /**
+     * Schedules writing a copy of the given data to the snapshot read by
+     * {@link #republishSnapshot()}, or deleting it if the data is null. Writes happen on the update
+     * executor after {@link #SNAPSHOT_SAVE_DELAY_MILLIS}, and only the last data scheduled in the
+     * meantime is written.
+     */
+    private void saveSnapshotLater(ExtensionData data) {
+        synchronized (mSnapshotLock) {
+            if (data == null) {
+                mPendingSnapshot = null;
+            } else if (mPendingSnapshot == null) {
+                mPendingSnapshot = new ExtensionData().copyFrom(data);
+            } else {
+                mPendingSnapshot.copyFrom(data);
+            }
+            if (mSnapshotSavePending) {
+                return;
+            }
+            mSnapshotSavePending = true;
+        }
+        mMainHandler.postDelayed(mSnapshotTrigger, SNAPSHOT_SAVE_DELAY_MILLIS);
+    }
+
+    private final Runnable mSnapshotTrigger = new Runnable() {
+        @Override
+        public void run() {
+            mUpdateExecutor.execute(mSnapshotSaver);
+        }
+    };
+
+    private final Runnable mSnapshotSaver = new Runnable() {
+        @Override
+        public void run() {
+            // Holding the snapshot's lock keeps an older save from finishing after a newer one
+            synchronized (mSnapshot) {
+                ExtensionData data;
+                synchronized (mSnapshotLock) {
+                    if (!mSnapshotSavePending) {
+                        return;
+                    }
+                    data = mPendingSnapshot;
+                    mPendingSnapshot = null;
+                    mSnapshotSavePending = false;
+                }
+                mSnapshot.save(data);
+            }
+        }
+    };
+
+    private final Runnable mPreLoadTrigger = new Runnable() {
+        @Override
+        public void run() {
+            mUpdateExecutor.execute(mPreLoadRunnable);
+        }
+    };
+
+    private final Runnable mPreLoadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mDestroyed) {
+                return;
+            }
+
+            Object data = onPreLoadData();
+            synchronized (mUpdateLock) {
+                mPreLoadedData = data;
+                mPreLoadedAt = SystemClock.elapsedRealtime();
+            }
+        }
+    };
+
+    /**
+     * Returns the cached result of {@link #onPreLoadData()} for a run with the given reason, if
+     * that run should use it. Must be called with {@link #mUpdateLock} held.
+     */
+    private Object takePreLoadedData(int reason) {
+        Object data = null;
+        if (reason == UPDATE_REASON_PERIODIC) {
+            if (SystemClock.elapsedRealtime() - mPreLoadedAt <= 2 * getPreLoadLeadTimeMillis()) {
+                data = mPreLoadedData;
+            }
+            mPreLoadedData = null;
+        } else if (reason == UPDATE_REASON_SETTINGS_CHANGED) {
+            // Pre-loaded with the old settings
+            mPreLoadedData = null;
+        }
+        return data;
     }
 
     /**
@@ -323,6 +1248,19 @@ public abstract class MindMeExtension extends Service {
      */
     protected abstract void onUpdateData(int reason);
 
+    /**
+     * Called instead of {@link #onUpdateData(int)} when the extension wants to know more about the
+     * run, such as how many requests from the main app were coalesced into it. The default
+     * implementation simply calls {@link #onUpdateData(int)} with {@link UpdateRequest#reason()}.
+     * This method is called on a background thread. Periodic refreshes can check
+     * {@link UpdateRequest#isBackground()} to trade fidelity for speed.
+     *
+     * @param request Details about this update run.
+     */
+    protected void onUpdateData(UpdateRequest request) {
+        onUpdateData(request.reason());
+    }
+
     /**
      * Notifies the main app that new data is available for the extension and should
      * potentially be shown to the user. Note that this call does not necessarily need to be made
@@ -330,15 +1268,248 @@ public abstract class MindMeExtension extends Service {
      * {@link #onInitialize(boolean)} has been called. If you only call this from within
      * {@link #onUpdateData(int)} this is already ensured.
      *
+     * <p>
+     * Data published from a run of {@link #onUpdateData(UpdateRequest)} that has since been
+     * cancelled by a newer update request is dropped.
+     *
+     * <p>
+     * Publishing data equal to the last published data is a no-op. Data too large for a binder
+     * transaction is handed to the main app through a file descriptor when possible. When only some fields changed
+     * and the main app supports it, only those fields are sent. Since {@link RemoteViews} are
+     * compared by reference, pass a new instance to {@link ExtensionData#viewsToDisplay(RemoteViews)}
+     * whenever the layout changes.
+     *
      * @param data The data to show, or <code>null</code> if existing data should be cleared (hiding
      *             the extension from view).
      */
     protected final void publishUpdate(ExtensionData data) {
+        publishUpdate(data, true);
+    }
+
+    /**
+     * Sends the given data to the main app unless it equals the last published data.
+     *
+     * @param persist Whether to also replace the on-disk snapshot used by
+     *                {@link #republishSnapshot()}.
+     */
+    private void publishUpdate(ExtensionData data, boolean persist) {
+        if (isCurrentUpdateCancelled()) {
+            Log.d(TAG, "Dropping extension data published by a superseded update.");
+            mMetrics.recordPublishSuperseded();
+            return;
+        }
+
+        synchronized (mPublishLock) {
+            if (data != null && mBufferedSpeech.length() > 0
+                    && TextUtils.isEmpty(data.statusToSpeak())) {
+                // Speak the segments this host couldn't receive, without touching the caller's data
+                data = new ExtensionData().copyFrom(data).statusToSpeak(mBufferedSpeech.toString());
+                if (data.languageToSpeak() == null) {
+                    data.languageToSpeak(mBufferedSpeechLocale);
+                }
+                mBufferedSpeech.setLength(0);
+                mBufferedSpeechLocale = null;
+            }
+
+            if (mHasPublished && ExtensionData.equals(mLastPublished, data)) {
+                mMetrics.recordPublishUnchanged();
+                return;
+            }
+
+            try {
+                int changedFields = ExtensionData.FIELD_ALL;
+                if (data != null && mLastPublished != null
+                        && mHostProtocolVersion >= PROTOCOL_VERSION_DELTA_UPDATES) {
+                    changedFields = data.changedFields(mLastPublished);
+                }
+                sendUpdate(data, changedFields);
+                ++mChangedPublishCount;
+
+                // Keep a copy, the extension is free to modify its own instance after this call
+                if (data == null) {
+                    mLastPublished = null;
+                } else if (mLastPublished == null) {
+                    mLastPublished = new ExtensionData().copyFrom(data);
+                } else {
+                    mLastPublished.copyFrom(data);
+                }
+                mHasPublished = true;
+
+                if (persist) {
+                    saveSnapshotLater(mLastPublished);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "Couldn't publish updated extension data.", e);
+                mMetrics.recordPublishFailure();
+            }
+        }
+    }
+
+    /**
+     * Sends the given fields of the data to the main app, in its parcel layout, and records the
+     * publish. Data too large for a binder transaction goes through a file descriptor when the
+     * host supports it. Must be called with {@link #mPublishLock} held.
+     */
+    private void sendUpdate(ExtensionData data, int changedFields) throws RemoteException {
+        // Copy, the caller's own instance keeps its layout version
+        ExtensionData outgoing = data != null
+                ? data.delta(changedFields).parcelVersion(getHostParcelVersion()) : null;
+
+        // Measured once, the file path reuses the parcel of data that doesn't fit inline
+        Parcel measured = outgoing != null ? outgoing.toParcel() : null;
+        int size = measured != null ? measured.dataSize() : 0;
         try {
-            mHost.publishUpdate(data);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Couldn't publish updated extension data.", e);
+            mLastPublishedSize = size;
+            boolean isDelta = changedFields != ExtensionData.FIELD_ALL;
+            if (size <= MAX_INLINE_PAYLOAD_SIZE
+                    || !publishUpdateFromFile(data, isDelta ? null : measured)) {
+                if (size > MAX_INLINE_PAYLOAD_SIZE) {
+                    Log.w(TAG, "Publishing " + size + " bytes of extension data inline, "
+                            + "this may exceed the binder transaction buffer.");
+                }
+                if (isDelta) {
+                    mHost.publishUpdateDelta(changedFields, outgoing);
+                } else {
+                    mHost.publishUpdate(outgoing);
+                }
+            }
+        } finally {
+            if (measured != null) {
+                measured.recycle();
+            }
         }
+        releaseOutgoing(outgoing);
+        mMetrics.recordPublish(size);
+    }
+
+    /**
+     * Notifies the main app that several entries of new data are available for the extension, for
+     * example the next few items of an agenda. On hosts that support it, all entries are sent in a
+     * single transaction so the main app only redraws once. Older hosts receive one
+     * {@link #publishUpdate(ExtensionData)} call per entry, in list order.
+     *
+     * <p>
+     * Unlike {@link #publishUpdate(ExtensionData)}, entries are always sent in full. The same
+     * threading rules apply.
+     *
+     * @param data The entries to show, in display order.
+     */
+    protected final void publishUpdates(List<ExtensionData> data) {
+        if (isCurrentUpdateCancelled()) {
+            Log.d(TAG, "Dropping extension data published by a superseded update.");
+            mMetrics.recordPublishSuperseded();
+            return;
+        }
+
+        synchronized (mPublishLock) {
+            // Copy, the caller's own instances keep their layout version
+            int parcelVersion = getHostParcelVersion();
+            List<ExtensionData> outgoing = new ArrayList<ExtensionData>(data.size());
+            for (ExtensionData entry : data) {
+                outgoing.add(entry.delta(ExtensionData.FIELD_ALL).parcelVersion(parcelVersion));
+            }
+
+            try {
+                if (mHostProtocolVersion >= PROTOCOL_VERSION_BATCH_UPDATES) {
+                    mHost.publishUpdates(outgoing);
+                } else {
+                    for (ExtensionData entry : outgoing) {
+                        mHost.publishUpdate(entry);
+                    }
+                }
+                for (ExtensionData entry : outgoing) {
+                    releaseOutgoing(entry);
+                }
+                mMetrics.recordPublish(0);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Couldn't publish updated extension data.", e);
+                mMetrics.recordPublishFailure();
+            }
+
+            // The main app no longer holds a single known entry to diff against
+            mHasPublished = false;
+            mLastPublished = null;
+            saveSnapshotLater(null);
+        }
+    }
+
+    /**
+     * Sends the next segment of the text to speak to the main app, as soon as it is produced and
+     * ahead of the data to display. The main app can start speaking the first sentence of a long
+     * briefing while the rest is still being computed. A stream is a sequence of segments ending
+     * with one where <code>isLast</code> is true; the next segment starts a new stream.
+     *
+     * <p>
+     * Main apps that don't support streamed speech never receive the segments. Instead, they are
+     * joined and used as {@link ExtensionData#statusToSpeak()} of the next data published through
+     * {@link #publishUpdate(ExtensionData)}, if that data has no text to speak of its own.
+     *
+     * <p>
+     * Segments published from a run of {@link #onUpdateData(UpdateRequest)} that has since been
+     * cancelled are dropped. The same threading rules as {@link #publishUpdate(ExtensionData)}
+     * apply.
+     *
+     * @param text   The text of this segment, typically one or more full sentences.
+     * @param locale The language of this segment, or null for the default language.
+     * @param isLast Whether this is the last segment of the stream.
+     */
+    protected final void publishSpeechSegment(String text, Locale locale, boolean isLast) {
+        if (isCurrentUpdateCancelled()) {
+            Log.d(TAG, "Dropping speech published by a superseded update.");
+            mMetrics.recordPublishSuperseded();
+            return;
+        }
+
+        synchronized (mPublishLock) {
+            if (mHostProtocolVersion < PROTOCOL_VERSION_SPEECH_SEGMENTS) {
+                if (mBufferedSpeech.length() > 0) {
+                    mBufferedSpeech.append(' ');
+                }
+                mBufferedSpeech.append(text);
+                if (mBufferedSpeech.length() > ExtensionData.MAX_STATUS_TO_SPEAK_LENGTH) {
+                    mBufferedSpeech.setLength(ExtensionData.MAX_STATUS_TO_SPEAK_LENGTH);
+                }
+                if (mBufferedSpeechLocale == null) {
+                    mBufferedSpeechLocale = locale;
+                }
+                return;
+            }
+
+            if (mSpeechSequence == 0) {
+                ++mSpeechStreamId;
+            }
+            try {
+                mHost.publishSpeechSegment(mSpeechStreamId, mSpeechSequence, text,
+                        locale != null ? locale.getLanguage() : null,
+                        locale != null ? locale.getCountry() : null, isLast);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Couldn't publish speech segment.", e);
+                mMetrics.recordPublishFailure();
+            }
+            mSpeechSequence = isLast ? 0 : mSpeechSequence + 1;
+        }
+    }
+
+    /**
+     * Returns a copy made for the host to the pool once the host is done with it. Calls to a host
+     * in another process are parceled before they return, but a host in this process receives the
+     * object itself and may keep it, so its copies are left to the garbage collector.
+     */
+    private void releaseOutgoing(ExtensionData outgoing) {
+        if (outgoing != null && !(mHost.asBinder() instanceof Binder)) {
+            outgoing.recycle();
+        }
+    }
+
+    /**
+     * Returns the {@link ExtensionData} parcel layout version understood by the current host.
+     * Protocol 1 hosts ignore the version header and always read the version 1 layout.
+     */
+    private int getHostParcelVersion() {
+        if (mHostProtocolVersion >= PROTOCOL_VERSION_PARCEL_V3) {
+            return Math.min(mHostProtocolVersion, ExtensionData.PARCELABLE_VERSION);
+        }
+        return mHostProtocolVersion >= PROTOCOL_VERSION_PARCEL_V2 ? 2 : 1;
     }
 
     /**
@@ -410,5 +1581,11 @@ public abstract class MindMeExtension extends Service {
     		+ "41cae5726894c8171f0ecc11c1abf1175c8edc0f2550ab740da50ac9084f9eacd643c0f6304fff5feef2"
     		+ "b70c37b5350ffc87735c8b364c4fb58564e3a994d1f349b1775a902cab12ba9038cdbe30aca798230423"
     		+ "f3fd483e461d4d4cff887f");
-   
+
+    /**
+     * All signatures accepted when {@link #mIsWorldReadable} is false. {@link Signature} caches its
+     * hash code, so checking a caller is a single set lookup.
+     */
+    private static final Set<Signature> TRUSTED_SIGNATURES = new HashSet<Signature>(
+            Arrays.asList(MINDME_SIGNATURE, ALARMPAD_SIGNATURE, ALARMPADPRO_SIGNATURE));
 }
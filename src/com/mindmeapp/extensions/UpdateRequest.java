@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions;
+
+import android.os.SystemClock;
+
+/**
+ * Describes a single run of {@link MindMeExtension#onUpdateData(UpdateRequest)}.
+ *
+ * <p>
+ * Update requests from the main app that arrive while a run is already pending or in flight are
+ * coalesced, so a single {@link UpdateRequest} may stand for several calls from the main app. The
+ * merged run keeps the highest-priority reason among the requests it absorbed.
+ *
+ * <p>
+ * A run is cancelled as soon as a newer update request arrives, since its result would be
+ * superseded anyway. The only exception are foreground runs, see {@link #isBackground()}, which
+ * absorb background requests arriving while they are in flight instead. Data published from the
+ * thread of a cancelled run is dropped, so long running implementations should check
+ * {@link #isCancelled()} or register an {@link OnCancelListener} to abort blocking work early.
+ * A run may also carry a {@link #deadline()} that implementations can use to bound network
+ * timeouts.
+ */
+public final class UpdateRequest {
+    private final int mReason;
+    private final int mRequestCount;
+    private final long mDeadline;
+    private final Object mPreLoadedData;
+
+    private volatile boolean mCancelled = false;
+    private OnCancelListener mOnCancelListener;
+
+    /**
+     * Listener for the cancellation of an {@link UpdateRequest}.
+     */
+    public interface OnCancelListener {
+        /**
+         * Called when the update run is cancelled. This is called on the thread that delivered
+         * the newer update request, not on the update thread, so it must not block.
+         */
+        void onCancel();
+    }
+
+    UpdateRequest(int reason, int requestCount, long deadline, Object preLoadedData) {
+        mReason = reason;
+        mRequestCount = requestCount;
+        mDeadline = deadline;
+        mPreLoadedData = preLoadedData;
+    }
+
+    /**
+     * Returns the reason for the update. When several requests were coalesced into this run, this
+     * is the highest-priority one, with {@link MindMeExtension#UPDATE_REASON_MANUAL} first,
+     * followed by {@link MindMeExtension#UPDATE_REASON_SETTINGS_CHANGED},
+     * {@link MindMeExtension#UPDATE_REASON_PERIODIC} and
+     * {@link MindMeExtension#UPDATE_REASON_UNKNOWN}.
+     */
+    public int reason() {
+        return mReason;
+    }
+
+    /**
+     * Returns whether this is a background run, i.e. neither the user nor a settings change is
+     * waiting for it: its reason is {@link MindMeExtension#UPDATE_REASON_PERIODIC} or
+     * {@link MindMeExtension#UPDATE_REASON_UNKNOWN}. Background runs are queued behind foreground
+     * ones and cancelled by any foreground request, so implementations may take a faster,
+     * lower-fidelity path for them, e.g. reading from a local cache or skipping images.
+     */
+    public boolean isBackground() {
+        return isBackgroundReason(mReason);
+    }
+
+    static boolean isBackgroundReason(int reason) {
+        return reason != MindMeExtension.UPDATE_REASON_MANUAL
+                && reason != MindMeExtension.UPDATE_REASON_SETTINGS_CHANGED;
+    }
+
+    /**
+     * Returns the number of update requests from the main app that this run stands for. Always at
+     * least 1.
+     */
+    public int requestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * Returns the data returned by {@link MindMeExtension#onPreLoadData()} ahead of this run, or
+     * null if nothing was pre-loaded. Only {@link MindMeExtension#UPDATE_REASON_PERIODIC} runs
+     * receive pre-loaded data, and each result is handed out once.
+     */
+    public Object preLoadedData() {
+        return mPreLoadedData;
+    }
+
+    /**
+     * Returns the time by which this run should have published its data, in the
+     * {@link SystemClock#elapsedRealtime()} time base, or 0 if there is no deadline.
+     *
+     * @see MindMeExtension#getUpdateTimeoutMillis(int)
+     */
+    public long deadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Returns the milliseconds left until {@link #deadline()}, which is negative once the deadline
+     * has passed, or {@link Long#MAX_VALUE} if there is no deadline.
+     */
+    public long remainingTimeMillis() {
+        if (mDeadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return mDeadline - SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns whether this run has a deadline and it has passed.
+     */
+    public boolean isExpired() {
+        return mDeadline != 0 && SystemClock.elapsedRealtime() >= mDeadline;
+    }
+
+    /**
+     * Returns whether this run was superseded by a newer update request. Data published from a
+     * cancelled run is dropped.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Sets the listener to be notified when this run is cancelled. If the run is already
+     * cancelled, the listener is called immediately on the calling thread.
+     */
+    public void setOnCancelListener(OnCancelListener listener) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mOnCancelListener = listener;
+                return;
+            }
+        }
+        if (listener != null) {
+            listener.onCancel();
+        }
+    }
+
+    void cancel() {
+        OnCancelListener listener;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            listener = mOnCancelListener;
+            mOnCancelListener = null;
+        }
+        if (listener != null) {
+            listener.onCancel();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * Tests of the paging of {@link ExtensionCollectionProvider}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExtensionCollectionProviderTest {
+    private static final int ITEM_COUNT = 500;
+
+    private InboxProvider mProvider;
+    private Uri mInboxUri;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(InboxProvider.class).create().get();
+        mInboxUri = ExtensionCollectionProvider.buildCollectionUri(
+                RuntimeEnvironment.application, "inbox");
+    }
+
+    @Test
+    public void collectionUriNamesTheCollection() {
+        assertEquals(RuntimeEnvironment.application.getPackageName()
+                + ExtensionCollectionProvider.AUTHORITY_SUFFIX, mInboxUri.getAuthority());
+        assertEquals("inbox", ExtensionCollectionProvider.getCollectionName(
+                ExtensionCollectionProvider.pageUri(mInboxUri, 10, 20)));
+    }
+
+    @Test
+    public void pageHoldsTheRequestedRange() {
+        Cursor page = query(ExtensionCollectionProvider.pageUri(mInboxUri, 100, 20));
+
+        assertEquals(20, page.getCount());
+        page.moveToFirst();
+        assertEquals(100, page.getLong(0));
+        assertEquals("inbox 100", page.getString(1));
+        Bundle extras = page.getExtras();
+        assertEquals(ITEM_COUNT, extras.getInt(ExtensionCollectionProvider.EXTRA_TOTAL_COUNT));
+        assertEquals(3, extras.getLong(ExtensionCollectionProvider.EXTRA_VERSION));
+        assertEquals(100, extras.getInt(ExtensionCollectionProvider.EXTRA_OFFSET));
+        assertEquals(mInboxUri, mProvider.mLastCollectionUri);
+    }
+
+    @Test
+    public void missingParametersGetTheDefaultPage() {
+        Cursor page = query(mInboxUri);
+
+        assertEquals(0, mProvider.mLastOffset);
+        assertEquals(ExtensionCollectionProvider.DEFAULT_PAGE_SIZE, page.getCount());
+    }
+
+    @Test
+    public void outOfRangeParametersAreClamped() {
+        query(ExtensionCollectionProvider.pageUri(mInboxUri, -5, 10000));
+        assertEquals(0, mProvider.mLastOffset);
+        assertEquals(ExtensionCollectionProvider.MAX_PAGE_SIZE, mProvider.mLastLimit);
+
+        query(ExtensionCollectionProvider.pageUri(mInboxUri, 0, 0));
+        assertEquals(1, mProvider.mLastLimit);
+
+        query(mInboxUri.buildUpon().appendQueryParameter(ExtensionCollectionProvider.PARAM_LIMIT,
+                "many").build());
+        assertEquals(ExtensionCollectionProvider.DEFAULT_PAGE_SIZE, mProvider.mLastLimit);
+    }
+
+    @Test
+    public void lastPageIsShort() {
+        Cursor page = query(ExtensionCollectionProvider.pageUri(mInboxUri, ITEM_COUNT - 5, 20));
+
+        assertEquals(5, page.getCount());
+    }
+
+    @Test
+    public void missingCollectionsReturnNull() {
+        assertNull(query(ExtensionCollectionProvider.buildCollectionUri(
+                RuntimeEnvironment.application, "unknown")));
+    }
+
+    private Cursor query(Uri uri) {
+        return mProvider.query(uri, null, null, null, null);
+    }
+
+    /**
+     * Provider of a single collection, "inbox", of numbered items.
+     */
+    public static class InboxProvider extends ExtensionCollectionProvider {
+        Uri mLastCollectionUri;
+        int mLastOffset = -1;
+        int mLastLimit = -1;
+
+        @Override
+        protected int getItemCount(Uri collectionUri) {
+            return ITEM_COUNT;
+        }
+
+        @Override
+        protected long getCollectionVersion(Uri collectionUri) {
+            return 3;
+        }
+
+        @Override
+        protected Cursor queryItems(Uri collectionUri, String[] projection, int offset,
+                int limit) {
+            mLastCollectionUri = collectionUri;
+            mLastOffset = offset;
+            mLastLimit = limit;
+            if (!"inbox".equals(getCollectionName(collectionUri))) {
+                return null;
+            }
+
+            MatrixCursor cursor = new MatrixCursor(new String[] { COLUMN_ID, COLUMN_TITLE });
+            for (int i = offset; i < Math.min(offset + limit, ITEM_COUNT); i++) {
+                cursor.addRow(new Object[] { i, "inbox " + i });
+            }
+            return cursor;
+        }
+    }
+}
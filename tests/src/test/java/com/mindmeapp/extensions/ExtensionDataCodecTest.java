@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.net.Uri;
+
+/**
+ * Tests that the payloads measured by the <code>ExtensionDataBenchmark</code> survive each codec
+ * it measures, so a faster codec can't win by dropping data.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExtensionDataCodecTest {
+
+    @Test
+    public void minimalDataSurvivesEveryCodec() throws IOException, JSONException {
+        ExtensionData data = new ExtensionData().visible(true).icon(1)
+                .statusToDisplay("Sunny, 21\u00b0C");
+        assertSurvivesCodecs(data);
+
+        ExtensionData deserialized = new ExtensionData();
+        deserialized.deserialize(data.serialize());
+        assertEquals(data, deserialized);
+    }
+
+    @Test
+    public void maxLengthDataSurvivesEveryCodec() throws IOException, JSONException {
+        ExtensionData data = new ExtensionData()
+                .visible(true)
+                .icon(1)
+                .statusToDisplay(repeat('d', ExtensionData.MAX_STATUS_TO_DISPLAY_LENGTH))
+                .statusToSpeak(repeat('s', ExtensionData.MAX_STATUS_TO_SPEAK_LENGTH))
+                .languageToSpeak(Locale.US)
+                .contentDescription(repeat('c', ExtensionData.MAX_CONTENT_DESCRIPTION_LENGTH))
+                .iconUri(Uri.parse("content://com.example.extension.mindme.images/images/icon"))
+                .background(2)
+                .backgroundUri(Uri.parse(
+                        "content://com.example.extension.mindme.images/images/background"));
+        assertSurvivesCodecs(data);
+
+        ExtensionData deserialized = new ExtensionData();
+        deserialized.deserialize(data.serialize());
+        assertEquals(data, deserialized);
+    }
+
+    /**
+     * Checks the parcel, Bundle and streaming JSON codecs. Callers check
+     * {@link ExtensionData#deserialize(org.json.JSONObject)} themselves.
+     */
+    private static void assertSurvivesCodecs(ExtensionData data) throws IOException {
+        assertEquals(data, ExtensionDataParcelTest.roundTrip(data,
+                ExtensionData.PARCELABLE_VERSION));
+
+        ExtensionData fromBundle = new ExtensionData();
+        fromBundle.fromBundle(data.toBundle());
+        assertEquals(data, fromBundle);
+
+        assertEquals(data, ExtensionDataJsonTest.readJson(ExtensionDataJsonTest.writeJson(data)));
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+/**
+ * Tests of the JSON representations of {@link ExtensionData}: the streaming codec, the
+ * {@link JSONObject} one and the compatibility between both.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExtensionDataJsonTest {
+
+    @Test
+    public void writeJsonRoundTrips() throws IOException {
+        ExtensionData data = ExtensionDataTest.newData()
+                .extras(new ExtensionExtras().putInt(1, 40).putBoolean(3, true));
+        assertEquals(data, readJson(writeJson(data)));
+    }
+
+    @Test
+    public void serializeRoundTrips() throws JSONException {
+        ExtensionData data = ExtensionDataTest.newData()
+                .extras(new ExtensionExtras().putDouble(4, 0.5));
+        ExtensionData read = new ExtensionData();
+        read.deserialize(new JSONObject(data.serialize().toString()));
+
+        assertEquals(data, read);
+    }
+
+    @Test
+    public void streamingAndObjectCodecsReadEachOther() throws IOException, JSONException {
+        ExtensionData data = ExtensionDataTest.newData();
+        ExtensionData fromObject = readJson(data.serialize().toString());
+        ExtensionData fromStream = new ExtensionData();
+        fromStream.deserialize(new JSONObject(writeJson(data)));
+
+        assertEquals(data, fromObject);
+        assertEquals(data, fromStream);
+    }
+
+    @Test
+    public void bothDecodersReadAbsentAndNullStringsAsNull() throws IOException, JSONException {
+        String json = "{\"visible\": true, \"status_to_display\": \"10:00\","
+                + " \"status_to_speak\": null, \"icon_uri\": null}";
+        ExtensionData fromStream = ExtensionDataTest.newData();
+        fromStream.readJson(new JsonReader(new StringReader(json)));
+        ExtensionData fromObject = ExtensionDataTest.newData();
+        fromObject.deserialize(new JSONObject(json));
+
+        assertEquals(fromStream, fromObject);
+        assertEquals(0, fromObject.changedFields(fromStream));
+        assertNull(fromObject.statusToSpeak());
+        assertNull(fromObject.contentDescription());
+        assertNull(fromObject.iconUri());
+    }
+
+    @Test
+    public void writeJsonOmitsNullFields() throws IOException, JSONException {
+        JSONObject json = new JSONObject(writeJson(new ExtensionData().statusToDisplay("10:00")));
+
+        assertFalse(json.has("icon_uri"));
+        assertFalse(json.has("status_to_speak"));
+        assertFalse(json.has("locale_language"));
+        assertEquals("10:00", json.getString("status_to_display"));
+    }
+
+    @Test
+    public void readJsonResetsMissingFields() throws IOException {
+        ExtensionData data = ExtensionDataTest.newData();
+        data.readJson(new JsonReader(new StringReader("{\"visible\": true, \"unknown\": [1]}")));
+
+        assertEquals(new ExtensionData().visible(true), data);
+    }
+
+    @Test
+    public void absentOrEmptyLanguageReadsAsNullLocale() throws IOException, JSONException {
+        String[] jsons = {
+                "{\"visible\": true}",
+                "{\"visible\": true, \"locale_language\": \"\", \"locale_country\": \"\"}",
+        };
+        for (String json : jsons) {
+            ExtensionData read = ExtensionDataTest.newData();
+            read.readJson(new JsonReader(new StringReader(json)));
+            assertNull(read.languageToSpeak());
+
+            ExtensionData deserialized = ExtensionDataTest.newData();
+            deserialized.deserialize(new JSONObject(json));
+            assertNull(deserialized.languageToSpeak());
+        }
+    }
+
+    @Test
+    public void arrayRoundTripsWithNullEntries() throws IOException {
+        List<ExtensionData> dataList = Arrays.asList(ExtensionDataTest.newData(), null,
+                new ExtensionData().statusToDisplay("Lunch"));
+        StringWriter out = new StringWriter();
+        ExtensionData.writeJsonArray(out, dataList);
+
+        assertEquals(dataList, ExtensionData.readJsonArray(new StringReader(out.toString())));
+    }
+
+    static String writeJson(ExtensionData data) throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        data.writeJson(writer);
+        writer.close();
+        return out.toString();
+    }
+
+    static ExtensionData readJson(String json) throws IOException {
+        ExtensionData data = new ExtensionData();
+        data.readJson(new JsonReader(new StringReader(json)));
+        return data;
+    }
+}
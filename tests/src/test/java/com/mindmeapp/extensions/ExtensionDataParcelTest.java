@@ -0,0 +1,309 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import android.os.BadParcelableException;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.widget.RemoteViews;
+
+/**
+ * Tests of the {@link ExtensionData} parcel layouts. Each layout version must round-trip the
+ * fields it carries, since the main app and extensions are updated independently.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExtensionDataParcelTest {
+    /**
+     * Fields of the version 1 and 2 layouts.
+     */
+    private static final int FIELDS_V2 = ExtensionData.FIELD_ALL
+            & ~(ExtensionData.FIELD_COLLECTION_URI | ExtensionData.FIELD_COLLECTION_VERSION
+                    | ExtensionData.FIELD_PAYLOAD | ExtensionData.FIELD_EXTRAS);
+
+    /**
+     * Fields of the version 3 and 4 layouts, which add the collection, but not the extras.
+     */
+    private static final int FIELDS_V4 = ExtensionData.FIELD_ALL & ~ExtensionData.FIELD_EXTRAS;
+
+    @Test
+    public void version1RoundTrips() {
+        ExtensionData data = ExtensionDataTest.newData();
+        assertEquals(new ExtensionData().applyDelta(FIELDS_V2, data), roundTrip(data, 1));
+    }
+
+    @Test
+    public void version2RoundTrips() {
+        ExtensionData data = ExtensionDataTest.newData();
+        assertEquals(new ExtensionData().applyDelta(FIELDS_V2, data), roundTrip(data, 2));
+    }
+
+    @Test
+    public void version2ReadsAbsentFieldsAsNull() {
+        ExtensionData data = new ExtensionData().visible(true).icon(1).statusToDisplay("10:00");
+        ExtensionData read = roundTrip(data, 2);
+
+        assertEquals(data, read);
+        assertNull(read.iconUri());
+        assertNull(read.statusToSpeak());
+        assertNull(read.languageToSpeak());
+        assertNull(read.contentDescription());
+    }
+
+    @Test
+    public void version2IsSmallerThanVersion1() {
+        ExtensionData data = ExtensionDataTest.newData();
+        ExtensionData minimal = new ExtensionData().visible(true).icon(1).statusToDisplay("10:00");
+
+        assertTrue(sizeOf(data, 2) < sizeOf(data, 1));
+        assertTrue(sizeOf(minimal, 2) < sizeOf(minimal, 1));
+    }
+
+    @Test
+    public void version3And4RoundTripTheCollection() {
+        ExtensionData data = newDataWithExtras();
+        for (int version = 3; version <= 4; version++) {
+            ExtensionData read = roundTrip(data, version);
+            assertEquals(new ExtensionData().applyDelta(FIELDS_V4, data), read);
+            assertNull(read.extras());
+        }
+    }
+
+    @Test
+    public void version5And6RoundTripTheExtras() {
+        ExtensionData data = newDataWithExtras();
+        for (int version = 5; version <= 6; version++) {
+            ExtensionData read = roundTrip(data, version);
+            assertEquals(data, read);
+            assertEquals(20, read.extras().getInt(2, -1));
+        }
+    }
+
+    @Test
+    public void version6SkipsUnknownSections() {
+        ExtensionData data = newDataWithExtras();
+        Parcel written = toParcel(data, 6);
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(6);
+            // A section of a newer version of the class, before the known ones
+            parcel.writeInt(99);
+            parcel.writeInt(8);
+            parcel.writeLong(42);
+            parcel.appendFrom(written, 4, written.dataSize() - 4);
+            parcel.setDataPosition(0);
+
+            assertEquals(data, ExtensionData.CREATOR.createFromParcel(parcel));
+        } finally {
+            written.recycle();
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void version6RejectsBadSectionLengths() {
+        int[] lengths = { -1, 5, Integer.MAX_VALUE };
+        for (int length : lengths) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.writeInt(6);
+                parcel.writeInt(1);
+                parcel.writeInt(length);
+                parcel.writeInt(0);
+                parcel.setDataPosition(0);
+                ExtensionData.CREATOR.createFromParcel(parcel);
+                fail("Accepted length " + length);
+            } catch (BadParcelableException expected) {
+            } finally {
+                parcel.recycle();
+            }
+        }
+    }
+
+    @Test
+    public void version6WithoutCoreSectionResetsFields() {
+        ExtensionData read = newDataWithExtras();
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(6);
+            parcel.writeInt(0);
+            parcel.setDataPosition(0);
+            read.readFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+
+        assertEquals(new ExtensionData(), read);
+    }
+
+    @Test
+    public void version6RewritesPendingSectionsUnchanged() {
+        Parcel parcel = toParcel(newDataWithExtras(), 6);
+        Parcel rewritten = null;
+        try {
+            ExtensionData read = ExtensionData.CREATOR.createFromParcel(parcel);
+            rewritten = toParcel(read, 6);
+
+            assertArrayEquals(parcel.marshall(), rewritten.marshall());
+        } finally {
+            parcel.recycle();
+            if (rewritten != null) {
+                rewritten.recycle();
+            }
+        }
+    }
+
+    @Test
+    public void copiesSharePendingSections() {
+        ExtensionData read = roundTrip(newDataWithExtras(), 6);
+        ExtensionData copy = new ExtensionData().copyFrom(read);
+        ExtensionData other = new ExtensionData().copyFrom(read);
+        read.recycle();
+
+        assertEquals(20, copy.extras().getInt(2, -1));
+        assertEquals(20, other.extras().getInt(2, -1));
+        assertNotSame(copy.extras(), other.extras());
+    }
+
+    @Test
+    public void fingerprintLeavesTheViewsPending() throws Exception {
+        RemoteViews views = new RemoteViews(RuntimeEnvironment.application.getPackageName(),
+                android.R.layout.simple_list_item_1);
+        ExtensionData data = ExtensionDataTest.newData().viewsToDisplay(views);
+        ExtensionData read = roundTrip(data, 6);
+        ExtensionData copy = new ExtensionData().copyFrom(read);
+        long fingerprint = read.fingerprint();
+
+        assertTrue(hasPendingViews(read));
+        assertEquals(fingerprint, copy.fingerprint());
+        assertEquals(read.hashCode(), copy.hashCode());
+        assertTrue(hasPendingViews(copy));
+
+        // Once a copy decoded the shared section, both compare and hash by the decoded views
+        assertEquals(android.R.layout.simple_list_item_1, copy.viewsToDisplay().getLayoutId());
+        assertFalse(hasPendingViews(copy));
+        assertEquals(copy, read);
+        assertEquals(copy.fingerprint(), read.fingerprint());
+        assertTrue(hasPendingViews(read));
+    }
+
+    @Test
+    public void readFromParcelReplacesAllFields() {
+        ExtensionData read = ExtensionDataTest.newData();
+        Parcel parcel = toParcel(new ExtensionData().statusToDisplay("10:05"), 2);
+        try {
+            read.readFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+
+        assertEquals(new ExtensionData().statusToDisplay("10:05"), read);
+    }
+
+    @Test
+    public void fileRoundTrips() throws IOException {
+        ExtensionData data = ExtensionDataTest.newData();
+        ParcelFileDescriptor fd = writeToFile(data);
+        try {
+            assertEquals(data, ExtensionData.readFromFile(fd, (int) fd.getStatSize()));
+        } finally {
+            fd.close();
+        }
+    }
+
+    @Test
+    public void readFromFileRejectsBadSizes() throws IOException {
+        ParcelFileDescriptor fd = writeToFile(ExtensionDataTest.newData());
+        try {
+            int[] sizes = { -1, (int) fd.getStatSize() + 1, ExtensionData.MAX_FILE_SIZE + 1 };
+            for (int size : sizes) {
+                try {
+                    ExtensionData.readFromFile(fd, size);
+                    fail("Accepted size " + size);
+                } catch (IOException expected) {
+                }
+            }
+        } finally {
+            fd.close();
+        }
+    }
+
+    private static boolean hasPendingViews(ExtensionData data) throws Exception {
+        Field field = ExtensionData.class.getDeclaredField("mLazySections");
+        field.setAccessible(true);
+        Object[] sections = (Object[]) field.get(data);
+        return sections != null && sections[0] != null;
+    }
+
+    private static ExtensionData newDataWithExtras() {
+        return ExtensionDataTest.newData()
+                .extras(new ExtensionExtras().putInt(1, 10).putInt(2, 20));
+    }
+
+    private static ParcelFileDescriptor writeToFile(ExtensionData data) throws IOException {
+        Parcel parcel = data.toParcel();
+        try {
+            return ExtensionData.writeToFile(parcel,
+                    RuntimeEnvironment.application.getCacheDir());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Writes a copy of the given data in the given layout version and reads it back.
+     */
+    static ExtensionData roundTrip(ExtensionData data, int version) {
+        Parcel parcel = toParcel(data, version);
+        try {
+            return ExtensionData.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Returns a parcel holding a copy of the given data in the given layout version, rewound for
+     * reading.
+     */
+    static Parcel toParcel(ExtensionData data, int version) {
+        Parcel parcel = Parcel.obtain();
+        new ExtensionData().copyFrom(data).parcelVersion(version).writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        return parcel;
+    }
+
+    private static int sizeOf(ExtensionData data, int version) {
+        return new ExtensionData().copyFrom(data).parcelVersion(version).parcelSize();
+    }
+}
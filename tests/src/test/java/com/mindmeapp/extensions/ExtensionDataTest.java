@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Locale;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.net.Uri;
+
+/**
+ * Tests of the field comparison, copying, pooling and hashing of {@link ExtensionData}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExtensionDataTest {
+
+    @Test
+    public void changedFieldsReportsEachDifferentField() {
+        ExtensionData data = newData();
+        assertEquals(0, data.changedFields(newData()));
+        assertEquals(ExtensionData.FIELD_ALL, data.changedFields(null));
+
+        assertEquals(ExtensionData.FIELD_VISIBLE,
+                newData().visible(false).changedFields(data));
+        assertEquals(ExtensionData.FIELD_ICON_URI | ExtensionData.FIELD_BACKGROUND,
+                newData().iconUri(null).background(0).changedFields(data));
+        assertEquals(ExtensionData.FIELD_LANGUAGE_TO_SPEAK,
+                newData().languageToSpeak(Locale.FRANCE).changedFields(data));
+        assertEquals(ExtensionData.FIELD_COLLECTION_VERSION,
+                newData().collectionVersion(8).changedFields(data));
+    }
+
+    @Test
+    public void applyDeltaCopiesOnlySelectedFields() {
+        ExtensionData data = newData();
+        ExtensionData delta = new ExtensionData().statusToDisplay("10:05").icon(2);
+        data.applyDelta(ExtensionData.FIELD_STATUS_TO_DISPLAY, delta);
+
+        assertEquals("10:05", data.statusToDisplay());
+        assertEquals(1, data.icon());
+        assertEquals("It's ten", data.statusToSpeak());
+    }
+
+    @Test
+    public void deltaOfChangedFieldsRebuildsData() {
+        ExtensionData previous = newData();
+        ExtensionData next = newData().statusToDisplay("10:05").contentDescription(null)
+                .backgroundUri(Uri.parse("content://backgrounds/2"));
+        int changedFields = next.changedFields(previous);
+        ExtensionData delta = next.delta(changedFields);
+
+        assertNull(delta.iconUri());
+        assertFalse(previous.equals(next));
+        assertEquals(next, previous.applyDelta(changedFields, delta));
+    }
+
+    @Test
+    public void applyDeltaWithAllFieldsCopies() {
+        ExtensionData data = newData();
+        ExtensionData copy = new ExtensionData().applyDelta(ExtensionData.FIELD_ALL, data);
+
+        assertEquals(data, copy);
+        assertEquals(0, copy.changedFields(data));
+    }
+
+    @Test
+    public void copyFromCopiesEveryField() {
+        ExtensionData data = newData().extras(new ExtensionExtras().putInt(1, 42));
+        ExtensionData copy = new ExtensionData().statusToDisplay("old").copyFrom(data);
+
+        assertEquals(data, copy);
+        assertEquals(0, copy.changedFields(data));
+    }
+
+    @Test
+    public void recycledDataIsObtainedReset() {
+        for (int i = 0; i < 8; i++) {
+            ExtensionData.obtain().copyFrom(newData()).recycle();
+        }
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals(new ExtensionData(), ExtensionData.obtain());
+        }
+    }
+
+    @Test
+    public void resetClearsEveryField() {
+        ExtensionData data = newData().extras(new ExtensionExtras().putInt(1, 42));
+
+        assertEquals(new ExtensionData(), data.reset());
+    }
+
+    @Test
+    public void readingIntoAnInstanceReusesUnchangedUris() {
+        ExtensionData data = newData();
+        ExtensionData read = new ExtensionData();
+        read.readFromParcel(
+                ExtensionDataParcelTest.toParcel(data, ExtensionData.PARCELABLE_VERSION));
+        Uri iconUri = read.iconUri();
+        Uri backgroundUri = read.backgroundUri();
+
+        data.backgroundUri(Uri.parse("content://backgrounds/2"));
+        read.readFromParcel(
+                ExtensionDataParcelTest.toParcel(data, ExtensionData.PARCELABLE_VERSION));
+
+        assertSame(iconUri, read.iconUri());
+        assertNotSame(backgroundUri, read.backgroundUri());
+        assertEquals(data, read);
+    }
+
+    @Test
+    public void equalDataHasEqualFingerprints() {
+        ExtensionData data = newData();
+        ExtensionData other = newData();
+
+        assertEquals(data, other);
+        assertEquals(data.fingerprint(), other.fingerprint());
+        assertEquals(data.hashCode(), other.hashCode());
+    }
+
+    @Test
+    public void everyFieldChangesTheFingerprint() {
+        long fingerprint = newData().fingerprint();
+        ExtensionData[] changed = {
+                newData().visible(false),
+                newData().icon(2),
+                newData().iconUri(Uri.parse("content://icons/2")),
+                newData().statusToDisplay("10:05"),
+                newData().statusToSpeak("It's five past ten"),
+                newData().languageToSpeak(Locale.US),
+                newData().contentDescription(null),
+                newData().background(4),
+                newData().backgroundUri(null),
+                newData().collectionUri(null),
+                newData().collectionVersion(8),
+                newData().extras(new ExtensionExtras()),
+        };
+        for (ExtensionData data : changed) {
+            assertNotEquals(fingerprint, data.fingerprint());
+        }
+    }
+
+    @Test
+    public void settersInvalidateTheCachedFingerprint() {
+        ExtensionData data = newData();
+        long fingerprint = data.fingerprint();
+        data.statusToDisplay("10:05");
+
+        assertNotEquals(fingerprint, data.fingerprint());
+        assertEquals(newData().statusToDisplay("10:05").fingerprint(), data.fingerprint());
+    }
+
+    @Test
+    public void extrasChangedInPlaceChangeTheFingerprint() {
+        ExtensionExtras extras = new ExtensionExtras().putInt(1, 40);
+        ExtensionData data = newData().extras(extras);
+        long fingerprint = data.fingerprint();
+        extras.putInt(1, 50);
+
+        assertNotEquals(fingerprint, data.fingerprint());
+        assertFalse(data.equals(newData().extras(new ExtensionExtras().putInt(1, 40))));
+    }
+
+    @Test
+    public void fingerprintSurvivesParceling() {
+        ExtensionData data = newData().extras(new ExtensionExtras().putLong(2, 1386000000000L));
+
+        assertEquals(data.fingerprint(),
+                ExtensionDataParcelTest.roundTrip(data, ExtensionData.PARCELABLE_VERSION)
+                        .fingerprint());
+    }
+
+    /**
+     * Returns data with all light fields set.
+     */
+    static ExtensionData newData() {
+        return new ExtensionData()
+                .visible(true)
+                .icon(1)
+                .iconUri(Uri.parse("content://icons/1"))
+                .statusToDisplay("10:00")
+                .statusToSpeak("It's ten")
+                .languageToSpeak(Locale.UK)
+                .contentDescription("Ten o'clock")
+                .background(3)
+                .backgroundUri(Uri.parse("content://backgrounds/1"))
+                .collectionUri(Uri.parse("content://collection/1"))
+                .collectionVersion(7);
+    }
+}
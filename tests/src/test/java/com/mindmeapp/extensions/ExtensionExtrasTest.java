@@ -0,0 +1,251 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.os.BadParcelableException;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+/**
+ * Tests of {@link ExtensionExtras}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExtensionExtrasTest {
+    private static final double DELTA = 0;
+
+    @Test
+    public void valuesAreReadBackByType() {
+        ExtensionExtras extras = newExtras();
+
+        assertEquals(40, extras.getInt(1, -1));
+        assertEquals(1386000000000L, extras.getLong(2, -1));
+        assertEquals(0.25, extras.getDouble(3, -1), DELTA);
+        assertTrue(extras.getBoolean(4, false));
+        assertFalse(extras.getBoolean(5, true));
+        assertEquals(-7, extras.getInt(ExtensionExtras.MAX_KEY, 0));
+    }
+
+    @Test
+    public void missingOrMistypedValuesReturnTheDefault() {
+        ExtensionExtras extras = newExtras();
+
+        assertEquals(-1, extras.getInt(9, -1));
+        assertEquals(-1, extras.getLong(1, -1));
+        assertEquals(-1, extras.getInt(2, -1));
+        assertEquals(-1, extras.getDouble(4, -1), DELTA);
+        assertTrue(extras.getBoolean(1, true));
+    }
+
+    @Test
+    public void keysAreKeptSorted() {
+        ExtensionExtras extras = new ExtensionExtras().putInt(30, 3).putInt(10, 1).putInt(20, 2);
+
+        assertEquals(3, extras.size());
+        assertEquals(10, extras.keyAt(0));
+        assertEquals(20, extras.keyAt(1));
+        assertEquals(30, extras.keyAt(2));
+    }
+
+    @Test
+    public void putReplacesValueAndType() {
+        ExtensionExtras extras = new ExtensionExtras().putInt(1, 40).putBoolean(1, true);
+
+        assertEquals(1, extras.size());
+        assertTrue(extras.getBoolean(1, false));
+        assertEquals(-1, extras.getInt(1, -1));
+    }
+
+    @Test
+    public void removeAndClear() {
+        ExtensionExtras extras = newExtras();
+        extras.remove(2).remove(99);
+
+        assertFalse(extras.containsKey(2));
+        assertTrue(extras.containsKey(3));
+        assertEquals(5, extras.size());
+        assertEquals(0.25, extras.getDouble(3, -1), DELTA);
+
+        extras.clear();
+        assertEquals(0, extras.size());
+        assertFalse(extras.containsKey(1));
+        assertEquals(new ExtensionExtras(), extras);
+    }
+
+    @Test
+    public void invalidKeysAreRejected() {
+        for (int key : new int[] { -1, ExtensionExtras.MAX_KEY + 1 }) {
+            try {
+                new ExtensionExtras().putInt(key, 0);
+                fail("Accepted key " + key);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void copyFromReplacesContents() {
+        ExtensionExtras copy = new ExtensionExtras().putInt(99, 1).copyFrom(newExtras());
+
+        assertEquals(newExtras(), copy);
+        assertEquals(newExtras().hashCode(), copy.hashCode());
+        assertFalse(copy.containsKey(99));
+    }
+
+    @Test
+    public void parcelRoundTrips() {
+        Parcel parcel = Parcel.obtain();
+        newExtras().writeToParcel(parcel, 0);
+        // Booleans are folded into their tag
+        assertEquals(4 + 2 * 8 + 2 * 12 + 2 * 4, parcel.dataSize());
+        parcel.setDataPosition(0);
+
+        assertEquals(newExtras(), ExtensionExtras.CREATOR.createFromParcel(parcel));
+        parcel.recycle();
+    }
+
+    @Test
+    public void readFromParcelReplacesContents() {
+        Parcel parcel = Parcel.obtain();
+        new ExtensionExtras().putInt(7, 1).writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        ExtensionExtras extras = newExtras();
+        extras.readFromParcel(parcel);
+
+        assertEquals(new ExtensionExtras().putInt(7, 1), extras);
+        parcel.recycle();
+    }
+
+    @Test
+    public void badParcelCountsAreRejected() {
+        assertBadParcel(-1);
+        assertBadParcel(1000000, 0, 0);
+    }
+
+    @Test
+    public void unsortedParcelKeysAreRejected() {
+        // Two int entries with keys 2 then 1
+        assertBadParcel(2, 2 << 3, 0, 1 << 3, 0);
+        // Duplicate keys
+        assertBadParcel(2, 2 << 3, 0, 2 << 3, 0);
+    }
+
+    @Test
+    public void bundleRoundTrips() {
+        ExtensionExtras extras = newExtras();
+        Bundle bundle = extras.toBundle();
+        ExtensionExtras read = ExtensionExtras.fromBundle(bundle);
+
+        assertEquals(extras, read);
+        // The bundle's arrays are not shared
+        read.putInt(1, 0);
+        assertEquals(extras, ExtensionExtras.fromBundle(bundle));
+        assertEquals(new ExtensionExtras(), ExtensionExtras.fromBundle(new Bundle()));
+    }
+
+    @Test
+    public void invalidBundlesAreRejected() {
+        assertBadBundle(new int[] { 1, 2 }, new byte[] { 0 }, new long[] { 0, 0 });
+        assertBadBundle(new int[] { 1 }, new byte[] { 4 }, new long[] { 0 });
+        assertBadBundle(new int[] { 2, 1 }, new byte[] { 0, 0 }, new long[] { 0, 0 });
+        assertBadBundle(new int[] { -1 }, new byte[] { 0 }, new long[] { 0 });
+    }
+
+    @Test
+    public void jsonRoundTrips() throws IOException, JSONException {
+        ExtensionExtras extras = newExtras();
+        JSONObject json = extras.serialize();
+
+        assertEquals(40, json.getInt("i1"));
+        assertEquals(1386000000000L, json.getLong("l2"));
+        assertTrue(json.getBoolean("b4"));
+        assertEquals(extras, ExtensionExtras.deserialize(json));
+
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        extras.writeJson(writer);
+        writer.close();
+        assertEquals(extras, ExtensionExtras.readJson(new JsonReader(
+                new StringReader(out.toString()))));
+        assertEquals(extras, ExtensionExtras.deserialize(new JSONObject(out.toString())));
+    }
+
+    @Test
+    public void unknownJsonNamesAreIgnored() throws IOException, JSONException {
+        String json = "{\"i1\":40,\"x1\":1,\"i\":2,\"iabc\":3,\"i99999999\":4,\"l2\":null}";
+
+        ExtensionExtras expected = new ExtensionExtras().putInt(1, 40);
+        assertEquals(expected, ExtensionExtras.readJson(new JsonReader(new StringReader(json))));
+        JSONObject object = new JSONObject(json);
+        object.remove("l2");
+        assertEquals(expected, ExtensionExtras.deserialize(object));
+    }
+
+    private static ExtensionExtras newExtras() {
+        return new ExtensionExtras()
+                .putBoolean(5, false)
+                .putInt(1, 40)
+                .putLong(2, 1386000000000L)
+                .putDouble(3, 0.25)
+                .putBoolean(4, true)
+                .putInt(ExtensionExtras.MAX_KEY, -7);
+    }
+
+    private static void assertBadParcel(int... ints) {
+        Parcel parcel = Parcel.obtain();
+        for (int value : ints) {
+            parcel.writeInt(value);
+        }
+        parcel.setDataPosition(0);
+        try {
+            new ExtensionExtras().readFromParcel(parcel);
+            fail("Read a bad parcel");
+        } catch (BadParcelableException expected) {
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void assertBadBundle(int[] keys, byte[] types, long[] values) {
+        Bundle bundle = new Bundle();
+        bundle.putIntArray("keys", keys);
+        bundle.putByteArray("types", types);
+        bundle.putLongArray("values", values);
+        try {
+            ExtensionExtras.fromBundle(bundle);
+            fail("Read a bad bundle");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.ServiceInfo;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.RemoteException;
+
+import com.mindmeapp.extensions.internal.IMindMeExtension;
+import com.mindmeapp.extensions.internal.IMindMeExtensionHost;
+
+/**
+ * Tests of {@link ExtensionHostManager}, connected to fake extensions that record the calls they
+ * receive and publish through the host binder they are given.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExtensionHostManagerTest {
+    private ExtensionHostManager mManager;
+    private final List<ComponentName> mChanged = new ArrayList<ComponentName>();
+
+    @Before
+    public void setUp() {
+        mManager = new ExtensionHostManager(RuntimeEnvironment.application,
+                Looper.getMainLooper(), 1);
+        mManager.setOnExtensionDataChangedListener(
+                new ExtensionHostManager.OnExtensionDataChangedListener() {
+                    @Override
+                    public void onExtensionDataChanged(ComponentName extension) {
+                        mChanged.add(extension);
+                    }
+                });
+    }
+
+    @Test
+    public void connectedExtensionsAreInitialized() {
+        FakeExtension current = installExtension("Current", 6);
+        FakeExtension legacy = installExtension("Legacy", 1);
+        connect(current, legacy);
+
+        assertNotNull(current.mHost);
+        assertEquals(ExtensionHostManager.PROTOCOL_VERSION, current.mHostProtocolVersion);
+        assertNotNull(legacy.mHost);
+        assertEquals(0, legacy.mHostProtocolVersion);
+    }
+
+    @Test
+    public void updatesAreFannedOutOneSlotAtATime() throws RemoteException {
+        FakeExtension first = installExtension("First", 6);
+        FakeExtension second = installExtension("Second", 6);
+        connect(first, second);
+        mManager.requestUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+
+        assertEquals(1, first.mReasons.size() + second.mReasons.size());
+        FakeExtension updating = first.mReasons.isEmpty() ? second : first;
+        FakeExtension waiting = updating == first ? second : first;
+        updating.mHost.onUpdateFinished();
+        assertEquals(Arrays.asList(MindMeExtension.UPDATE_REASON_PERIODIC), waiting.mReasons);
+    }
+
+    @Test
+    public void waitingUpdatesAreOrderedByReasonThenPriority() throws RemoteException {
+        FakeExtension busy = installExtension("Busy", 6);
+        FakeExtension low = installExtension("Low", 6);
+        FakeExtension high = installExtension("High", 6);
+        FakeExtension manual = installExtension("Manual", 6);
+        connect(busy, low, high, manual);
+        mManager.setPriority(high.mComponent, 5);
+
+        mManager.requestUpdate(busy.mComponent, MindMeExtension.UPDATE_REASON_PERIODIC);
+        mManager.requestUpdate(low.mComponent, MindMeExtension.UPDATE_REASON_PERIODIC);
+        mManager.requestUpdate(high.mComponent, MindMeExtension.UPDATE_REASON_PERIODIC);
+        mManager.requestUpdate(manual.mComponent, MindMeExtension.UPDATE_REASON_MANUAL);
+
+        List<FakeExtension> order = new ArrayList<FakeExtension>();
+        List<FakeExtension> all = Arrays.asList(busy, low, high, manual);
+        for (int i = 0; i < all.size(); i++) {
+            for (FakeExtension extension : all) {
+                if (!extension.mReasons.isEmpty() && !order.contains(extension)) {
+                    order.add(extension);
+                    extension.mHost.onUpdateFinished();
+                    break;
+                }
+            }
+        }
+        assertEquals(Arrays.asList(busy, manual, high, low), order);
+    }
+
+    @Test
+    public void requestsForAWaitingExtensionAreMerged() throws RemoteException {
+        FakeExtension busy = installExtension("Busy", 6);
+        FakeExtension waiting = installExtension("Waiting", 6);
+        connect(busy, waiting);
+        mManager.requestUpdate(busy.mComponent, MindMeExtension.UPDATE_REASON_MANUAL);
+        mManager.requestUpdate(waiting.mComponent, MindMeExtension.UPDATE_REASON_PERIODIC);
+        mManager.requestUpdate(waiting.mComponent, MindMeExtension.UPDATE_REASON_MANUAL);
+        mManager.requestUpdate(waiting.mComponent, MindMeExtension.UPDATE_REASON_PERIODIC);
+
+        busy.mHost.onUpdateFinished();
+        assertEquals(Arrays.asList(MindMeExtension.UPDATE_REASON_MANUAL), waiting.mReasons);
+    }
+
+    @Test
+    public void silentExtensionsAreReleasedByTheTimeout() {
+        FakeExtension silent = installExtension("Silent", 6);
+        FakeExtension next = installExtension("Next", 6);
+        connect(silent, next);
+        mManager.requestUpdate(silent.mComponent, MindMeExtension.UPDATE_REASON_PERIODIC);
+        mManager.requestUpdate(next.mComponent, MindMeExtension.UPDATE_REASON_PERIODIC);
+
+        Robolectric.getForegroundThreadScheduler().advanceBy(
+                ExtensionHostManager.UPDATE_TIMEOUT_MILLIS - 1, TimeUnit.MILLISECONDS);
+        assertTrue(next.mReasons.isEmpty());
+        Robolectric.getForegroundThreadScheduler().advanceBy(1, TimeUnit.MILLISECONDS);
+        assertEquals(1, next.mReasons.size());
+    }
+
+    @Test
+    public void publishingKeepsTheLatestDataAndReleasesTheSlot() throws RemoteException {
+        FakeExtension publisher = installExtension("Publisher", 6);
+        FakeExtension next = installExtension("Next", 6);
+        connect(publisher, next);
+        mManager.requestUpdate(publisher.mComponent, MindMeExtension.UPDATE_REASON_PERIODIC);
+        mManager.requestUpdate(next.mComponent, MindMeExtension.UPDATE_REASON_PERIODIC);
+
+        ExtensionData data = ExtensionDataTest.newData();
+        publisher.mHost.publishUpdate(data);
+        assertEquals(data, mManager.getLatestData(publisher.mComponent));
+        assertEquals(Arrays.asList(publisher.mComponent), mChanged);
+        assertEquals(1, next.mReasons.size());
+
+        ExtensionData delta = new ExtensionData().statusToDisplay("10:05");
+        publisher.mHost.publishUpdateDelta(ExtensionData.FIELD_STATUS_TO_DISPLAY, delta);
+        ExtensionData latest = mManager.getLatestData(publisher.mComponent);
+        assertEquals("10:05", latest.statusToDisplay());
+        assertEquals(data.statusToSpeak(), latest.statusToSpeak());
+        // Earlier data handed to listeners is left alone
+        assertEquals("10:00", data.statusToDisplay());
+    }
+
+    @Test
+    public void batchesAreKeptWhole() throws RemoteException {
+        FakeExtension publisher = installExtension("Publisher", 6);
+        connect(publisher);
+        List<ExtensionData> batch = Arrays.asList(
+                new ExtensionData().statusToDisplay("1"), new ExtensionData().statusToDisplay("2"));
+        publisher.mHost.publishUpdates(batch);
+
+        assertEquals(batch, mManager.getLatestDataList(publisher.mComponent));
+        assertEquals(batch.get(1), mManager.getLatestData(publisher.mComponent));
+
+        publisher.mHost.publishUpdate(null);
+        assertNull(mManager.getLatestData(publisher.mComponent));
+        assertTrue(mManager.getLatestDataList(publisher.mComponent).isEmpty());
+    }
+
+    @Test
+    public void updatesRequestedWhileConnectingKeepTheMostUrgentReason() {
+        FakeExtension extension = installExtension("Slow", 6);
+        ShadowLooper.pauseMainLooper();
+        connect(extension);
+        mManager.requestUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mManager.requestUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        ShadowLooper.unPauseMainLooper();
+
+        assertEquals(Arrays.asList(MindMeExtension.UPDATE_REASON_MANUAL), extension.mReasons);
+    }
+
+    @Test
+    public void deactivatedExtensionsAreForgotten() throws RemoteException {
+        FakeExtension kept = installExtension("Kept", 6);
+        FakeExtension dropped = installExtension("Dropped", 6);
+        connect(kept, dropped);
+        dropped.mHost.publishUpdate(ExtensionDataTest.newData());
+        mManager.requestUpdate(dropped.mComponent, MindMeExtension.UPDATE_REASON_PERIODIC);
+        mManager.requestUpdate(kept.mComponent, MindMeExtension.UPDATE_REASON_PERIODIC);
+
+        mManager.setActiveExtensions(Collections.singletonList(kept.mComponent));
+        assertNull(mManager.getLatestData(dropped.mComponent));
+        // The slot held by the dropped extension went to the waiting one
+        assertEquals(1, kept.mReasons.size());
+
+        // Late calls from the dropped extension are ignored
+        dropped.mHost.publishUpdate(new ExtensionData());
+        assertNull(mManager.getLatestData(dropped.mComponent));
+    }
+
+    @Test
+    public void scheduledUpdatesAreAnnouncedToCurrentExtensions() {
+        FakeExtension current = installExtension("Current", 6);
+        FakeExtension legacy = installExtension("Legacy", 1);
+        connect(current, legacy);
+        mManager.scheduleUpdate(1386000000000L);
+
+        assertEquals(1386000000000L, current.mScheduledAt);
+        assertEquals(0, legacy.mScheduledAt);
+    }
+
+    @Test
+    public void speechSegmentsReachTheListener() throws RemoteException {
+        FakeExtension extension = installExtension("Speaker", 6);
+        connect(extension);
+        final List<String> segments = new ArrayList<String>();
+        final List<Locale> locales = new ArrayList<Locale>();
+        mManager.setOnSpeechSegmentListener(new ExtensionHostManager.OnSpeechSegmentListener() {
+            @Override
+            public void onSpeechSegment(ComponentName component, int streamId, int sequence,
+                    String text, Locale locale, boolean isLast) {
+                segments.add(streamId + ":" + sequence + ":" + text + (isLast ? ":last" : ""));
+                locales.add(locale);
+            }
+        });
+        extension.mHost.publishSpeechSegment(1, 0, "Good morning.", "en", "GB", false);
+        extension.mHost.publishSpeechSegment(1, 1, "Rain later.", "en", "GB", false);
+        extension.mHost.publishSpeechSegment(1, 2, "Bye.", null, null, true);
+
+        assertEquals(Arrays.asList("1:0:Good morning.", "1:1:Rain later.", "1:2:Bye.:last"),
+                segments);
+        assertEquals(Locale.UK, locales.get(0));
+        assertSame(locales.get(0), locales.get(1));
+        assertNull(locales.get(2));
+    }
+
+    /**
+     * Declares an extension service, in a package of its own, with the given protocol version and
+     * makes binding to it return a new fake.
+     */
+    private static FakeExtension installExtension(String name, int protocolVersion) {
+        Application application = RuntimeEnvironment.application;
+        String packageName = "com.example." + name.toLowerCase(Locale.US);
+        FakeExtension extension = new FakeExtension(
+                new ComponentName(packageName, packageName + "." + name + "Extension"));
+        Bundle metaData = new Bundle();
+        metaData.putInt("protocolVersion", protocolVersion);
+        ServiceInfo service = new ServiceInfo();
+        service.name = extension.mComponent.getClassName();
+        service.packageName = packageName;
+        service.metaData = metaData;
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = packageName;
+        packageInfo.services = new ServiceInfo[] { service };
+        shadowOf(application.getPackageManager()).addPackage(packageInfo);
+        shadowOf(application).setComponentNameAndServiceForBindServiceForIntent(
+                new Intent(MindMeExtension.ACTION_EXTENSION).setComponent(extension.mComponent),
+                extension.mComponent, extension);
+        return extension;
+    }
+
+    private void connect(FakeExtension... extensions) {
+        List<ComponentName> components = new ArrayList<ComponentName>();
+        for (FakeExtension extension : extensions) {
+            components.add(extension.mComponent);
+        }
+        mManager.setActiveExtensions(components);
+    }
+
+    /**
+     * Extension binder recording the calls it receives.
+     */
+    static class FakeExtension extends IMindMeExtension.Stub {
+        final ComponentName mComponent;
+        final List<Integer> mReasons = new ArrayList<Integer>();
+        IMindMeExtensionHost mHost;
+        int mHostProtocolVersion;
+        long mScheduledAt;
+
+        FakeExtension(ComponentName component) {
+            mComponent = component;
+        }
+
+        @Override
+        public void onInitialize(IMindMeExtensionHost host, boolean isReconnect) {
+            mHost = host;
+        }
+
+        @Override
+        public void onUpdate(int reason) {
+            mReasons.add(reason);
+        }
+
+        @Override
+        public void setHostProtocolVersion(int protocolVersion) {
+            mHostProtocolVersion = protocolVersion;
+        }
+
+        @Override
+        public void onScheduleUpdate(long triggerAtMillis) {
+            mScheduledAt = triggerAtMillis;
+        }
+
+        @Override
+        public String toString() {
+            return mComponent.getShortClassName();
+        }
+    }
+}
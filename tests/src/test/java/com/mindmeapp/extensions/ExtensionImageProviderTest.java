@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Tests of {@link ExtensionImageProvider}. Robolectric doesn't really decode images, so the
+ * quality of downsampled copies is left to on-device testing.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExtensionImageProviderTest {
+    private static final byte[] IMAGE = { 1, 2, 3, 4, 5 };
+
+    private Context mContext;
+    private ExtensionImageProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mProvider = Robolectric.buildContentProvider(ExtensionImageProvider.class).create().get();
+    }
+
+    @Test
+    public void uriDependsOnlyOnTheKey() {
+        Uri uri = ExtensionImageProvider.buildUri(mContext, "weather icon");
+
+        assertEquals("content", uri.getScheme());
+        assertEquals(mContext.getPackageName() + ExtensionImageProvider.AUTHORITY_SUFFIX,
+                uri.getAuthority());
+        assertEquals("weather icon", uri.getLastPathSegment());
+        assertEquals(uri, ExtensionImageProvider.buildUri(mContext, "weather icon"));
+    }
+
+    @Test
+    public void sizedUriReplacesPreviousSize() {
+        Uri uri = ExtensionImageProvider.buildUri(mContext, "icon");
+        Uri sized = ExtensionImageProvider.sizedUri(
+                ExtensionImageProvider.sizedUri(uri, 10, 20), 30, 40);
+
+        assertEquals("30", sized.getQueryParameter(ExtensionImageProvider.PARAM_WIDTH));
+        assertEquals("40", sized.getQueryParameter(ExtensionImageProvider.PARAM_HEIGHT));
+        assertEquals(2, sized.getQueryParameterNames().size());
+        assertEquals(uri.getPath(), sized.getPath());
+    }
+
+    @Test
+    public void storedImageIsServed() throws IOException {
+        Uri uri = ExtensionImageProvider.putImage(mContext, "icon",
+                new ByteArrayInputStream(IMAGE));
+
+        assertArrayEquals(IMAGE, read(uri));
+    }
+
+    @Test
+    public void existingKeyIsNotStoredAgain() throws IOException {
+        Uri uri = ExtensionImageProvider.putImage(mContext, "icon",
+                new ByteArrayInputStream(IMAGE));
+        ExtensionImageProvider.putImage(mContext, "icon", new ByteArrayInputStream(new byte[] { 9 }));
+
+        assertArrayEquals(IMAGE, read(uri));
+    }
+
+    @Test
+    public void removedImageIsNotServed() throws IOException {
+        Uri uri = ExtensionImageProvider.putImage(mContext, "icon",
+                new ByteArrayInputStream(IMAGE));
+        ExtensionImageProvider.removeImage(mContext, "icon");
+
+        assertNotFound(uri, "r");
+    }
+
+    @Test
+    public void sizedImagesAreCachedOnDisk() throws IOException {
+        Uri uri = ExtensionImageProvider.sizedUri(ExtensionImageProvider.putImage(mContext,
+                "icon", new ByteArrayInputStream(IMAGE)), 8, 8);
+        byte[] first = read(uri);
+
+        File cached = new File(new File(mContext.getCacheDir(), "mindme_images"), "icon_8x8");
+        assertTrue(cached.exists());
+        assertArrayEquals(first, read(uri));
+        assertEquals(1, cached.getParentFile().list().length);
+    }
+
+    @Test
+    public void writesAndUnknownUrisAreRejected() throws IOException {
+        Uri uri = ExtensionImageProvider.putImage(mContext, "icon",
+                new ByteArrayInputStream(IMAGE));
+
+        assertNotFound(uri, "rw");
+        assertNotFound(uri.buildUpon().appendPath("extra").build(), "r");
+    }
+
+    private byte[] read(Uri uri) throws IOException {
+        ParcelFileDescriptor pfd = mProvider.openFile(uri, "r");
+        InputStream in = new FileInputStream(pfd.getFileDescriptor());
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+            pfd.close();
+        }
+    }
+
+    private void assertNotFound(Uri uri, String mode) {
+        try {
+            mProvider.openFile(uri, mode).close();
+            fail("Expected FileNotFoundException for " + uri);
+        } catch (FileNotFoundException expected) {
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link ExtensionMetrics}.
+ */
+public class ExtensionMetricsTest {
+
+    @Test
+    public void countsAreKeptPerReason() {
+        ExtensionMetrics metrics = new ExtensionMetrics();
+        metrics.recordRequest(MindMeExtension.UPDATE_REASON_PERIODIC);
+        metrics.recordRequest(MindMeExtension.UPDATE_REASON_PERIODIC);
+        metrics.recordRun(MindMeExtension.UPDATE_REASON_PERIODIC, 0, 0);
+        metrics.recordCacheHit(MindMeExtension.UPDATE_REASON_MANUAL);
+
+        assertEquals(2, metrics.requestCount(MindMeExtension.UPDATE_REASON_PERIODIC));
+        assertEquals(1, metrics.runCount(MindMeExtension.UPDATE_REASON_PERIODIC));
+        assertEquals(0, metrics.runCount(MindMeExtension.UPDATE_REASON_MANUAL));
+        assertEquals(1, metrics.cacheHitCount(MindMeExtension.UPDATE_REASON_MANUAL));
+    }
+
+    @Test
+    public void unknownReasonsCountAsUnknown() {
+        ExtensionMetrics metrics = new ExtensionMetrics();
+        metrics.recordRequest(99);
+        metrics.recordRequest(-1);
+
+        assertEquals(2, metrics.requestCount(MindMeExtension.UPDATE_REASON_UNKNOWN));
+        assertEquals(2, metrics.requestCount(99));
+    }
+
+    @Test
+    public void latenciesAreBucketedByUpperBound() {
+        ExtensionMetrics metrics = new ExtensionMetrics();
+        metrics.recordRun(MindMeExtension.UPDATE_REASON_MANUAL, 10, 11);
+        metrics.recordRun(MindMeExtension.UPDATE_REASON_MANUAL, 0, 60000);
+
+        long[] latencies = metrics.runLatencyHistogram();
+        long[] queueWaits = metrics.queueWaitHistogram();
+        assertEquals(ExtensionMetrics.latencyBucketBoundsMillis().length + 1, latencies.length);
+        assertEquals(1, latencies[1]);
+        assertEquals(1, latencies[latencies.length - 1]);
+        assertEquals(2, queueWaits[0]);
+    }
+
+    @Test
+    public void publishesTrackSizes() {
+        ExtensionMetrics metrics = new ExtensionMetrics();
+        metrics.recordPublish(0);
+        metrics.recordPublish(2000);
+        metrics.recordPublish(1024 * 1024);
+        metrics.recordPublishFailure();
+        metrics.recordPublishUnchanged();
+        metrics.recordPublishSuperseded();
+
+        assertEquals(3, metrics.publishSuccessCount());
+        assertEquals(1, metrics.publishFailureCount());
+        assertEquals(1, metrics.publishUnchangedCount());
+        assertEquals(1, metrics.publishSupersededCount());
+        assertEquals(2000 + 1024 * 1024, metrics.publishedBytes());
+        assertEquals(1024 * 1024, metrics.maxParcelSize());
+        assertArrayEquals(new long[] { 0, 1, 0, 0, 0, 0, 1 }, metrics.parcelSizeHistogram());
+    }
+
+    @Test
+    public void snapshotIsIndependent() {
+        ExtensionMetrics metrics = new ExtensionMetrics();
+        metrics.recordPublish(10);
+        ExtensionMetrics snapshot = metrics.snapshot();
+        metrics.recordPublish(10);
+        snapshot.parcelSizeHistogram()[0] = 100;
+
+        assertEquals(1, snapshot.publishSuccessCount());
+        assertEquals(1, snapshot.parcelSizeHistogram()[0]);
+        assertEquals(2, metrics.publishSuccessCount());
+    }
+
+    @Test
+    public void dumpListsEveryMetric() {
+        ExtensionMetrics metrics = new ExtensionMetrics();
+        metrics.recordRequest(MindMeExtension.UPDATE_REASON_PERIODIC);
+        metrics.recordRun(MindMeExtension.UPDATE_REASON_PERIODIC, 0, 5);
+        metrics.recordPublish(100);
+
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        metrics.dump("", writer);
+        writer.flush();
+        String dump = out.toString();
+
+        assertTrue(dump, dump.contains("  periodic: 1 / 1 / 0"));
+        assertTrue(dump, dump.contains("  <=10: 1"));
+        assertTrue(dump, dump.contains("Publishes: ok=1 failed=0 unchanged=0 superseded=0"));
+        assertTrue(dump, dump.contains("Published bytes: total=100 max=100"));
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.os.Bundle;
+import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+/**
+ * Tests of {@link ExtensionData} payloads, encoded with the codec the annotation processor
+ * generates for {@link Forecast} when these tests are compiled.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExtensionPayloadTest {
+    private static final ExtensionPayloadCodec<Forecast> CODEC
+            = ExtensionPayloadTest_ForecastCodec.INSTANCE;
+
+    @ExtensionPayload
+    static class Forecast {
+        int temperature;
+        long time;
+        float wind;
+        double precipitation;
+        boolean alert;
+        String summary;
+    }
+
+    @Test
+    public void payloadIsReadBack() {
+        Forecast forecast = newForecast();
+        ExtensionData data = new ExtensionData().payload(CODEC, forecast);
+
+        assertEquals(Forecast.class.getName(), data.payloadType());
+        assertEquals(Forecast.class.getName(), CODEC.id());
+        Forecast read = data.payload(CODEC);
+        assertTrue(CODEC.equals(forecast, read));
+        assertNotSame(read, data.payload(CODEC));
+    }
+
+    @Test
+    public void payloadIsEncodedRightAway() {
+        Forecast forecast = newForecast();
+        ExtensionData data = new ExtensionData().payload(CODEC, forecast);
+        forecast.temperature = 30;
+
+        assertEquals(21, data.payload(CODEC).temperature);
+    }
+
+    @Test
+    public void nullValueRemovesThePayload() {
+        ExtensionData data = new ExtensionData().payload(CODEC, newForecast());
+        data.payload(CODEC, null);
+
+        assertNull(data.payloadType());
+        assertNull(data.payload(CODEC));
+        assertEquals(new ExtensionData(), data);
+    }
+
+    @Test
+    public void payloadsOfOtherCodecsAreNotDecoded() {
+        ExtensionData data = new ExtensionData();
+        data.fromBundle(bundleWithPayload("com.example.Other"));
+
+        assertNull(data.payload(CODEC));
+    }
+
+    @Test
+    public void payloadChangesEqualityAndFingerprint() {
+        ExtensionData data = new ExtensionData().payload(CODEC, newForecast());
+        Forecast other = newForecast();
+        other.alert = false;
+        ExtensionData changed = new ExtensionData().payload(CODEC, other);
+
+        assertEquals(data, new ExtensionData().payload(CODEC, newForecast()));
+        assertFalse(data.equals(changed));
+        assertFalse(data.fingerprint() == changed.fingerprint());
+    }
+
+    @Test
+    public void payloadSurvivesParcelsFromVersion4() {
+        ExtensionData data = ExtensionDataTest.newData().payload(CODEC, newForecast());
+
+        for (int version = 4; version <= ExtensionData.PARCELABLE_VERSION; version++) {
+            ExtensionData read = ExtensionDataParcelTest.roundTrip(data, version);
+            assertTrue(CODEC.equals(newForecast(), read.payload(CODEC)));
+        }
+        assertNull(ExtensionDataParcelTest.roundTrip(data, 3).payloadType());
+    }
+
+    @Test
+    public void payloadSurvivesBundles() {
+        ExtensionData data = new ExtensionData().payload(CODEC, newForecast());
+        ExtensionData read = new ExtensionData();
+        read.fromBundle(data.toBundle());
+
+        assertEquals(data, read);
+    }
+
+    @Test
+    public void payloadIsWrittenAsJson() throws IOException, JSONException {
+        ExtensionData data = new ExtensionData().payload(CODEC, newForecast());
+        JSONObject json = new JSONObject(ExtensionDataJsonTest.writeJson(data));
+
+        assertEquals(Forecast.class.getName(), json.getString("payload_type"));
+        JSONObject payload = json.getJSONObject("payload");
+        assertEquals(21, payload.getInt("temperature"));
+        assertEquals("Sunny", payload.getString("summary"));
+
+        assertEquals(data, ExtensionDataJsonTest.readJson(json.toString()));
+        ExtensionData deserialized = new ExtensionData();
+        deserialized.deserialize(data.serialize());
+        assertTrue(CODEC.equals(newForecast(), deserialized.payload(CODEC)));
+    }
+
+    @Test
+    public void payloadsOfUnknownCodecsKeepTheirParcelFormInJson()
+            throws IOException, JSONException {
+        ExtensionData data = new ExtensionData();
+        data.fromBundle(bundleWithPayload("com.example.Unknown"));
+        assertEquals("com.example.Unknown", data.payloadType());
+
+        JSONObject json = new JSONObject(ExtensionDataJsonTest.writeJson(data));
+        assertEquals("com.example.Unknown", json.getString("payload_type"));
+        assertFalse(json.has("payload"));
+        assertEquals(data, ExtensionDataJsonTest.readJson(json.toString()));
+
+        ExtensionData deserialized = new ExtensionData();
+        deserialized.deserialize(data.serialize());
+        assertEquals(data, deserialized);
+        assertEquals(data, ExtensionDataJsonTest.readJson(data.serialize().toString()));
+    }
+
+    @Test
+    public void parcelFormIsReadWhenTheCodecIsRegistered() throws IOException, JSONException {
+        // Written by a process that hadn't loaded the codec yet
+        byte[] bytes = new ExtensionData().payload(CODEC, newForecast()).toBundle()
+                .getByteArray("payload");
+        JSONObject json = new JSONObject()
+                .put("payload_type", CODEC.id())
+                .put("payload_bytes", Base64.encodeToString(bytes, Base64.NO_WRAP));
+
+        ExtensionData read = ExtensionDataJsonTest.readJson(json.toString());
+        assertTrue(CODEC.equals(newForecast(), read.payload(CODEC)));
+        ExtensionData deserialized = new ExtensionData();
+        deserialized.deserialize(json);
+        assertEquals(read, deserialized);
+
+        // Converted once the codec is known
+        json = new JSONObject(ExtensionDataJsonTest.writeJson(read));
+        assertTrue(json.has("payload"));
+        assertFalse(json.has("payload_bytes"));
+    }
+
+    @Test
+    public void jsonPayloadsOfUnknownCodecsAreDropped() throws IOException, JSONException {
+        JSONObject json = new JSONObject(ExtensionDataJsonTest.writeJson(new ExtensionData()));
+        json.put("payload_type", "com.example.Unknown");
+        json.put("payload", new JSONObject().put("temperature", 21));
+
+        assertNull(ExtensionDataJsonTest.readJson(json.toString()).payloadType());
+        ExtensionData deserialized = new ExtensionData();
+        deserialized.deserialize(json);
+        assertNull(deserialized.payloadType());
+    }
+
+    @Test
+    public void generatedCodecRoundTripsBundles() {
+        Forecast forecast = newForecast();
+
+        assertTrue(CODEC.equals(forecast, CODEC.fromBundle(CODEC.toBundle(forecast))));
+        Forecast empty = CODEC.fromBundle(new Bundle());
+        assertTrue(CODEC.equals(new Forecast(), empty));
+    }
+
+    @Test
+    public void generatedCodecSkipsUnknownAndNullJson() throws IOException {
+        Forecast read = CODEC.readJson(new JsonReader(new StringReader(
+                "{\"temperature\":5,\"humidity\":80,\"summary\":null,\"alert\":true}")));
+
+        assertEquals(5, read.temperature);
+        assertNull(read.summary);
+        assertTrue(read.alert);
+
+        Forecast noSummary = newForecast();
+        noSummary.summary = null;
+        StringWriter out = new StringWriter();
+        CODEC.writeJson(noSummary, new JsonWriter(out));
+        assertFalse(out.toString().contains("summary"));
+    }
+
+    @Test
+    public void generatedCodecComparesEveryField() {
+        Forecast forecast = newForecast();
+        assertTrue(CODEC.equals(forecast, newForecast()));
+        assertEquals(CODEC.hashCode(forecast), CODEC.hashCode(newForecast()));
+        assertTrue(CODEC.equals(null, null));
+        assertFalse(CODEC.equals(forecast, null));
+
+        Forecast other = newForecast();
+        other.wind = 3.5f;
+        assertFalse(CODEC.equals(forecast, other));
+        other = newForecast();
+        other.summary = null;
+        assertFalse(CODEC.equals(forecast, other));
+        assertFalse(CODEC.equals(other, forecast));
+    }
+
+    private static Forecast newForecast() {
+        Forecast forecast = new Forecast();
+        forecast.temperature = 21;
+        forecast.time = 1386000000000L;
+        forecast.wind = 12.5f;
+        forecast.precipitation = 0.2;
+        forecast.alert = true;
+        forecast.summary = "Sunny";
+        return forecast;
+    }
+
+    private static Bundle bundleWithPayload(String payloadType) {
+        Bundle bundle = new ExtensionData().toBundle();
+        bundle.putString("payload_type", payloadType);
+        bundle.putByteArray("payload", new byte[] { 1, 2, 3, 4 });
+        return bundle;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import android.content.Context;
+import android.os.Bundle;
+
+/**
+ * Tests of {@link ExtensionSnapshot}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExtensionSnapshotTest {
+    private static final long MAX_AGE_MILLIS = 60 * 60 * 1000;
+
+    private ExtensionSnapshot mSnapshot;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.application;
+        mSnapshot = new ExtensionSnapshot(context, "test");
+        mFile = new File(context.getFilesDir(), "mindme_snapshot_test.json");
+    }
+
+    @Test
+    public void savedDataLoadsBack() {
+        ExtensionData data = ExtensionDataTest.newData();
+        mSnapshot.save(data);
+
+        assertEquals(data, mSnapshot.load(MAX_AGE_MILLIS));
+    }
+
+    @Test
+    public void payloadsOfUnknownCodecsLoadBack() {
+        Bundle bundle = ExtensionDataTest.newData().toBundle();
+        bundle.putString("payload_type", "com.example.Unknown");
+        bundle.putByteArray("payload", new byte[] { 1, 2, 3, 4 });
+        ExtensionData data = new ExtensionData();
+        data.fromBundle(bundle);
+        mSnapshot.save(data);
+
+        assertEquals(data, mSnapshot.load(MAX_AGE_MILLIS));
+    }
+
+    @Test
+    public void savingNullDeletesTheSnapshot() {
+        mSnapshot.save(ExtensionDataTest.newData());
+        mSnapshot.save(null);
+
+        assertNull(mSnapshot.load(MAX_AGE_MILLIS));
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void snapshotsOlderThanMaxAgeAreDropped() {
+        mSnapshot.save(ExtensionDataTest.newData());
+        assertTrue(mFile.setLastModified(System.currentTimeMillis() - 2 * MAX_AGE_MILLIS));
+
+        assertNull(mSnapshot.load(MAX_AGE_MILLIS));
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void corruptSnapshotsAreDropped() throws IOException {
+        FileWriter writer = new FileWriter(mFile);
+        writer.write("{\"visible\": tr");
+        writer.close();
+
+        assertNull(mSnapshot.load(MAX_AGE_MILLIS));
+        assertFalse(mFile.exists());
+    }
+}
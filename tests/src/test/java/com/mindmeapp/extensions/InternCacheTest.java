@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Locale;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.net.Uri;
+
+/**
+ * Tests of {@link InternCache}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class InternCacheTest {
+
+    @Test
+    public void urisAreInterned() {
+        Uri uri = InternCache.uri("content://icons/1");
+
+        assertEquals(Uri.parse("content://icons/1"), uri);
+        assertSame(uri, InternCache.uri(new String("content://icons/1")));
+    }
+
+    @Test
+    public void localesAreInterned() {
+        Locale locale = InternCache.locale("en", "GB", null);
+
+        assertEquals(Locale.UK, locale);
+        assertSame(locale, InternCache.locale("en", "GB", ""));
+        assertSame(locale, InternCache.locale("en", "gb", null));
+    }
+
+    @Test
+    public void variantsAreDistinct() {
+        Locale locale = InternCache.locale("de", "DE", null);
+        Locale variant = InternCache.locale("de", "DE", "POSIX");
+
+        assertNotSame(locale, variant);
+        assertEquals(new Locale("de", "DE", "POSIX"), variant);
+        assertSame(variant, InternCache.locale("de", "DE", "POSIX"));
+    }
+
+    @Test
+    public void missingComponentsAreEmpty() {
+        assertEquals(new Locale("fr"), InternCache.locale("fr", null, null));
+        assertEquals(new Locale(""), InternCache.locale(null, null, null));
+    }
+
+    @Test
+    public void moreCountriesThanSlotsStillResolve() {
+        String[] countries = { "PT", "BR", "AO", "MZ", "CV", "GW" };
+        for (int round = 0; round < 2; round++) {
+            for (String country : countries) {
+                assertEquals(new Locale("pt", country), InternCache.locale("pt", country, null));
+            }
+        }
+    }
+
+    @Test
+    public void decodedDataSharesInstances() {
+        ExtensionData data = ExtensionDataTest.newData();
+        ExtensionData first = ExtensionDataParcelTest.roundTrip(data, 2);
+        ExtensionData second = ExtensionDataParcelTest.roundTrip(data, 2);
+
+        assertSame(first.iconUri(), second.iconUri());
+        assertSame(first.languageToSpeak(), second.languageToSpeak());
+    }
+}
@@ -0,0 +1,1058 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.content.pm.Signature;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.mindmeapp.extensions.internal.IMindMeExtension;
+import com.mindmeapp.extensions.internal.IMindMeExtensionHost;
+
+/**
+ * Tests of the update scheduling and publishing of {@link MindMeExtension}, driven through its
+ * binder interface like the main app does. Update runs are queued on an executor drained by
+ * {@link TestExtension#runQueued()}, so each test decides when runs happen and what arrives while
+ * they are in flight.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MindMeExtensionTest {
+    private static final int PROTOCOL_VERSION = 6;
+    private static final String CALLER_PACKAGE = "com.thetalkerapp.main";
+    private static final long SNAPSHOT_SAVE_DELAY_MILLIS = 2000;
+    private static final long MINUTE_MILLIS = 60 * 1000;
+
+    private TestExtension mExtension;
+    private IMindMeExtension mBinder;
+    private RecordingHost mHost;
+
+    @Before
+    public void setUp() throws RemoteException {
+        startExtension(new Bundle());
+    }
+
+    @Test
+    public void requestsQueuedBeforeARunAreCoalesced() throws RemoteException {
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mExtension.runQueued();
+
+        assertEquals(1, mExtension.mRequests.size());
+        assertEquals(3, mExtension.mRequests.get(0).requestCount());
+        assertEquals(MindMeExtension.UPDATE_REASON_PERIODIC, mExtension.mRequests.get(0).reason());
+    }
+
+    @Test
+    public void coalescedRunKeepsHighestPriorityReason() throws RemoteException {
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_UNKNOWN);
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_SETTINGS_CHANGED);
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mExtension.runQueued();
+
+        assertEquals(1, mExtension.mRequests.size());
+        assertEquals(MindMeExtension.UPDATE_REASON_SETTINGS_CHANGED,
+                mExtension.mRequests.get(0).reason());
+        assertEquals(3, mExtension.mRequests.get(0).requestCount());
+    }
+
+    @Test
+    public void requestsDuringASerialRunGetOneFollowUpRun() throws RemoteException {
+        mExtension.mUpdateListener = new UpdateListener() {
+            @Override
+            public void onUpdate(UpdateRequest request) throws RemoteException {
+                if (mExtension.mRequests.size() == 1) {
+                    mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+                    mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+                }
+            }
+        };
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mExtension.runQueued();
+
+        assertEquals(2, mExtension.mRequests.size());
+        assertEquals(2, mExtension.mRequests.get(1).requestCount());
+    }
+
+    @Test
+    public void unchangedDataIsNotPublishedAgain() {
+        mExtension.publishUpdate(new ExtensionData().visible(true).statusToDisplay("10:00"));
+        mExtension.publishUpdate(new ExtensionData().visible(true).statusToDisplay("10:00"));
+
+        assertEquals(1, mHost.mPublished.size());
+        assertEquals(1, mExtension.getMetrics().publishUnchangedCount());
+    }
+
+    @Test
+    public void changedFieldsArePublishedAsDelta() {
+        ExtensionData data = new ExtensionData().visible(true).icon(1).statusToDisplay("10:00")
+                .statusToSpeak("It's ten").languageToSpeak(Locale.UK);
+        mExtension.publishUpdate(data);
+        data.statusToDisplay("10:05").statusToSpeak("It's five past ten");
+        mExtension.publishUpdate(data);
+
+        assertEquals(2, mHost.mPublished.size());
+        assertEquals(ExtensionData.FIELD_ALL, (int) mHost.mChangedFields.get(0));
+        assertEquals(ExtensionData.FIELD_STATUS_TO_DISPLAY | ExtensionData.FIELD_STATUS_TO_SPEAK,
+                (int) mHost.mChangedFields.get(1));
+        // Unchanged fields are left out of the delta
+        assertNull(mHost.mPublished.get(1).languageToSpeak());
+        assertEquals(data, mHost.mCurrent);
+    }
+
+    @Test
+    public void hostsWithoutDeltasReceiveFullData() throws RemoteException {
+        connectHost(1);
+        ExtensionData data = new ExtensionData().visible(true).icon(1).statusToDisplay("10:00")
+                .languageToSpeak(Locale.UK);
+        mExtension.publishUpdate(data);
+        data.statusToDisplay("10:05");
+        mExtension.publishUpdate(data);
+
+        assertEquals(2, mHost.mPublished.size());
+        assertEquals(ExtensionData.FIELD_ALL, (int) mHost.mChangedFields.get(1));
+        assertEquals(data, mHost.mPublished.get(1));
+    }
+
+    @Test
+    public void updateRunsReportTheirEnd() throws RemoteException {
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mExtension.runQueued();
+        assertTrue(mHost.mPublished.isEmpty());
+        assertEquals(1, mHost.mUpdateFinishedCount);
+
+        connectHost(1);
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mExtension.runQueued();
+        assertEquals(0, mHost.mUpdateFinishedCount);
+    }
+
+    @Test
+    public void batchIsSentInOneCall() {
+        List<ExtensionData> entries = Arrays.asList(
+                new ExtensionData().visible(true).statusToDisplay("Meeting"),
+                new ExtensionData().visible(true).statusToDisplay("Lunch"));
+        mExtension.publishUpdates(entries);
+
+        assertEquals(1, mHost.mBatches.size());
+        assertEquals(entries, mHost.mBatches.get(0));
+        assertTrue(mHost.mPublished.isEmpty());
+    }
+
+    @Test
+    public void olderHostsReceiveOneUpdatePerEntry() throws RemoteException {
+        connectHost(1);
+        List<ExtensionData> entries = Arrays.asList(
+                new ExtensionData().visible(true).statusToDisplay("Meeting"),
+                new ExtensionData().visible(true).statusToDisplay("Lunch"));
+        mExtension.publishUpdates(entries);
+
+        assertTrue(mHost.mBatches.isEmpty());
+        assertEquals(entries, mHost.mPublished);
+    }
+
+    @Test
+    public void publishAfterBatchSendsFullData() {
+        ExtensionData entry = new ExtensionData().visible(true).statusToDisplay("Meeting");
+        mExtension.publishUpdate(entry);
+        mExtension.publishUpdates(Arrays.asList(entry));
+        mExtension.publishUpdate(entry);
+
+        assertEquals(2, mHost.mPublished.size());
+        assertEquals(ExtensionData.FIELD_ALL, (int) mHost.mChangedFields.get(1));
+    }
+
+    @Test
+    public void verifiedCallersAreCachedUntilTheirPackageChanges() throws Exception {
+        installCaller(trustedSignature());
+        Bundle metaData = new Bundle();
+        metaData.putBoolean("worldReadable", false);
+        startExtension(metaData);
+
+        // Cached, the package manager isn't asked again
+        installCaller(new Signature("0123"));
+        connectHost(PROTOCOL_VERSION);
+
+        Intent replaced = new Intent(Intent.ACTION_PACKAGE_REPLACED,
+                Uri.parse("package:" + CALLER_PACKAGE));
+        replaced.putExtra(Intent.EXTRA_UID, Process.myUid());
+        RuntimeEnvironment.application.sendBroadcast(replaced);
+        try {
+            connectHost(PROTOCOL_VERSION);
+            fail("Caller with an unknown signature was accepted.");
+        } catch (SecurityException expected) {
+        }
+    }
+
+    @Test
+    public void untrustedCallersCantChangeTheProtocolVersion() throws Exception {
+        installCaller(trustedSignature());
+        Bundle metaData = new Bundle();
+        metaData.putBoolean("worldReadable", false);
+        startExtension(metaData);
+
+        installCaller(new Signature("0123"));
+        Intent replaced = new Intent(Intent.ACTION_PACKAGE_REPLACED,
+                Uri.parse("package:" + CALLER_PACKAGE));
+        replaced.putExtra(Intent.EXTRA_UID, Process.myUid());
+        RuntimeEnvironment.application.sendBroadcast(replaced);
+        try {
+            mBinder.setHostProtocolVersion(1);
+            fail("Caller with an unknown signature changed the protocol version.");
+        } catch (SecurityException expected) {
+        }
+        try {
+            mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+            fail("Caller with an unknown signature requested an update.");
+        } catch (SecurityException expected) {
+        }
+
+        // Still sending deltas to the version 6 host
+        ExtensionData data = new ExtensionData().visible(true).statusToDisplay("10:00");
+        mExtension.publishUpdate(data);
+        mExtension.publishUpdate(new ExtensionData().copyFrom(data).statusToDisplay("10:05"));
+        assertEquals(ExtensionData.FIELD_STATUS_TO_DISPLAY, (int) mHost.mChangedFields.get(1));
+        assertTrue(mExtension.mRequests.isEmpty());
+    }
+
+    @Test
+    public void lastPublishedDataIsRepublishedOnConnect() throws RemoteException {
+        ExtensionData data = ExtensionDataTest.newData();
+        mExtension.publishUpdate(new ExtensionData().statusToDisplay("09:55"));
+        mExtension.publishUpdate(data);
+        // Saves are delayed, and only write the last data
+        advanceClock(SNAPSHOT_SAVE_DELAY_MILLIS);
+        mExtension.runQueued();
+
+        startExtension(new Bundle());
+        assertEquals(1, mHost.mPublished.size());
+        assertEquals(data, mHost.mPublished.get(0));
+    }
+
+    @Test
+    public void pendingSnapshotIsSavedOnDestroy() throws RemoteException {
+        ExtensionData data = ExtensionDataTest.newData();
+        mExtension.publishUpdate(data);
+        mExtension.onDestroy();
+
+        startExtension(new Bundle());
+        assertEquals(data, mHost.mPublished.get(0));
+    }
+
+    @Test
+    public void snapshotIsNotRepublishedAfterFreshData() throws RemoteException {
+        mExtension.publishUpdate(ExtensionDataTest.newData());
+        mExtension.onDestroy();
+
+        mExtension = Robolectric.buildService(TestExtension.class).create().get();
+        mBinder = IMindMeExtension.Stub.asInterface(mExtension.onBind(new Intent()));
+        mHost = new RecordingHost();
+        mBinder.onInitialize(mHost, false);
+        ExtensionData data = new ExtensionData().statusToDisplay("10:05");
+        mExtension.publishUpdate(data);
+        mBinder.setHostProtocolVersion(PROTOCOL_VERSION);
+        mExtension.runQueued();
+
+        assertEquals(Arrays.asList(data), mHost.mPublished);
+    }
+
+    @Test
+    public void snapshotWaitsForTheHostProtocolVersion() throws RemoteException {
+        ExtensionData data = newLargeData();
+        mExtension.publishUpdate(data);
+        mExtension.onDestroy();
+
+        mExtension = Robolectric.buildService(TestExtension.class).create().get();
+        mBinder = IMindMeExtension.Stub.asInterface(mExtension.onBind(new Intent()));
+        mHost = new RecordingHost();
+        mBinder.onInitialize(mHost, false);
+        mExtension.runQueued();
+        assertTrue(mHost.mPublished.isEmpty());
+
+        // Too large to go inline, only hosts that announced version 2 can take it from a file
+        mBinder.setHostProtocolVersion(PROTOCOL_VERSION);
+        mExtension.runQueued();
+        assertEquals(1, mHost.mFileCount);
+        assertEquals(data, mHost.mPublished.get(0));
+    }
+
+    @Test
+    public void snapshotIsRepublishedAtTheFirstRequestOfVersion1Hosts() throws RemoteException {
+        ExtensionData data = new ExtensionData().visible(true).statusToDisplay("09:55");
+        mExtension.publishUpdate(data);
+        mExtension.onDestroy();
+
+        mExtension = Robolectric.buildService(TestExtension.class).create().get();
+        mBinder = IMindMeExtension.Stub.asInterface(mExtension.onBind(new Intent()));
+        connectHost(1);
+        assertTrue(mHost.mPublished.isEmpty());
+
+        publishOnUpdate("10:05");
+        requestUpdate(0, MindMeExtension.UPDATE_REASON_MANUAL);
+        assertEquals(2, mHost.mPublished.size());
+        assertEquals(data, mHost.mPublished.get(0));
+        assertEquals("10:05", mHost.mPublished.get(1).statusToDisplay());
+
+        // Only once per host
+        requestUpdate(0, MindMeExtension.UPDATE_REASON_MANUAL);
+        assertEquals(2, mHost.mPublished.size());
+    }
+
+    @Test
+    public void updatesRunOnTheProvidedExecutor() throws RemoteException {
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        assertTrue(mExtension.mRequests.isEmpty());
+
+        mExtension.runQueued();
+        assertEquals(1, mExtension.mRequests.size());
+    }
+
+    @Test
+    public void queuedRunsAreDroppedAfterDestroy() throws RemoteException {
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mExtension.onDestroy();
+        mExtension.runQueued();
+
+        assertTrue(mExtension.mRequests.isEmpty());
+    }
+
+    @Test
+    public void concurrentRunsOverlap() throws RemoteException {
+        startExtension(ConcurrentTestExtension.class, new Bundle());
+        final List<Integer> runsInFlight = new ArrayList<Integer>();
+        mExtension.mUpdateListener = new UpdateListener() {
+            @Override
+            public void onUpdate(UpdateRequest request) throws RemoteException {
+                if (mExtension.mRequests.size() == 1) {
+                    mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+                    mExtension.runQueued();
+                    runsInFlight.add(mExtension.mRequests.size());
+                }
+            }
+        };
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mExtension.runQueued();
+
+        assertEquals(Arrays.asList(2), runsInFlight);
+        assertTrue(mExtension.mRequests.get(0).isCancelled());
+    }
+
+    @Test
+    public void newerRequestCancelsTheRunInFlight() throws RemoteException {
+        final ExtensionData stale = new ExtensionData().statusToDisplay("10:00");
+        final ExtensionData fresh = new ExtensionData().statusToDisplay("10:05");
+        mExtension.mUpdateListener = new UpdateListener() {
+            @Override
+            public void onUpdate(UpdateRequest request) throws RemoteException {
+                if (mExtension.mRequests.size() == 1) {
+                    mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+                    assertTrue(request.isCancelled());
+                    mExtension.publishUpdate(stale);
+                } else {
+                    mExtension.publishUpdate(fresh);
+                }
+            }
+        };
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mExtension.runQueued();
+
+        assertEquals(2, mExtension.mRequests.size());
+        assertEquals(Arrays.asList(fresh), mHost.mPublished);
+        assertEquals(1, mExtension.getMetrics().publishSupersededCount());
+    }
+
+    @Test
+    public void foregroundRunAbsorbsBackgroundRequests() throws RemoteException {
+        mExtension.mUpdateListener = new UpdateListener() {
+            @Override
+            public void onUpdate(UpdateRequest request) throws RemoteException {
+                mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+                mBinder.onUpdate(MindMeExtension.UPDATE_REASON_UNKNOWN);
+                assertFalse(request.isCancelled());
+                mExtension.publishUpdate(new ExtensionData().statusToDisplay("10:00"));
+            }
+        };
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mExtension.runQueued();
+
+        assertEquals(1, mExtension.mRequests.size());
+        assertFalse(mExtension.mRequests.get(0).isBackground());
+        assertEquals(1, mHost.mPublished.size());
+    }
+
+    @Test
+    public void foregroundRequestCancelsABackgroundRun() throws RemoteException {
+        mExtension.mUpdateListener = new UpdateListener() {
+            @Override
+            public void onUpdate(UpdateRequest request) throws RemoteException {
+                if (mExtension.mRequests.size() == 1) {
+                    mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+                    assertTrue(request.isCancelled());
+                }
+            }
+        };
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mExtension.runQueued();
+
+        assertEquals(2, mExtension.mRequests.size());
+        assertTrue(mExtension.mRequests.get(0).isBackground());
+        UpdateRequest followUp = mExtension.mRequests.get(1);
+        assertEquals(MindMeExtension.UPDATE_REASON_MANUAL, followUp.reason());
+        assertFalse(followUp.isBackground());
+        assertFalse(followUp.isCancelled());
+    }
+
+    @Test
+    public void foregroundRequestCancelsAForegroundRun() throws RemoteException {
+        mExtension.mUpdateListener = new UpdateListener() {
+            @Override
+            public void onUpdate(UpdateRequest request) throws RemoteException {
+                if (mExtension.mRequests.size() == 1) {
+                    mBinder.onUpdate(MindMeExtension.UPDATE_REASON_SETTINGS_CHANGED);
+                    assertTrue(request.isCancelled());
+                }
+            }
+        };
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mExtension.runQueued();
+
+        assertEquals(2, mExtension.mRequests.size());
+        assertEquals(MindMeExtension.UPDATE_REASON_SETTINGS_CHANGED,
+                mExtension.mRequests.get(1).reason());
+    }
+
+    @Test
+    public void foregroundRequestUpgradesAWaitingBackgroundRun() throws RemoteException {
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mExtension.runQueued();
+
+        // Dispatched twice, so it can jump ahead, but run once
+        assertEquals(1, mExtension.mRequests.size());
+        assertEquals(2, mExtension.mRequests.get(0).requestCount());
+        assertFalse(mExtension.mRequests.get(0).isBackground());
+    }
+
+    @Test
+    public void runsGetTheDeadlineOfTheirReason() throws RemoteException {
+        mExtension.mTimeoutMillis = 5000;
+        long now = SystemClock.elapsedRealtime();
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mExtension.runQueued();
+
+        assertEquals(now + 5000, mExtension.mRequests.get(0).deadline());
+    }
+
+    @Test
+    public void announcedPeriodicUpdateGetsPreLoadedData() throws RemoteException {
+        mBinder.onScheduleUpdate(System.currentTimeMillis() + 10 * MINUTE_MILLIS);
+        advanceClock(5 * MINUTE_MILLIS);
+        mExtension.runQueued();
+        assertEquals(1, mExtension.mPreLoadCount);
+
+        // Other runs leave it to the periodic one
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mExtension.runQueued();
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mExtension.runQueued();
+        assertNull(mExtension.mRequests.get(0).preLoadedData());
+        assertEquals("pre-loaded 1", mExtension.mRequests.get(1).preLoadedData());
+    }
+
+    @Test
+    public void predictedPeriodicUpdateGetsPreLoadedData() throws RemoteException {
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mExtension.runQueued();
+        advanceClock(30 * MINUTE_MILLIS);
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mExtension.runQueued();
+        assertEquals(0, mExtension.mPreLoadCount);
+
+        // Expected 30 minutes after the last one, pre-loaded 5 minutes ahead
+        advanceClock(25 * MINUTE_MILLIS);
+        mExtension.runQueued();
+        assertEquals(1, mExtension.mPreLoadCount);
+    }
+
+    @Test
+    public void settingsChangeDropsPreLoadedData() throws RemoteException {
+        mBinder.onScheduleUpdate(System.currentTimeMillis() + 10 * MINUTE_MILLIS);
+        advanceClock(5 * MINUTE_MILLIS);
+        mExtension.runQueued();
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_SETTINGS_CHANGED);
+        mExtension.runQueued();
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mExtension.runQueued();
+
+        assertNull(mExtension.mRequests.get(1).preLoadedData());
+    }
+
+    @Test
+    public void stalePreLoadedDataIsDropped() throws RemoteException {
+        mBinder.onScheduleUpdate(System.currentTimeMillis() + 10 * MINUTE_MILLIS);
+        advanceClock(5 * MINUTE_MILLIS);
+        mExtension.runQueued();
+        // Older than twice the lead time
+        advanceClock(11 * MINUTE_MILLIS);
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mExtension.runQueued();
+
+        assertNull(mExtension.mRequests.get(0).preLoadedData());
+    }
+
+    @Test
+    public void largeDataIsPublishedThroughAFile() {
+        ExtensionData data = newLargeData();
+        mExtension.publishUpdate(data);
+
+        assertEquals(1, mHost.mFileCount);
+        assertEquals(Arrays.asList(data), mHost.mPublished);
+        assertTrue(mExtension.getLastPublishedSize() > 128 * 1024);
+    }
+
+    @Test
+    public void smallDataIsPublishedInline() {
+        mExtension.publishUpdate(new ExtensionData().statusToDisplay("10:00")
+                .extras(new ExtensionExtras().putInt(1, 40)));
+
+        assertEquals(0, mHost.mFileCount);
+        assertEquals(1, mHost.mPublished.size());
+    }
+
+    @Test
+    public void lightDataIsMeasured() {
+        ExtensionData data = new ExtensionData().visible(true).statusToDisplay("10:00");
+        mExtension.publishUpdate(data);
+
+        int size = new ExtensionData().copyFrom(data).parcelSize();
+        assertTrue(size > 0);
+        assertEquals(size, mExtension.getLastPublishedSize());
+        assertEquals(size, mExtension.getMetrics().publishedBytes());
+        assertEquals(1, mExtension.getMetrics().parcelSizeHistogram()[0]);
+
+        // Deltas are measured too
+        mExtension.publishUpdate(new ExtensionData().copyFrom(data).statusToDisplay("10:05"));
+        assertTrue(mExtension.getLastPublishedSize() > 0);
+        assertEquals(2, mExtension.getMetrics().parcelSizeHistogram()[0]);
+    }
+
+    @Test
+    public void periodicRequestWithinTtlRepublishes() throws RemoteException {
+        startExtensionWithTtl(60);
+        publishOnUpdate("10:00");
+        requestUpdate(0, MindMeExtension.UPDATE_REASON_PERIODIC);
+
+        requestUpdate(30 * 1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+        assertEquals(1, mExtension.mRequests.size());
+        assertEquals(2, mHost.mPublished.size());
+        assertEquals("10:00", mHost.mPublished.get(1).statusToDisplay());
+        assertEquals(1, mExtension.getMetrics().cacheHitCount(
+                MindMeExtension.UPDATE_REASON_PERIODIC));
+
+        requestUpdate(30 * 1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+        assertEquals(2, mExtension.mRequests.size());
+    }
+
+    @Test
+    public void largeDataIsRepublishedThroughAFile() throws RemoteException {
+        startExtensionWithTtl(60);
+        final ExtensionData data = newLargeData();
+        mExtension.mUpdateListener = new UpdateListener() {
+            @Override
+            public void onUpdate(UpdateRequest request) {
+                mExtension.publishUpdate(data);
+            }
+        };
+        requestUpdate(0, MindMeExtension.UPDATE_REASON_PERIODIC);
+
+        requestUpdate(30 * 1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+        assertEquals(1, mExtension.mRequests.size());
+        assertEquals(2, mHost.mFileCount);
+        assertEquals(Arrays.asList(data, data), mHost.mPublished);
+        ExtensionMetrics metrics = mExtension.getMetrics();
+        assertEquals(2, metrics.publishSuccessCount());
+        assertEquals(2, metrics.parcelSizeHistogram()[5]);
+    }
+
+    @Test
+    public void manualRequestsIgnoreTheTtl() throws RemoteException {
+        startExtensionWithTtl(60);
+        publishOnUpdate("10:00");
+        requestUpdate(0, MindMeExtension.UPDATE_REASON_PERIODIC);
+
+        requestUpdate(1000, MindMeExtension.UPDATE_REASON_MANUAL);
+        requestUpdate(1000, MindMeExtension.UPDATE_REASON_SETTINGS_CHANGED);
+        assertEquals(3, mExtension.mRequests.size());
+    }
+
+    @Test
+    public void unchangedRunsBackOffTheTtl() throws RemoteException {
+        startExtensionWithTtl(60);
+        publishOnUpdate("10:00");
+        requestUpdate(0, MindMeExtension.UPDATE_REASON_PERIODIC);
+
+        // Each unchanged run doubles the window, up to 8 times the TTL
+        long[] windowsSeconds = { 60, 120, 240, 480, 480 };
+        for (int i = 0; i < windowsSeconds.length; i++) {
+            requestUpdate((windowsSeconds[i] - 1) * 1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+            assertEquals(i + 1, mExtension.mRequests.size());
+            requestUpdate(1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+            assertEquals(i + 2, mExtension.mRequests.size());
+        }
+    }
+
+    @Test
+    public void changedDataResetsTheTtl() throws RemoteException {
+        startExtensionWithTtl(60);
+        publishOnUpdate("10:00");
+        requestUpdate(0, MindMeExtension.UPDATE_REASON_PERIODIC);
+        requestUpdate(60 * 1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+        requestUpdate(120 * 1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+        assertEquals(3, mExtension.mRequests.size());
+
+        // Backed off to 240s, until a run publishes changed data
+        publishOnUpdate("10:05");
+        requestUpdate(240 * 1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+        requestUpdate(60 * 1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+        assertEquals(5, mExtension.mRequests.size());
+    }
+
+    @Test
+    public void cancelledRunsLeaveTheTtlAlone() throws RemoteException {
+        startExtensionWithTtl(60);
+        publishOnUpdate("10:00");
+        requestUpdate(0, MindMeExtension.UPDATE_REASON_PERIODIC);
+
+        // Superseded by a newer periodic request, whose run publishes the same data again
+        advanceClock(60 * 1000);
+        mExtension.mUpdateListener = new UpdateListener() {
+            @Override
+            public void onUpdate(UpdateRequest request) throws RemoteException {
+                if (mExtension.mRequests.size() == 2) {
+                    advanceClock(30 * 1000);
+                    mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+                } else {
+                    mExtension.publishUpdate(new ExtensionData().visible(true)
+                            .statusToDisplay("10:00"));
+                }
+            }
+        };
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mExtension.runQueued();
+        assertTrue(mExtension.mRequests.get(1).isCancelled());
+        assertEquals(3, mExtension.mRequests.size());
+
+        // One unchanged run doubled the window, the cancelled one didn't count
+        requestUpdate(119 * 1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+        assertEquals(3, mExtension.mRequests.size());
+        requestUpdate(1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+        assertEquals(4, mExtension.mRequests.size());
+    }
+
+    @Test
+    public void minUpdateIntervalLimitsPeriodicRuns() throws RemoteException {
+        Bundle metaData = new Bundle();
+        metaData.putInt("minUpdateInterval", 300);
+        startExtension(metaData);
+        publishOnUpdate("10:00");
+        requestUpdate(0, MindMeExtension.UPDATE_REASON_PERIODIC);
+
+        requestUpdate(299 * 1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+        assertEquals(1, mExtension.mRequests.size());
+        requestUpdate(1000, MindMeExtension.UPDATE_REASON_PERIODIC);
+        assertEquals(2, mExtension.mRequests.size());
+    }
+
+    @Test
+    public void speechSegmentsAreStreamed() {
+        mExtension.publishSpeechSegment("Good morning.", Locale.UK, false);
+        mExtension.publishSpeechSegment("Rain later.", null, true);
+        mExtension.publishSpeechSegment("Bye.", Locale.UK, true);
+
+        assertEquals(Arrays.asList("1:0:Good morning.:en:GB", "1:1:Rain later.:null:null:last",
+                "2:0:Bye.:en:GB:last"), mHost.mSpeechSegments);
+    }
+
+    @Test
+    public void olderHostsGetSpeechWithTheNextData() throws RemoteException {
+        connectHost(1);
+        mExtension.publishSpeechSegment("Good morning.", Locale.UK, false);
+        mExtension.publishSpeechSegment("Rain later.", null, true);
+        ExtensionData data = new ExtensionData().statusToDisplay("Rain");
+        mExtension.publishUpdate(data);
+
+        assertTrue(mHost.mSpeechSegments.isEmpty());
+        assertEquals("Good morning. Rain later.", mHost.mPublished.get(0).statusToSpeak());
+        assertEquals(Locale.UK, mHost.mPublished.get(0).languageToSpeak());
+        assertNull(data.statusToSpeak());
+
+        // Spoken once only
+        mExtension.publishUpdate(new ExtensionData().statusToDisplay("Sun"));
+        assertNull(mHost.mPublished.get(1).statusToSpeak());
+    }
+
+    @Test
+    public void bufferedSpeechDoesNotReplaceTheDataSpeech() throws RemoteException {
+        connectHost(1);
+        mExtension.publishSpeechSegment("Good morning.", Locale.UK, true);
+        mExtension.publishUpdate(new ExtensionData().statusToSpeak("Rain"));
+
+        assertEquals("Rain", mHost.mPublished.get(0).statusToSpeak());
+    }
+
+    @Test
+    public void speechOfCancelledRunsIsDropped() throws RemoteException {
+        mExtension.mUpdateListener = new UpdateListener() {
+            @Override
+            public void onUpdate(UpdateRequest request) throws RemoteException {
+                if (mExtension.mRequests.size() == 1) {
+                    mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+                    mExtension.publishSpeechSegment("Stale.", null, true);
+                } else {
+                    mExtension.publishSpeechSegment("Fresh.", null, true);
+                }
+            }
+        };
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mExtension.runQueued();
+
+        assertEquals(Arrays.asList("1:0:Fresh.:null:null:last"), mHost.mSpeechSegments);
+    }
+
+    @Test
+    public void metricsCountRequestsRunsAndPublishes() throws RemoteException {
+        mExtension.mUpdateListener = new UpdateListener() {
+            @Override
+            public void onUpdate(UpdateRequest request) {
+                mExtension.publishUpdate(new ExtensionData().visible(true));
+            }
+        };
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_PERIODIC);
+        mExtension.runQueued();
+
+        ExtensionMetrics metrics = mExtension.getMetrics();
+        assertEquals(2, metrics.requestCount(MindMeExtension.UPDATE_REASON_PERIODIC));
+        assertEquals(1, metrics.runCount(MindMeExtension.UPDATE_REASON_PERIODIC));
+        assertEquals(1, metrics.publishSuccessCount());
+    }
+
+    @Test
+    public void dumpIncludesTheMetrics() throws RemoteException {
+        mBinder.onUpdate(MindMeExtension.UPDATE_REASON_MANUAL);
+        mExtension.runQueued();
+
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        mExtension.dump(null, writer, new String[0]);
+        writer.flush();
+        String dump = out.toString();
+
+        assertTrue(dump, dump.startsWith(TestExtension.class.getName() + " (host protocol "
+                + PROTOCOL_VERSION + "):"));
+        assertTrue(dump, dump.contains("    manual: 1 / 1 / 0"));
+    }
+
+    /**
+     * Creates the extension, declared in the package manager with the given meta-data, which
+     * defaults to world-readable, and connects {@link #mHost} to it.
+     */
+    private void startExtension(Bundle metaData) throws RemoteException {
+        startExtension(TestExtension.class, metaData);
+    }
+
+    private void startExtension(Class<? extends TestExtension> extensionClass, Bundle metaData)
+            throws RemoteException {
+        Context context = RuntimeEnvironment.application;
+        metaData.putInt("protocolVersion", 1);
+        if (!metaData.containsKey("worldReadable")) {
+            metaData.putBoolean("worldReadable", true);
+        }
+        ServiceInfo service = new ServiceInfo();
+        service.name = extensionClass.getName();
+        service.packageName = context.getPackageName();
+        service.applicationInfo = context.getApplicationInfo();
+        service.metaData = metaData;
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = context.getPackageName();
+        packageInfo.applicationInfo = context.getApplicationInfo();
+        packageInfo.services = new ServiceInfo[] { service };
+        shadowOf(context.getPackageManager()).addPackage(packageInfo);
+
+        mExtension = Robolectric.buildService(extensionClass).create().get();
+        mBinder = IMindMeExtension.Stub.asInterface(mExtension.onBind(new Intent()));
+        connectHost(PROTOCOL_VERSION);
+    }
+
+    private void startExtensionWithTtl(int ttlSeconds) throws RemoteException {
+        Bundle metaData = new Bundle();
+        metaData.putInt("updateTtl", ttlSeconds);
+        startExtension(metaData);
+    }
+
+    /**
+     * Makes every update run publish data with the given status.
+     */
+    private void publishOnUpdate(final String status) {
+        mExtension.mUpdateListener = new UpdateListener() {
+            @Override
+            public void onUpdate(UpdateRequest request) {
+                mExtension.publishUpdate(new ExtensionData().visible(true)
+                        .statusToDisplay(status));
+            }
+        };
+    }
+
+    /**
+     * Sends an update request after the given time and runs what it queues.
+     */
+    private void requestUpdate(long delayMillis, int reason) throws RemoteException {
+        advanceClock(delayMillis);
+        mBinder.onUpdate(reason);
+        mExtension.runQueued();
+    }
+
+    /**
+     * Returns data too large to be published inline.
+     */
+    private static ExtensionData newLargeData() {
+        ExtensionExtras extras = new ExtensionExtras();
+        for (int key = 0; key < 20000; key++) {
+            extras.putLong(key, key);
+        }
+        return new ExtensionData().statusToDisplay("10:00").extras(extras);
+    }
+
+    /**
+     * Runs the main thread tasks due within the given time.
+     */
+    private static void advanceClock(long millis) {
+        Robolectric.getForegroundThreadScheduler().advanceBy(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Installs the main app, signed with the given signature, as the package of the calling UID.
+     */
+    private static void installCaller(Signature signature) {
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = CALLER_PACKAGE;
+        packageInfo.signatures = new Signature[] { signature };
+        PackageManager pm = RuntimeEnvironment.application.getPackageManager();
+        shadowOf(pm).addPackage(packageInfo);
+        shadowOf(pm).setPackagesForUid(Process.myUid(), CALLER_PACKAGE);
+    }
+
+    private static Signature trustedSignature() throws Exception {
+        Field field = MindMeExtension.class.getDeclaredField("MINDME_SIGNATURE");
+        field.setAccessible(true);
+        return (Signature) field.get(null);
+    }
+
+    /**
+     * Connects a new {@link #mHost} speaking the given protocol version.
+     */
+    private void connectHost(int protocolVersion) throws RemoteException {
+        mHost = new RecordingHost();
+        mBinder.onInitialize(mHost, false);
+        if (protocolVersion > 1) {
+            mBinder.setHostProtocolVersion(protocolVersion);
+        }
+        mExtension.runQueued();
+    }
+
+    interface UpdateListener {
+        void onUpdate(UpdateRequest request) throws Exception;
+    }
+
+    /**
+     * Extension running updates on {@link #runQueued()}, which records them and calls
+     * {@link #mUpdateListener}.
+     */
+    public static class TestExtension extends MindMeExtension {
+        final List<UpdateRequest> mRequests = new ArrayList<UpdateRequest>();
+        UpdateListener mUpdateListener;
+        long mTimeoutMillis = 0;
+        int mPreLoadCount = 0;
+        private final Queue<Runnable> mQueue = new LinkedList<Runnable>();
+
+        @Override
+        protected Executor onCreateUpdateExecutor() {
+            return new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    mQueue.add(command);
+                }
+            };
+        }
+
+        @Override
+        protected void onUpdateData(int reason) {
+        }
+
+        @Override
+        protected long getUpdateTimeoutMillis(int reason) {
+            return mTimeoutMillis;
+        }
+
+        @Override
+        protected Object onPreLoadData() {
+            return "pre-loaded " + ++mPreLoadCount;
+        }
+
+        @Override
+        protected void onUpdateData(UpdateRequest request) {
+            mRequests.add(request);
+            if (mUpdateListener != null) {
+                try {
+                    mUpdateListener.onUpdate(request);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        /**
+         * Runs the queued work, including anything queued meanwhile.
+         */
+        void runQueued() {
+            Runnable command;
+            while ((command = mQueue.poll()) != null) {
+                command.run();
+            }
+        }
+    }
+
+    public static class ConcurrentTestExtension extends TestExtension {
+        @Override
+        protected int getUpdatePolicy() {
+            return UPDATE_POLICY_CONCURRENT;
+        }
+    }
+
+    /**
+     * Host recording what it receives. Data goes through a parcel first, as it would on its way
+     * to the main app. {@link #mCurrent} is the data the main app would show.
+     */
+    static class RecordingHost extends IMindMeExtensionHost.Stub {
+        final List<ExtensionData> mPublished = new ArrayList<ExtensionData>();
+        ExtensionData mCurrent = null;
+        final List<Integer> mChangedFields = new ArrayList<Integer>();
+        final List<List<ExtensionData>> mBatches = new ArrayList<List<ExtensionData>>();
+        final List<String> mSpeechSegments = new ArrayList<String>();
+        int mUpdateFinishedCount = 0;
+        int mFileCount = 0;
+
+        @Override
+        public void publishUpdate(ExtensionData data) {
+            mPublished.add(unparcel(data));
+            mChangedFields.add(ExtensionData.FIELD_ALL);
+            mCurrent = unparcel(data);
+        }
+
+        @Override
+        public void publishUpdateDelta(int changedFields, ExtensionData delta) {
+            mPublished.add(unparcel(delta));
+            mChangedFields.add(changedFields);
+            // What the main app does with deltas
+            mCurrent.applyDelta(changedFields, unparcel(delta));
+        }
+
+        @Override
+        public void publishUpdates(List<ExtensionData> data) {
+            List<ExtensionData> batch = new ArrayList<ExtensionData>();
+            for (ExtensionData entry : data) {
+                batch.add(unparcel(entry));
+            }
+            mBatches.add(batch);
+        }
+
+        @Override
+        public void publishUpdateFromFile(ParcelFileDescriptor data, int size) {
+            try {
+                mCurrent = ExtensionData.readFromFile(data, size);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            mPublished.add(mCurrent);
+            mChangedFields.add(ExtensionData.FIELD_ALL);
+            ++mFileCount;
+        }
+
+        @Override
+        public void publishSpeechSegment(int streamId, int sequence, String text,
+                String language, String country, boolean isLast) {
+            mSpeechSegments.add(streamId + ":" + sequence + ":" + text + ":" + language + ":"
+                    + country + (isLast ? ":last" : ""));
+        }
+
+        @Override
+        public void onUpdateFinished() {
+            ++mUpdateFinishedCount;
+        }
+
+        private static ExtensionData unparcel(ExtensionData data) {
+            if (data == null) {
+                return null;
+            }
+            Parcel parcel = Parcel.obtain();
+            try {
+                data.writeToParcel(parcel, 0);
+                parcel.setDataPosition(0);
+                return ExtensionData.CREATOR.createFromParcel(parcel);
+            } finally {
+                parcel.recycle();
+            }
+        }
+    }
+}
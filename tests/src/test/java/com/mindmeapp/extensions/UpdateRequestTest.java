@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.mindmeapp.extensions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.os.SystemClock;
+
+/**
+ * Tests of the cancellation, deadline and lane of {@link UpdateRequest}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UpdateRequestTest {
+
+    @Test
+    public void cancelCallsTheListenerOnce() {
+        UpdateRequest request = newRequest(0);
+        CountingListener listener = new CountingListener();
+        request.setOnCancelListener(listener);
+        request.cancel();
+        request.cancel();
+
+        assertTrue(request.isCancelled());
+        assertEquals(1, listener.mCount);
+    }
+
+    @Test
+    public void listenerSetAfterCancelIsCalledRightAway() {
+        UpdateRequest request = newRequest(0);
+        request.cancel();
+        CountingListener listener = new CountingListener();
+        request.setOnCancelListener(listener);
+
+        assertEquals(1, listener.mCount);
+    }
+
+    @Test
+    public void requestWithoutDeadlineNeverExpires() {
+        UpdateRequest request = newRequest(0);
+
+        assertEquals(Long.MAX_VALUE, request.remainingTimeMillis());
+        assertFalse(request.isExpired());
+    }
+
+    @Test
+    public void requestExpiresAtItsDeadline() {
+        UpdateRequest request = newRequest(SystemClock.elapsedRealtime() + 1000);
+        assertEquals(1000, request.remainingTimeMillis());
+        assertFalse(request.isExpired());
+
+        SystemClock.sleep(1000);
+        assertEquals(0, request.remainingTimeMillis());
+        assertTrue(request.isExpired());
+    }
+
+    @Test
+    public void userRequestsRunInTheForeground() {
+        assertFalse(newRequest(0).isBackground());
+        assertFalse(new UpdateRequest(MindMeExtension.UPDATE_REASON_SETTINGS_CHANGED, 1, 0, null)
+                .isBackground());
+    }
+
+    @Test
+    public void otherRequestsRunInTheBackground() {
+        assertTrue(new UpdateRequest(MindMeExtension.UPDATE_REASON_PERIODIC, 1, 0, null)
+                .isBackground());
+        assertTrue(new UpdateRequest(MindMeExtension.UPDATE_REASON_UNKNOWN, 1, 0, null)
+                .isBackground());
+        // Reasons added by newer versions of the main app
+        assertTrue(UpdateRequest.isBackgroundReason(42));
+    }
+
+    private static UpdateRequest newRequest(long deadline) {
+        return new UpdateRequest(MindMeExtension.UPDATE_REASON_MANUAL, 1, deadline, null);
+    }
+
+    private static class CountingListener implements UpdateRequest.OnCancelListener {
+        int mCount = 0;
+
+        @Override
+        public void onCancel() {
+            ++mCount;
+        }
+    }
+}